@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.benchmarks;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+
+/**
+ * Compares a fan-out of {@value #REQUESTS} GET requests to one host issued with
+ * {@link AhcHttpClient#handleAll(java.util.Collection, int)} to the same requests
+ * issued one after the other through a {@link WebResource}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class BatchBenchmark {
+
+    static final int REQUESTS = 100;
+
+    @Param({ "4", "16", "64" })
+    public int maxConcurrencyPerHost;
+
+    private GrizzlyServer server;
+
+    private AhcHttpClient client;
+
+    private WebResource resource;
+
+    private URI uri;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new GrizzlyServer();
+        uri = server.getUri(16);
+        client = AhcHttpClient.create();
+        resource = client.resource(uri);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.destroy();
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void sequential(final Blackhole bh) {
+        for (int i = 0; i < REQUESTS; i++) {
+            bh.consume(resource.get(byte[].class));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void batch(final Blackhole bh) throws Exception {
+        final List<ClientRequest> requests = new ArrayList<ClientRequest>(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            requests.add(ClientRequest.create().build(uri, "GET"));
+        }
+        for (final Future<ClientResponse> f : client.handleAll(requests, maxConcurrencyPerHost)) {
+            bh.consume(f.get().getEntity(byte[].class));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.benchmarks;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Response;
+import com.sun.jersey.api.client.WebResource;
+
+/**
+ * Measures the cost of the Jersey adapter on top of AHC.
+ * <p/>
+ * Each operation is benchmarked twice: once through an {@link AhcHttpClient}
+ * resource, which goes through request building, header bridging, entity
+ * buffering and cookie handling, and once directly on the {@link AsyncHttpClient}
+ * of the same client, which is the baseline. The difference between the two is the
+ * overhead of the adapter. Run with {@code -prof gc} to get the allocation rate
+ * per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class ClientBenchmark {
+
+    /**
+     * The size of the entities, small enough to fit in a packet and large enough
+     * to be received in several parts.
+     */
+    @Param({ "16", "262144" })
+    public int size;
+
+    private GrizzlyServer server;
+
+    private AhcHttpClient client;
+
+    private AsyncHttpClient raw;
+
+    private WebResource resource;
+
+    private String url;
+
+    private byte[] entity;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new GrizzlyServer();
+        final URI uri = server.getUri(size);
+
+        client = AhcHttpClient.create();
+        raw = client.getClientHandler().getHttpClient();
+        resource = client.resource(uri);
+        url = uri.toString();
+        entity = new byte[size];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.destroy();
+        server.stop();
+    }
+
+    @Benchmark
+    public byte[] adapterGet() {
+        return resource.get(byte[].class);
+    }
+
+    @Benchmark
+    public byte[] adapterPost() {
+        return resource.post(byte[].class, entity);
+    }
+
+    @Benchmark
+    public byte[] rawGet() throws Exception {
+        final Response response = raw.prepareGet(url).execute().get();
+        return response.getResponseBodyAsBytes();
+    }
+
+    @Benchmark
+    public byte[] rawPost() throws Exception {
+        final Response response = raw.preparePost(url).setBody(entity).execute().get();
+        return response.getResponseBodyAsBytes();
+    }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.benchmarks;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.Arrays;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.UriBuilder;
+
+import com.sun.grizzly.http.SelectorThread;
+import com.sun.grizzly.tcp.Adapter;
+import com.sun.jersey.api.container.ContainerFactory;
+import com.sun.jersey.api.container.grizzly.GrizzlyServerFactory;
+
+/**
+ * An in-process Grizzly server serving {@link Resource}, set up the way the
+ * integration tests do.
+ */
+final class GrizzlyServer {
+
+    /**
+     * Returns a cached entity of the requested size on GET and echoes the entity
+     * on POST, so that the server does as little work as possible per request.
+     */
+    @Path("/")
+    public static class Resource {
+
+        private static final byte[][] ENTITIES = new byte[32][];
+
+        @GET
+        @Path("{size}")
+        public byte[] get(@PathParam("size") final int size) {
+            final int i = Integer.numberOfTrailingZeros(size);
+            byte[] entity = ENTITIES[i];
+            if (entity == null || entity.length != size) {
+                entity = new byte[size];
+                Arrays.fill(entity, (byte) 'a');
+                ENTITIES[i] = entity;
+            }
+            return entity;
+        }
+
+        @POST
+        @Path("{size}")
+        public byte[] post(final byte[] entity) {
+            return entity;
+        }
+    }
+
+    private final SelectorThread selectorThread;
+
+    private final URI uri;
+
+    GrizzlyServer() throws IOException {
+        final ServerSocket s = new ServerSocket(0);
+        final int port = s.getLocalPort();
+        s.close();
+
+        this.uri = UriBuilder.fromUri("http://localhost").port(port).path("/").build();
+        this.selectorThread = GrizzlyServerFactory.create(uri,
+                ContainerFactory.createContainer(Adapter.class, Resource.class));
+    }
+
+    /**
+     * @return the URI of the entity of the given size, a power of two.
+     */
+    URI getUri(final int size) {
+        return UriBuilder.fromUri(uri).path(Integer.toString(size)).build();
+    }
+
+    void stop() {
+        if (selectorThread.isRunning()) {
+            selectorThread.stopEndpoint();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.benchmarks;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+/**
+ * Measures the resolution of the writer of a request entity and of the reader of a
+ * response entity, as done for every request and every
+ * {@link com.sun.jersey.api.client.ClientResponse#getEntity(Class)}.
+ * <p/>
+ * The baseline resolves through the {@link MessageBodyWorkers} of the client, which
+ * search the providers every time; the cached variants go through the workers of
+ * the request writer, which the adapter uses and which cache the resolutions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ProviderResolutionBenchmark {
+
+    private static final Annotation[] NONE = new Annotation[0];
+
+    /**
+     * The entity: a string, a byte array, a JAXB bean, or a form whose generic type
+     * is parameterized.
+     */
+    @Param({ "string", "bytes", "bean", "form" })
+    public String entity;
+
+    private AhcHttpClient client;
+
+    private MessageBodyWorkers uncached;
+
+    private MessageBodyWorkers cached;
+
+    private Class<?> type;
+
+    private Type genericType;
+
+    private MediaType mediaType;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        client = AhcHttpClient.create();
+        uncached = client.getMessageBodyWorkers();
+        cached = client.getClientHandler().getAhcRequestWriter().getMessageBodyWorkers();
+
+        if (entity.equals("string")) {
+            type = String.class;
+            genericType = String.class;
+            mediaType = MediaType.TEXT_PLAIN_TYPE;
+        } else if (entity.equals("bytes")) {
+            type = byte[].class;
+            genericType = byte[].class;
+            mediaType = MediaType.APPLICATION_OCTET_STREAM_TYPE;
+        } else if (entity.equals("bean")) {
+            type = Bean.class;
+            genericType = Bean.class;
+            mediaType = MediaType.APPLICATION_XML_TYPE;
+        } else {
+            type = MultivaluedMap.class;
+            genericType = new GenericEntity<MultivaluedMap<String, String>>(new MultivaluedMapImpl()) {
+            }.getType();
+            mediaType = MediaType.APPLICATION_FORM_URLENCODED_TYPE;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.destroy();
+    }
+
+    @XmlRootElement
+    public static class Bean {
+        public String name;
+    }
+
+    @Benchmark
+    public MessageBodyWriter<?> uncachedWriter() {
+        return uncached.getMessageBodyWriter(type, genericType, NONE, mediaType);
+    }
+
+    @Benchmark
+    public MessageBodyWriter<?> cachedWriter() {
+        return cached.getMessageBodyWriter(type, genericType, NONE, mediaType);
+    }
+
+    @Benchmark
+    public MessageBodyReader<?> uncachedReader() {
+        return uncached.getMessageBodyReader(type, genericType, NONE, mediaType);
+    }
+
+    @Benchmark
+    public MessageBodyReader<?> cachedReader() {
+        return cached.getMessageBodyReader(type, genericType, NONE, mediaType);
+    }
+}
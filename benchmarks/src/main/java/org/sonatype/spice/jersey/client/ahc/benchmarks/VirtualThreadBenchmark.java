@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+
+import com.sun.jersey.api.client.WebResource;
+
+/**
+ * Measures the throughput of {@value #CALLERS} virtual threads calling the client
+ * synchronously, with and without {@link AhcConfig#PROPERTY_CALLBACK_COMPLETION},
+ * and reports the largest number of carrier threads seen during the trial. A
+ * carrier count growing past the number of processors means that callers pinned
+ * their carrier and the scheduler compensated.
+ * <p/>
+ * Requires a JDK with virtual threads; the benchmark fails on older JDKs. Pinning
+ * itself is reported by the jdk.VirtualThreadPinned JFR event, for instance with
+ * {@code -prof jfr}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.virtualThreadScheduler.maxPoolSize=256")
+public class VirtualThreadBenchmark {
+
+    static final int CALLERS = 10000;
+
+    @Param({ "false", "true" })
+    public boolean callbackCompletion;
+
+    private GrizzlyServer server;
+
+    private AhcHttpClient client;
+
+    private WebResource resource;
+
+    private ExecutorService callers;
+
+    private final AtomicBoolean sampling = new AtomicBoolean();
+
+    private final AtomicInteger maxCarriers = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new GrizzlyServer();
+
+        final DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getAsyncHttpClientConfigBuilder().setMaximumConnectionsPerHost(-1).setMaximumConnectionsTotal(-1);
+        config.getProperties().put(AhcConfig.PROPERTY_CALLBACK_COMPLETION, callbackCompletion);
+        client = AhcHttpClient.create(config);
+        resource = client.resource(server.getUri(16));
+
+        callers = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+        sampling.set(true);
+        final Thread sampler = new Thread("carrier-sampler") {
+            @Override
+            public void run() {
+                while (sampling.get()) {
+                    final int carriers = countCarriers();
+                    int max = maxCarriers.get();
+                    while (carriers > max && !maxCarriers.compareAndSet(max, carriers)) {
+                        max = maxCarriers.get();
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sampling.set(false);
+        System.out.println();
+        System.out.println("Carrier threads: " + maxCarriers.get() + " (processors: "
+                + Runtime.getRuntime().availableProcessors() + ")");
+        callers.shutdown();
+        client.destroy();
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLERS)
+    public void get() throws Exception {
+        final List<Future<?>> futures = new ArrayList<Future<?>>(CALLERS);
+        for (int i = 0; i < CALLERS; i++) {
+            futures.add(callers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    resource.get(byte[].class);
+                }
+            }));
+        }
+        for (final Future<?> f : futures) {
+            f.get();
+        }
+    }
+
+    /**
+     * @return the number of threads of the fork join pool scheduling the virtual threads.
+     */
+    private static int countCarriers() {
+        int count = 0;
+        for (final Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("ForkJoinPool-") && t.getName().contains("-worker-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
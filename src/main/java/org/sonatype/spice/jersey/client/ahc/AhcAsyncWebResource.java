@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.net.URI;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.UriBuilder;
+
+import com.sun.jersey.api.client.AsyncWebResource;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.async.FutureListener;
+import com.sun.jersey.client.impl.CopyOnWriteHashMap;
+
+/**
+ * An {@link AsyncWebResource} that hands requests over to
+ * {@link AhcHttpClient#handle(ClientRequest, FutureListener)} instead of
+ * running them on the client executor service, unless filters were added to the
+ * resource itself.
+ */
+final class AhcAsyncWebResource extends AsyncWebResource {
+
+    private final AhcHttpClient client;
+
+    AhcAsyncWebResource(final AhcHttpClient client, final CopyOnWriteHashMap<String, Object> properties,
+            final URI u) {
+        super(client, properties, u);
+        this.client = client;
+    }
+
+    private AhcAsyncWebResource(final AhcAsyncWebResource that, final UriBuilder ub) {
+        super(that, ub);
+        this.client = that.client;
+    }
+
+    @Override
+    public Future<ClientResponse> handle(final ClientRequest request, final FutureListener<ClientResponse> l) {
+        if (getHeadHandler() == client) {
+            return client.handle(request, l);
+        }
+        return super.handle(request, l);
+    }
+
+    @Override
+    public AsyncWebResource path(final String path) {
+        return new AhcAsyncWebResource(this, getUriBuilder().path(path));
+    }
+
+    @Override
+    public AsyncWebResource uri(final URI uri) {
+        return new AhcAsyncWebResource(this, super.uri(uri).getUriBuilder());
+    }
+
+    @Override
+    public AsyncWebResource queryParam(final String key, final String value) {
+        return new AhcAsyncWebResource(this, super.queryParam(key, value).getUriBuilder());
+    }
+
+    @Override
+    public AsyncWebResource queryParams(final MultivaluedMap<String, String> params) {
+        return new AhcAsyncWebResource(this, super.queryParams(params).getUriBuilder());
+    }
+}
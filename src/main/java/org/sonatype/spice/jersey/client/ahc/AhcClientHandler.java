@@ -11,25 +11,69 @@
  *******************************************************************************/
 package org.sonatype.spice.jersey.client.ahc;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.ws.rs.core.Context;
 
+import org.sonatype.spice.jersey.client.ahc.balancer.LoadBalancer;
+import org.sonatype.spice.jersey.client.ahc.breaker.CircuitBreaker;
+import org.sonatype.spice.jersey.client.ahc.breaker.CircuitOpenException;
 import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
 import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.RequestOptions;
+import org.sonatype.spice.jersey.client.ahc.cookie.CookieStore;
+import org.sonatype.spice.jersey.client.ahc.cookie.DefaultCookieStore;
+import org.sonatype.spice.jersey.client.ahc.download.DownloadedFile;
+import org.sonatype.spice.jersey.client.ahc.download.FileDownload;
+import org.sonatype.spice.jersey.client.ahc.download.SegmentedDownload;
+import org.sonatype.spice.jersey.client.ahc.limit.AdaptiveConcurrencyLimiter;
+import org.sonatype.spice.jersey.client.ahc.limit.ConcurrencyLimitExceededException;
+import org.sonatype.spice.jersey.client.ahc.metrics.ClientMetrics;
+import org.sonatype.spice.jersey.client.ahc.retry.HedgePolicy;
+import org.sonatype.spice.jersey.client.ahc.retry.RetryPolicy;
 
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncCompletionHandlerBase;
+import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.AsyncHttpProvider;
 import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.Request;
 import com.ning.http.client.RequestBuilder;
 import com.ning.http.client.Response;
 import com.ning.http.client.cookie.Cookie;
+import com.ning.http.client.cookie.CookieDecoder;
+import com.ning.http.client.providers.netty.NettyAsyncHttpProvider;
+import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientHandler;
 import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientRequest;
 import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.async.AsyncClientHandler;
+import com.sun.jersey.api.client.async.FutureListener;
 import com.sun.jersey.core.header.InBoundHeaders;
 import com.sun.jersey.spi.MessageBodyWorkers;
 
@@ -50,18 +94,87 @@ import com.sun.jersey.spi.MessageBodyWorkers;
  * The following methods are currently supported: HEAD, GET, POST, PUT, DELETE, TRACE
  * OPTIONS as well as custom methods.
  * <p/>
+ * Requests may also be executed asynchronously with
+ * {@link #handle(ClientRequest, FutureListener)}, in which case no thread waits
+ * for the response.
+ * <p/>
  *
  * @author Jeanfrancois Arcand
  */
-public final class AhcClientHandler implements ClientHandler {
+public final class AhcClientHandler implements ClientHandler, AsyncClientHandler {
+
+    /**
+     * Runs listeners in the thread completing the AHC future.
+     */
+    static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * The request property of the {@link SegmentedDownload} performed instead of the
+     * request, once the request has gone through the filters of the client.
+     */
+    static final String SEGMENTED_DOWNLOAD = SegmentedDownload.class.getName();
+
+    private static final int DEFAULT_RESPONSE_BUFFER_SIZE = 64 * 1024;
+
+    private static final long DEFAULT_DRAIN_TIMEOUT = 60 * 1000;
 
-    private final AsyncHttpClient client;
+    /**
+     * The {@link AsyncHttpClient} executing new requests.
+     */
+    private volatile Generation generation;
+
+    /**
+     * Runs listeners in the executor service of the current {@link AsyncHttpClient},
+     * since the executor service of a replaced client is shut down with it.
+     */
+    private final Executor callbackExecutor = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            for (;;) {
+                final Generation g = generation;
+                try {
+                    g.client.getConfig().executorService().execute(command);
+                    return;
+                } catch (final RejectedExecutionException e) {
+                    if (g == generation) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    };
 
     private final AhcConfig config;
 
-    private final AhcRequestWriter requestWriter = new AhcRequestWriter();
+    private final AhcRequestWriter requestWriter;
 
-    private final List<Cookie> cookies = new ArrayList<Cookie>();
+    private final CookieStore cookieStore;
+
+    private final ClientMetrics metrics;
+
+    private final AdaptiveConcurrencyLimiter limiter;
+
+    private final LoadBalancer balancer;
+
+    private final CircuitBreaker breaker;
+
+    /**
+     * The metrics, the limiter and the balancer, which are notified of the outcome
+     * of the requests.
+     */
+    private final ClientMetrics observer;
+
+    private final RetryPolicy retryPolicy;
+
+    private final HedgePolicy hedgePolicy;
+
+    private final ConcurrentMap<SharedKey, SharedResponse> sharedResponses =
+            new ConcurrentHashMap<SharedKey, SharedResponse>();
 
     @Context
     private MessageBodyWorkers workers;
@@ -82,8 +195,24 @@ public final class AhcClientHandler implements ClientHandler {
      * @param config the client configuration.
      */
     public AhcClientHandler(final AsyncHttpClient client, final AhcConfig config) {
-        this.client = client;
+        this.generation = new Generation(client);
         this.config = config;
+        this.requestWriter = new AhcRequestWriter(client.getProvider() instanceof NettyAsyncHttpProvider);
+        requestWriter.setDefaultReadTimeout(client.getConfig().getRequestTimeoutInMs());
+
+        final CookieStore store = (CookieStore) config.getProperties().get(AhcConfig.PROPERTY_COOKIE_STORE);
+        this.cookieStore = store != null ? store : new DefaultCookieStore();
+        this.metrics = (ClientMetrics) config.getProperties().get(AhcConfig.PROPERTY_CLIENT_METRICS);
+
+        final Integer maxConcurrency = (Integer) config.getProperties().get(AhcConfig.PROPERTY_MAX_CONCURRENCY);
+        final Integer maxQueued = (Integer) config.getProperties().get(AhcConfig.PROPERTY_MAX_QUEUED_REQUESTS);
+        this.limiter = maxConcurrency == null ? null
+                : new AdaptiveConcurrencyLimiter(maxConcurrency, maxQueued != null ? maxQueued : 0);
+        this.balancer = (LoadBalancer) config.getProperties().get(AhcConfig.PROPERTY_LOAD_BALANCER);
+        this.breaker = (CircuitBreaker) config.getProperties().get(AhcConfig.PROPERTY_CIRCUIT_BREAKER);
+        this.observer = CompositeClientMetrics.of(limiter, CompositeClientMetrics.of(balancer, metrics));
+        this.retryPolicy = (RetryPolicy) config.getProperties().get(AhcConfig.PROPERTY_RETRY_POLICY);
+        this.hedgePolicy = (HedgePolicy) config.getProperties().get(AhcConfig.PROPERTY_HEDGE_POLICY);
     }
 
     /**
@@ -95,13 +224,199 @@ public final class AhcClientHandler implements ClientHandler {
         return config;
     }
 
+    /**
+     * Get the store of the cookies received by this handler.
+     *
+     * @return the {@link CookieStore}.
+     */
+    public CookieStore getCookieStore() {
+        return cookieStore;
+    }
+
+    /**
+     * Get the metrics receiving the measurements of the requests.
+     *
+     * @return the {@link ClientMetrics}, or null if requests are not measured.
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the limiter of the number of concurrent requests per host.
+     *
+     * @return the {@link AdaptiveConcurrencyLimiter}, or null if the number of
+     *         concurrent requests is not limited.
+     */
+    public AdaptiveConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Get the balancer of the requests to a service over its endpoints.
+     *
+     * @return the {@link LoadBalancer}, or null if requests are not balanced.
+     */
+    public LoadBalancer getLoadBalancer() {
+        return balancer;
+    }
+
+    /**
+     * Get the breaker of the circuits of the hosts.
+     *
+     * @return the {@link CircuitBreaker}, or null if requests are always sent.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
     /**
      * Get the {@link AsyncHttpClient}.
      *
-     * @return the {@link AsyncHttpClient}.
+     * @return the {@link AsyncHttpClient} executing new requests.
      */
     public AsyncHttpClient getHttpClient() {
-        return client;
+        return generation.client;
+    }
+
+    /**
+     * Replace the {@link AsyncHttpClient} by a new one with the given configuration
+     * and the same provider, see {@link #setHttpClient(AsyncHttpClient, long)}. The
+     * replaced client is closed once its requests complete, or after 60 seconds.
+     * <p/>
+     * The configuration MUST NOT share the executor service nor the connections pool
+     * of the current client, since they are closed with it.
+     *
+     * @param httpClientConfig the configuration of the new client.
+     */
+    public void reconfigure(final AsyncHttpClientConfig httpClientConfig) {
+        // AsyncHttpClient(String, AsyncHttpClientConfig) does not keep the configuration.
+        final AsyncHttpProvider provider;
+        try {
+            provider = getHttpClient().getProvider().getClass().getConstructor(AsyncHttpClientConfig.class)
+                    .newInstance(httpClientConfig);
+        } catch (final Exception e) {
+            throw new IllegalStateException("Unable to create the provider of the new client", e);
+        }
+        setHttpClient(new AsyncHttpClient(provider, httpClientConfig), DEFAULT_DRAIN_TIMEOUT);
+    }
+
+    /**
+     * Replace the {@link AsyncHttpClient} executing the requests. The requests in
+     * flight complete on the replaced client, which is closed once they have completed,
+     * or once the drain timeout has elapsed, while new requests are executed by the
+     * new client. Concurrent replacements take place one after the other, so that
+     * every replaced client is closed.
+     *
+     * @param httpClient the new client, which MUST use the same provider as the
+     *        current one.
+     * @param drainTimeoutMillis the maximum time in milliseconds to wait for the
+     *        requests in flight before closing the replaced client.
+     */
+    public synchronized void setHttpClient(final AsyncHttpClient httpClient, final long drainTimeoutMillis) {
+        final Generation previous = generation;
+        if (httpClient.getProvider().getClass() != previous.client.getProvider().getClass()) {
+            throw new IllegalArgumentException("The new client must use the provider "
+                    + previous.client.getProvider().getClass().getName());
+        }
+        generation = new Generation(httpClient);
+        requestWriter.setDefaultReadTimeout(httpClient.getConfig().getRequestTimeoutInMs());
+        previous.retire();
+
+        final Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    previous.drained.await(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    // Close now.
+                } finally {
+                    previous.client.close();
+                }
+            }
+        }, "AhcClientHandler-drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    /**
+     * Establish connections in advance by sending HEAD requests in parallel, so that
+     * the first requests to the hosts find connections in the pool of the
+     * {@link AsyncHttpClient}. Whatever the status of a response, its connection is
+     * pooled if the server keeps it alive.
+     * <p/>
+     * The requests bypass the concurrency limiter, the circuit breaker and the
+     * metrics.
+     *
+     * @param uris the URIs to send the requests to.
+     * @param connectionsPerUri the number of requests sent to each URI.
+     * @return the report of the warm-up, once every request has completed.
+     */
+    public WarmUpReport warmUp(final Collection<URI> uris, final int connectionsPerUri) {
+        final long start = System.nanoTime();
+        final Map<URI, List<Future<Response>>> futures = new LinkedHashMap<URI, List<Future<Response>>>();
+        final Map<URI, Throwable> failures = new LinkedHashMap<URI, Throwable>();
+        for (final URI uri : uris) {
+            final List<Future<Response>> f = new ArrayList<Future<Response>>(connectionsPerUri);
+            futures.put(uri, f);
+            final Request request = new RequestBuilder("HEAD").setUrl(uri.toString()).build();
+            for (int i = 0; i < connectionsPerUri; i++) {
+                try {
+                    f.add(execute(request, new AsyncCompletionHandlerBase()));
+                } catch (final IOException e) {
+                    failures.put(uri, e);
+                }
+            }
+        }
+
+        final Map<URI, Integer> connections = new LinkedHashMap<URI, Integer>();
+        for (final Map.Entry<URI, List<Future<Response>>> e : futures.entrySet()) {
+            int n = 0;
+            for (final Future<Response> f : e.getValue()) {
+                try {
+                    f.get();
+                    n++;
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    f.cancel(true);
+                    failures.put(e.getKey(), ie);
+                } catch (final ExecutionException ee) {
+                    failures.put(e.getKey(), ee.getCause());
+                }
+            }
+            connections.put(e.getKey(), n);
+        }
+        return new WarmUpReport(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), connections, failures);
+    }
+
+    /**
+     * Download a resource into a file over several connections, each fetching a range
+     * of its bytes, see {@link SegmentedDownload}. If the server does not support byte
+     * ranges, or does not advertise the length of the resource, the resource is
+     * downloaded over a single connection.
+     * <p/>
+     * Every request carries the headers, the options and the cookies of the HTTP
+     * request, whose method is ignored. The requests bypass the concurrency limiter,
+     * the circuit breaker and the metrics.
+     *
+     * @param cr the HTTP request of the resource.
+     * @param download the file and the segmentation of the download.
+     * @return the downloaded file, once every segment has been written.
+     * @throws ClientHandlerException if the download failed. The segments written so
+     *         far are resumed by the next download of the same resource to the same file.
+     */
+    public DownloadedFile download(final ClientRequest cr, final SegmentedDownload download)
+            throws ClientHandlerException {
+        try {
+            return new SegmentedDownloader(this, cr, download).download();
+        } catch (final ClientHandlerException e) {
+            throw e;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientHandlerException(e);
+        } catch (final Exception e) {
+            throw new ClientHandlerException(e);
+        }
     }
 
     /**
@@ -115,60 +430,621 @@ public final class AhcClientHandler implements ClientHandler {
     public ClientResponse handle(final ClientRequest cr)
             throws ClientHandlerException {
 
+        final SegmentedDownload segmented = (SegmentedDownload) cr.getProperties().get(SEGMENTED_DOWNLOAD);
+        if (segmented != null) {
+            return new DownloadResponse(200, new InBoundHeaders(), new ByteArrayInputStream(new byte[0]),
+                    getMessageBodyWorkers(), download(cr, segmented));
+        }
+
         try {
-            final RequestBuilder requestBuilder = getRequestBuilder(cr);
-            handleCookie(requestBuilder);
-            requestWriter.configureRequest(requestBuilder, cr, allowBody(cr.getMethod()));
+            final FileDownload download = (FileDownload) cr.getProperties().get(AhcConfig.PROPERTY_DOWNLOAD);
+            if (download != null) {
+                return execute(cr, getFileDownloadHandler(cr, download), true).get();
+            }
 
-            final Response response = client.executeRequest(requestBuilder.build()).get();
+            if (isShareable(cr)) {
+                final SharedResponse shared = executeShared(cr, true);
+                return getClientResponse(cr, shared.get(), new ByteArrayInputStream(shared.getBody()));
+            }
 
-            applyResponseCookies(response.getCookies());
+            if (cr.getPropertyAsFeature(AhcConfig.PROPERTY_STREAM_RESPONSE_ENTITY)) {
+                final StreamingResponseHandler handler = getStreamingResponseHandler(cr);
+                handler.setRequest(execute(cr, handler, true));
+                final ClientResponse r = handler.getResponse().get();
+                if (!r.hasEntity()) {
+                    r.bufferEntity();
+                    r.close();
+                }
+                return r;
+            }
 
-            final ClientResponse r = new ClientResponse(response.getStatusCode(),
-                    getInBoundHeaders(response),
-                    response.getResponseBodyAsStream(),
-                    workers);
-            if (!r.hasEntity()) {
-                r.bufferEntity();
-                r.close();
+            if (retryPolicy != null || hedgePolicy != null) {
+                final RetryingResponse response = executeRetrying(cr, true);
+                try {
+                    return getClientResponse(cr, response.get());
+                } catch (final InterruptedException e) {
+                    response.cancel(true);
+                    throw e;
+                }
             }
-            return r;
+
+            final Response response = cr.getPropertyAsFeature(AhcConfig.PROPERTY_CALLBACK_COMPLETION)
+                    ? executeAndWait(cr) : execute(cr, new AsyncCompletionHandlerBase(), true).get();
+            return getClientResponse(cr, response);
+        } catch (final ClientHandlerException e) {
+            throw e;
         } catch (final Exception e) {
             throw new ClientHandlerException(e);
         }
     }
 
     /**
-     * append request cookies and override existing cookies
+     * Translate the {@link ClientRequest} into a AsyncHttpClient request, and execute it
+     * without blocking the calling thread.
+     * <p/>
+     * The listener, if any, is notified by the AsyncHttpClient executor service once the
+     * response has been received, or only its headers if
+     * {@link AhcConfig#PROPERTY_STREAM_RESPONSE_ENTITY} is enabled. Failures are reported
+     * by the returned future as a {@link ClientHandlerException}.
      *
-     * @param responseCookies list of cookies from response
+     * @param cr the HTTP request.
+     * @param l the listener notified when the response is available, may be null.
+     * @return the future {@link ClientResponse}.
      */
-    private void applyResponseCookies(final List<Cookie> responseCookies) {
-        if (responseCookies != null) {
-            for (final Cookie rc : responseCookies) {
-                // remove existing cookie
-                final Iterator<Cookie> it = cookies.iterator();
-                while (it.hasNext()) {
-                    final Cookie c = it.next();
-                    if (isSame(rc, c)) {
-                        it.remove();
-                        break;
+    @Override
+    public Future<ClientResponse> handle(final ClientRequest cr, final FutureListener<ClientResponse> l) {
+        Future<ClientResponse> f;
+        try {
+            final FileDownload download = (FileDownload) cr.getProperties().get(AhcConfig.PROPERTY_DOWNLOAD);
+            if (download != null) {
+                final ListenableFuture<ClientResponse> future =
+                        execute(cr, getFileDownloadHandler(cr, download), false);
+                f = new ClientResponseFuture(future);
+                if (l != null) {
+                    future.addListener(notifier(f, l), callbackExecutor);
+                }
+                return f;
+            }
+
+            if (isShareable(cr)) {
+                return adapt(cr, executeShared(cr, false), l);
+            }
+
+            if (cr.getPropertyAsFeature(AhcConfig.PROPERTY_STREAM_RESPONSE_ENTITY)) {
+                final StreamingResponseHandler handler = getStreamingResponseHandler(cr);
+                f = new ClientResponseFuture(handler.getResponse());
+                if (l != null) {
+                    handler.setListener(notifier(f, l), callbackExecutor);
+                }
+                handler.setRequest(execute(cr, handler, false));
+                return f;
+            }
+
+            if (retryPolicy != null || hedgePolicy != null) {
+                return adapt(cr, executeRetrying(cr, false), l);
+            }
+
+            final ListenableFuture<ClientResponse> future = execute(cr, new AsyncCompletionHandler<ClientResponse>() {
+                @Override
+                public ClientResponse onCompleted(final Response response) throws Exception {
+                    final ClientResponse r = getClientResponse(cr, response);
+                    final Object c = cr.getProperties().get(Client.class.getName());
+                    if (c != null) {
+                        r.getProperties().put(Client.class.getName(), c);
+                    }
+                    return r;
+                }
+            }, false);
+            f = new ClientResponseFuture(future);
+            if (l != null) {
+                future.addListener(notifier(f, l), callbackExecutor);
+            }
+        } catch (final Exception e) {
+            final FutureTask<ClientResponse> failed = new FutureTask<ClientResponse>(new Callable<ClientResponse>() {
+                @Override
+                public ClientResponse call() throws Exception {
+                    throw e instanceof ClientHandlerException ? e : new ClientHandlerException(e);
+                }
+            });
+            failed.run();
+            f = failed;
+            if (l != null) {
+                notifier(f, l).run();
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Adapt a response completed from AHC callbacks into a future {@link ClientResponse},
+     * created and passed to the listener by the AsyncHttpClient executor service.
+     * Cancelling the future cancels the response, unless it is shared.
+     */
+    private Future<ClientResponse> adapt(final ClientRequest cr, final CallbackFuture<Response> response,
+            final FutureListener<ClientResponse> l) {
+        final boolean shared = response instanceof SharedResponse;
+        final FutureTask<ClientResponse> task = new FutureTask<ClientResponse>(new Callable<ClientResponse>() {
+            @Override
+            public ClientResponse call() throws Exception {
+                final ClientResponse r;
+                try {
+                    final Response ahcResponse = response.get();
+                    r = getClientResponse(cr, ahcResponse, shared
+                            ? new ByteArrayInputStream(((SharedResponse) response).getBody())
+                            : ahcResponse.getResponseBodyAsStream());
+                } catch (final ExecutionException e) {
+                    throw new ClientHandlerException(e.getCause());
+                }
+                final Object c = cr.getProperties().get(Client.class.getName());
+                if (c != null) {
+                    r.getProperties().put(Client.class.getName(), c);
+                }
+                return r;
+            }
+        }) {
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning) {
+                final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled && !shared) {
+                    response.cancel(mayInterruptIfRunning);
+                }
+                return cancelled;
+            }
+
+            @Override
+            protected void done() {
+                if (l != null) {
+                    notifier(this, l).run();
+                }
+            }
+        };
+        response.addListener(task, callbackExecutor);
+        return task;
+    }
+
+    private Runnable notifier(final Future<ClientResponse> f, final FutureListener<ClientResponse> l) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    l.onComplete(f);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private StreamingResponseHandler getStreamingResponseHandler(final ClientRequest cr) {
+        final Integer size = (Integer) cr.getProperties().get(AhcConfig.PROPERTY_RESPONSE_BUFFER_SIZE);
+        return new StreamingResponseHandler(size != null && size > 0 ? size : DEFAULT_RESPONSE_BUFFER_SIZE) {
+            @Override
+            protected ClientResponse createResponse(final int statusCode,
+                    final FluentCaseInsensitiveStringsMap headers, final InputStream entity) {
+                applyResponseCookies(cr.getURI(), getCookies(headers));
+
+                final ClientResponse r = new ClientResponse(statusCode, getInBoundHeaders(headers), entity,
+                        getMessageBodyWorkers());
+                final Object c = cr.getProperties().get(Client.class.getName());
+                if (c != null) {
+                    r.getProperties().put(Client.class.getName(), c);
+                }
+                return r;
+            }
+        };
+    }
+
+    private FileDownloadHandler<ClientResponse> getFileDownloadHandler(final ClientRequest cr,
+            final FileDownload download) {
+        return new FileDownloadHandler<ClientResponse>(download) {
+            @Override
+            protected ClientResponse onCompleted(final Response response, final DownloadedFile file)
+                    throws Exception {
+                final ClientResponse r;
+                if (file == null) {
+                    r = getClientResponse(cr, response);
+                } else {
+                    applyResponseCookies(cr.getURI(), response.getCookies());
+                    r = new DownloadResponse(response.getStatusCode(), getInBoundHeaders(response.getHeaders()),
+                            new ByteArrayInputStream(new byte[0]), getMessageBodyWorkers(), file);
+                }
+                final Object c = cr.getProperties().get(Client.class.getName());
+                if (c != null) {
+                    r.getProperties().put(Client.class.getName(), c);
+                }
+                return r;
+            }
+        };
+    }
+
+    private List<Cookie> getCookies(final FluentCaseInsensitiveStringsMap headers) {
+        final List<String> values = headers.get("Set-Cookie");
+        if (values == null) {
+            return null;
+        }
+        final List<Cookie> cookies = new ArrayList<Cookie>(values.size());
+        for (final String value : values) {
+            final Cookie c = CookieDecoder.decode(value);
+            if (c != null) {
+                cookies.add(c);
+            }
+        }
+        return cookies;
+    }
+
+    private ClientResponse getClientResponse(final ClientRequest cr, final Response response) throws IOException {
+        return getClientResponse(cr, response, response.getResponseBodyAsStream());
+    }
+
+    private ClientResponse getClientResponse(final ClientRequest cr, final Response response,
+            final InputStream entity) throws IOException {
+        applyResponseCookies(cr.getURI(), response.getCookies());
+
+        final ClientResponse r = new ClientResponse(response.getStatusCode(),
+                getInBoundHeaders(response.getHeaders()),
+                entity,
+                getMessageBodyWorkers());
+        if (!r.hasEntity()) {
+            r.bufferEntity();
+            r.close();
+        }
+        return r;
+    }
+
+    /**
+     * Execute a request and wait for its response on a {@link CallbackFuture}
+     * completed by the AHC handler rather than on the future of the AHC provider.
+     * The request is cancelled if the waiting thread is interrupted.
+     *
+     * @param cr the HTTP request.
+     * @return the response.
+     * @throws Exception if the request failed.
+     */
+    private Response executeAndWait(final ClientRequest cr) throws Exception {
+        final CallbackFuture<Response> response = new CallbackFuture<Response>();
+        final Future<Response> request = execute(cr, new AsyncCompletionHandlerBase() {
+            @Override
+            public Response onCompleted(final Response r) throws Exception {
+                response.set(r);
+                return r;
+            }
+
+            @Override
+            public void onThrowable(final Throwable t) {
+                response.setException(t);
+            }
+        }, true);
+        try {
+            return response.get();
+        } catch (final InterruptedException e) {
+            request.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Execute a request that is retried according to the {@link RetryPolicy} and
+     * hedged according to the {@link HedgePolicy}, if its method allows it. A request
+     * with a streamed entity is executed once, since its entity cannot be replayed,
+     * whereas a buffered entity is sent again by every attempt.
+     *
+     * @param cr the HTTP request.
+     * @param mayWait true if the caller may wait for the concurrency limit of the host.
+     * @return the response.
+     * @throws IOException if the request cannot be built.
+     */
+    private RetryingResponse executeRetrying(final ClientRequest cr, final boolean mayWait) throws IOException {
+        final RequestBuilder requestBuilder = getRequestBuilder(cr, cr.getURI());
+        handleCookie(requestBuilder, cr.getURI());
+        final AhcRequestWriter.RequestEntity entity =
+                requestWriter.configureRequest(requestBuilder, cr, allowBody(cr.getMethod()));
+        final Request request;
+        try {
+            request = requestBuilder.build();
+        } catch (final RuntimeException e) {
+            release(entity);
+            throw e;
+        }
+
+        final String method = cr.getMethod();
+        final boolean replayable = entity == null || entity.isReplayable();
+        final RetryingResponse response = new RetryingResponse(cr.getURI(),
+                replayable && retryPolicy != null && retryPolicy.isRetryable(method) ? retryPolicy : null,
+                replayable && hedgePolicy != null && hedgePolicy.isHedgeable(method) ? hedgePolicy : null) {
+            @Override
+            protected Future<Response> execute(final AsyncHandler<Response> handler, final boolean first)
+                    throws IOException {
+                // Every attempt is routed, so that a retry or a hedge may reach another endpoint.
+                final URI uri = route(cr.getURI());
+                final Request r = uri.equals(cr.getURI()) ? request
+                        : new RequestBuilder(request).setQueryParameters(null).setUrl(uri.toString()).build();
+                // Only the caller may wait, not the thread sending a retry.
+                return AhcClientHandler.this.execute(cr, uri, r, entity, handler, first && mayWait);
+            }
+        };
+        if (entity != null) {
+            response.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    entity.release();
+                }
+            }, SAME_THREAD);
+        }
+        response.start();
+        return response;
+    }
+
+    /**
+     * Check whether a request may share the response of identical concurrent requests,
+     * which is the case of GET and HEAD requests without entity when
+     * {@link AhcConfig#PROPERTY_SHARE_RESPONSES} is enabled.
+     */
+    private static boolean isShareable(final ClientRequest cr) {
+        final String method = cr.getMethod();
+        return ("GET".equals(method) || "HEAD".equals(method)) && cr.getEntity() == null
+                && cr.getPropertyAsFeature(AhcConfig.PROPERTY_SHARE_RESPONSES);
+    }
+
+    /**
+     * Execute a request unless an identical request is in flight, in which case its
+     * response is shared. Requests are identical if they have the same method, URI,
+     * headers and {@link RequestOptions};
+     * their other properties are not compared.
+     *
+     * @param cr the HTTP request.
+     * @param mayWait true if the caller may wait for the concurrency limit of the host.
+     * @return the shared response.
+     * @throws IOException if the request cannot be executed.
+     */
+    private SharedResponse executeShared(final ClientRequest cr, final boolean mayWait) throws IOException {
+        final StringBuilder sb = new StringBuilder(cr.getMethod()).append(' ').append(cr.getURI());
+        for (final Map.Entry<String, List<Object>> e : cr.getHeaders().entrySet()) {
+            sb.append('\n').append(e.getKey().toLowerCase(Locale.ENGLISH)).append(':');
+            for (final Object v : e.getValue()) {
+                sb.append(HeaderValues.toString(v)).append(',');
+            }
+        }
+        final SharedKey key = new SharedKey(sb.toString(), requestWriter.getRequestOptions(cr));
+
+        final SharedResponse shared = new SharedResponse();
+        final SharedResponse inFlight = sharedResponses.putIfAbsent(key, shared);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        try {
+            execute(cr, new AsyncCompletionHandlerBase() {
+                @Override
+                public Response onCompleted(final Response response) throws Exception {
+                    sharedResponses.remove(key, shared);
+                    shared.complete(response);
+                    return response;
+                }
+
+                @Override
+                public void onThrowable(final Throwable t) {
+                    sharedResponses.remove(key, shared);
+                    shared.setException(t);
+                }
+            }, mayWait);
+        } catch (final IOException e) {
+            sharedResponses.remove(key, shared);
+            shared.setException(e);
+            throw e;
+        } catch (final RuntimeException e) {
+            sharedResponses.remove(key, shared);
+            shared.setException(e);
+            throw e;
+        }
+        return shared;
+    }
+
+    /**
+     * Build the AHC request and execute it. A streamed request entity is written
+     * while the request is in flight and aborted once the response completes, and
+     * the buffers of a buffered entity return to their pool once the response completes.
+     * <p/>
+     * A request whose circuit is open is rejected with a {@link CircuitOpenException}.
+     * If the number of concurrent requests is limited, a request beyond the limit of
+     * its host waits for another request to complete if the caller may wait, and is
+     * rejected with a {@link ConcurrencyLimitExceededException} otherwise.
+     *
+     * @param cr the HTTP request.
+     * @param handler the AHC handler processing the response.
+     * @param mayWait true if the caller may wait for the concurrency limit of the host.
+     * @return the future of the AHC request.
+     * @throws IOException if the request cannot be executed.
+     */
+    private <T> ListenableFuture<T> execute(final ClientRequest cr, final AsyncHandler<T> handler,
+            final boolean mayWait) throws IOException {
+        final URI uri = route(cr.getURI());
+        final RequestBuilder requestBuilder = getRequestBuilder(cr, uri);
+        handleCookie(requestBuilder, cr.getURI());
+        final AhcRequestWriter.RequestEntity entity =
+                requestWriter.configureRequest(requestBuilder, cr, allowBody(cr.getMethod()));
+        try {
+            return execute(cr, uri, requestBuilder.build(), entity, handler, mayWait);
+        } finally {
+            release(entity);
+        }
+    }
+
+    private <T> ListenableFuture<T> execute(final ClientRequest cr, final URI uri, final Request request,
+            final AhcRequestWriter.RequestEntity entity, final AsyncHandler<T> handler, final boolean mayWait)
+            throws IOException {
+        CircuitBreaker.Permit permit = null;
+        if (breaker != null) {
+            try {
+                final String route = (String) cr.getProperties().get(AhcConfig.PROPERTY_CIRCUIT_ROUTE);
+                permit = breaker.acquire(uri, route);
+            } catch (final CircuitOpenException e) {
+                reject(cr.getMethod(), uri, entity, e);
+                throw e;
+            }
+        }
+        if (limiter != null) {
+            try {
+                acquire(uri, cr.getMethod(), entity, mayWait);
+            } catch (final IOException e) {
+                release(permit);
+                throw e;
+            } catch (final RuntimeException e) {
+                release(permit);
+                throw e;
+            }
+        }
+        final ClientMetrics o = CompositeClientMetrics.of(permit, observer);
+        final MeteredAsyncHandler<T> metered = o == null ? null
+                : new MeteredAsyncHandler<T>(handler, o, cr.getMethod(), uri, request.getContentLength());
+
+        final Generation g = enter();
+        if (entity != null) {
+            entity.retain();
+            entity.start(callbackExecutor);
+        }
+        try {
+            final AsyncHandler<T> h = metered != null ? metered : handler;
+            final ListenableFuture<T> future = entity != null && entity.getContinueTimeout() >= 0
+                    ? ExpectContinueFuture.execute(g.client, request, h, entity.getContinueTimeout())
+                    : g.client.executeRequest(request, h);
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (entity != null) {
+                        entity.abort(new IOException("Request completed before its entity was written"));
+                        entity.release();
                     }
+                    g.exit();
+                }
+            }, SAME_THREAD);
+            return future;
+        } catch (final IOException e) {
+            abort(entity, metered, e);
+            release(entity);
+            g.exit();
+            throw e;
+        } catch (final RuntimeException e) {
+            abort(entity, metered, e);
+            release(entity);
+            g.exit();
+            throw e;
+        }
+    }
+
+    /**
+     * Execute a request on the current {@link AsyncHttpClient}, which is not closed by
+     * a reconfiguration before the request completes.
+     */
+    <T> ListenableFuture<T> execute(final Request request, final AsyncHandler<T> handler) throws IOException {
+        final Generation g = enter();
+        try {
+            final ListenableFuture<T> future = g.client.executeRequest(request, handler);
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    g.exit();
                 }
-                // add new cookie
-                cookies.add(rc);
+            }, SAME_THREAD);
+            return future;
+        } catch (final IOException e) {
+            g.exit();
+            throw e;
+        } catch (final RuntimeException e) {
+            g.exit();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the generation of the client executing a new request, which MUST be
+     *         exited once the request completes.
+     */
+    private Generation enter() {
+        for (;;) {
+            final Generation g = generation;
+            g.inFlight.incrementAndGet();
+            if (!g.retired) {
+                return g;
             }
+            // Replaced meanwhile.
+            g.exit();
+        }
+    }
+
+    /**
+     * Rewrite the URI of a request to a service to one of its endpoints. The request
+     * itself keeps the URI of the service, so that it is routed again when it is
+     * retried or sent again.
+     *
+     * @param uri the URI of the request.
+     * @return the URI of the endpoint, or the URI itself if it is not balanced.
+     */
+    private URI route(final URI uri) {
+        return balancer != null ? balancer.route(uri) : uri;
+    }
+
+    private void acquire(final URI uri, final String method, final AhcRequestWriter.RequestEntity entity,
+            final boolean mayWait) throws IOException {
+        try {
+            limiter.acquire(uri, mayWait);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final IOException ioe = new InterruptedIOException("Interrupted while waiting for the concurrency limit of "
+                    + AdaptiveConcurrencyLimiter.getHostName(uri));
+            abort(entity, null, ioe);
+            throw ioe;
+        } catch (final ConcurrencyLimitExceededException e) {
+            reject(method, uri, entity, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Abort a request that is not sent, and report its failure to the metrics.
+     */
+    private void reject(final String method, final URI uri, final AhcRequestWriter.RequestEntity entity,
+            final RuntimeException e) {
+        abort(entity, null, e);
+        if (metrics != null) {
+            metrics.onRequestStarted(method, uri);
+            metrics.onRequestFailed(method, uri, e, 0);
+        }
+    }
+
+    private static void release(final CircuitBreaker.Permit permit) {
+        if (permit != null) {
+            permit.release();
         }
     }
 
-    private boolean isSame(final Cookie c, final Cookie o) {
-        return isEquals(c.getDomain(), o.getDomain()) &&
-                isEquals(c.getPath(), o.getPath()) &&
-                isEquals(c.getName(), o.getName());
+    private static void release(final AhcRequestWriter.RequestEntity entity) {
+        if (entity != null) {
+            entity.release();
+        }
     }
 
-    private boolean isEquals(final Object o, final Object o2) {
-        return (o == null && o2 == null) || o != null && o.equals(o2);
+    private static void abort(final AhcRequestWriter.RequestEntity entity, final MeteredAsyncHandler<?> metered,
+            final Throwable t) {
+        if (entity != null) {
+            entity.abort(t);
+        }
+        if (metered != null) {
+            metered.fail(t);
+        }
+    }
+
+    /**
+     * Store the cookies of a response.
+     *
+     * @param uri the URI of the request.
+     * @param responseCookies list of cookies from response
+     */
+    private void applyResponseCookies(final URI uri, final List<Cookie> responseCookies) {
+        if (responseCookies != null) {
+            for (final Cookie rc : responseCookies) {
+                cookieStore.add(uri, rc);
+            }
+        }
     }
 
     /**
@@ -193,9 +1069,9 @@ public final class AhcClientHandler implements ClientHandler {
      * @param cr the HTTP request.
      * @return {@link RequestBuilder}
      */
-    private RequestBuilder getRequestBuilder(final ClientRequest cr) {
+    private RequestBuilder getRequestBuilder(final ClientRequest cr, final URI requestUri) {
         final String strMethod = cr.getMethod();
-        final String uri = cr.getURI().toString();
+        final String uri = requestUri.toString();
 
         if (strMethod.equals("GET")) {
             return new RequestBuilder("GET").setUrl(uri);
@@ -214,13 +1090,17 @@ public final class AhcClientHandler implements ClientHandler {
         }
     }
 
-    private InBoundHeaders getInBoundHeaders(final Response response) {
-        final InBoundHeaders headers = new InBoundHeaders();
-        final FluentCaseInsensitiveStringsMap respHeaders = response.getHeaders();
-        for (final Map.Entry<String, List<String>> header : respHeaders) {
-            headers.put(header.getKey(), header.getValue());
-        }
-        return headers;
+    private InBoundHeaders getInBoundHeaders(final FluentCaseInsensitiveStringsMap respHeaders) {
+        return new AhcInBoundHeaders(respHeaders);
+    }
+
+    /**
+     * @return the workers of the responses, which share the readers cached by the
+     *         workers of the request writer.
+     */
+    private MessageBodyWorkers getMessageBodyWorkers() {
+        final MessageBodyWorkers w = requestWriter.getMessageBodyWorkers();
+        return w != null ? w : workers;
     }
 
     /**
@@ -233,10 +1113,83 @@ public final class AhcClientHandler implements ClientHandler {
         return requestWriter;
     }
 
-    private void handleCookie(final RequestBuilder requestBuilder) {
-        for (final Cookie c : cookies) {
+    /**
+     * Build a request of a segmented download, with the headers, the options and the
+     * cookies of the HTTP request.
+     */
+    RequestBuilder getDownloadRequestBuilder(final ClientRequest cr, final String method) {
+        final RequestBuilder requestBuilder = getRequestBuilder(cr, cr.getURI()).setMethod(method);
+        handleCookie(requestBuilder, cr.getURI());
+        requestWriter.configureRequest(requestBuilder, cr, false);
+        return requestBuilder;
+    }
+
+    private void handleCookie(final RequestBuilder requestBuilder, final URI uri) {
+        for (final Cookie c : cookieStore.get(uri)) {
             requestBuilder.addCookie(c);
         }
     }
 
+
+    /**
+     * The key of a shared response: the method, URI and headers of the request, and
+     * its options, such as its read timeout or whether it follows redirects.
+     */
+    private static final class SharedKey {
+
+        private final String request;
+
+        private final RequestOptions options;
+
+        SharedKey(final String request, final RequestOptions options) {
+            this.request = request;
+            this.options = options;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * request.hashCode() + options.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof SharedKey)) {
+                return false;
+            }
+            final SharedKey k = (SharedKey) o;
+            return request.equals(k.request) && options.equals(k.options);
+        }
+    }
+
+    /**
+     * An {@link AsyncHttpClient} and the number of its requests in flight, so that a
+     * replaced client is closed once its requests have completed.
+     */
+    private static final class Generation {
+
+        final AsyncHttpClient client;
+
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        final CountDownLatch drained = new CountDownLatch(1);
+
+        volatile boolean retired;
+
+        Generation(final AsyncHttpClient client) {
+            this.client = client;
+        }
+
+        void exit() {
+            if (inFlight.decrementAndGet() == 0 && retired) {
+                drained.countDown();
+            }
+        }
+
+        void retire() {
+            retired = true;
+            if (inFlight.get() == 0) {
+                drained.countDown();
+            }
+        }
+    }
 }
@@ -11,12 +11,41 @@
  *******************************************************************************/
 package org.sonatype.spice.jersey.client.ahc;
 
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.ws.rs.core.MultivaluedMap;
+
 import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
 import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.RequestOptions;
+import org.sonatype.spice.jersey.client.ahc.download.DownloadedFile;
+import org.sonatype.spice.jersey.client.ahc.download.SegmentedDownload;
+import org.sonatype.spice.jersey.client.ahc.metrics.ClientMetrics;
+import org.sonatype.spice.jersey.client.ahc.metrics.DefaultClientMetrics;
 
 import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.sun.jersey.api.client.AsyncWebResource;
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.async.AsyncClientHandler;
+import com.sun.jersey.api.client.async.FutureListener;
 import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.client.impl.CopyOnWriteHashMap;
+import com.sun.jersey.core.header.OutBoundHeaders;
 import com.sun.jersey.core.spi.component.ioc.IoCComponentProviderFactory;
 
 /**
@@ -37,13 +66,35 @@ import com.sun.jersey.core.spi.component.ioc.IoCComponentProviderFactory;
  * entity is not read from the response then
  * {@link com.sun.jersey.api.client.ClientResponse#close() } MUST be called
  * after processing the response to release connection-based resources.
+ * <p>
+ * The {@link AsyncWebResource} instances created by this client do not block a
+ * thread of the client executor service while waiting for a response, unless
+ * filters are in use, since a {@link com.sun.jersey.api.client.filter.ClientFilter}
+ * can only process requests synchronously.
+ * <p>
+ * The metrics, the concurrency limiter and the circuit breaker of the client are
+ * registered as MBeans in the platform MBean server, which keeps them strongly
+ * reachable until {@link #destroy()} unregisters them. A client that is garbage
+ * collected without having been destroyed leaks its MBeans.
  *
  * @author Jeanfrancois Arcand
  */
-public class AhcHttpClient extends Client {
+public class AhcHttpClient extends Client implements AsyncClientHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(AhcHttpClient.class.getName());
+
+    private static final AtomicInteger METRICS_ID = new AtomicInteger();
 
     private final AhcClientHandler clientHandler;
 
+    private final ObjectName metricsName;
+
+    private final ObjectName limiterName;
+
+    private final ObjectName circuitBreakerName;
+
+    private final WarmUpReport warmUpReport;
+
     /**
      * Create a new client instance.
      *
@@ -94,6 +145,149 @@ public class AhcHttpClient extends Client {
 
         this.clientHandler = root;
         inject(this.clientHandler.getAhcRequestWriter());
+        final ClientMetrics metrics = root.getMetrics();
+        this.metricsName = metrics instanceof DefaultClientMetrics ? register("ClientMetrics", metrics) : null;
+        this.limiterName = root.getLimiter() != null ? register("ConcurrencyLimiter", root.getLimiter()) : null;
+        this.circuitBreakerName = root.getCircuitBreaker() != null
+                ? register("CircuitBreaker", root.getCircuitBreaker()) : null;
+
+        @SuppressWarnings("unchecked")
+        final Collection<URI> warmUpUris =
+                (Collection<URI>) root.getConfig().getProperties().get(AhcConfig.PROPERTY_WARM_UP_URIS);
+        final Integer warmUpConnections =
+                (Integer) root.getConfig().getProperties().get(AhcConfig.PROPERTY_WARM_UP_CONNECTIONS);
+        this.warmUpReport = warmUpUris == null ? null
+                : root.warmUp(warmUpUris, warmUpConnections != null ? warmUpConnections : 1);
+    }
+
+    /**
+     * Register an MBean in the platform MBean server, which is unregistered by
+     * {@link #destroy()}. A failure to register is logged, since the client works
+     * without its MBeans.
+     *
+     * @param type the type of the MBean.
+     * @param mbean the MBean.
+     * @return the name of the MBean, or null if it could not be registered.
+     */
+    private static ObjectName register(final String type, final Object mbean) {
+        try {
+            final ObjectName name = new ObjectName(
+                    "org.sonatype.spice.jersey.client.ahc:type=" + type + ",id=" + METRICS_ID.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            return name;
+        } catch (final JMException e) {
+            LOGGER.log(Level.WARNING, "Unable to register the MBean " + type, e);
+        } catch (final RuntimeException e) {
+            // A security manager may deny access to the MBean server.
+            LOGGER.log(Level.WARNING, "Unable to register the MBean " + type, e);
+        }
+        return null;
+    }
+
+    private static void unregister(final ObjectName name) {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (final JMException e) {
+                // Already unregistered.
+            }
+        }
+    }
+
+    /**
+     * Get the name of the MBean of the {@link DefaultClientMetrics} of this client.
+     *
+     * @return the name of the MBean, or null if the client has no such metrics or
+     *         the MBean could not be registered.
+     */
+    public ObjectName getMetricsName() {
+        return metricsName;
+    }
+
+    /**
+     * Get the name of the MBean of the
+     * {@link org.sonatype.spice.jersey.client.ahc.limit.AdaptiveConcurrencyLimiter}
+     * of this client.
+     *
+     * @return the name of the MBean, or null if the client does not limit the number
+     *         of concurrent requests or the MBean could not be registered.
+     */
+    public ObjectName getLimiterName() {
+        return limiterName;
+    }
+
+    /**
+     * Get the name of the MBean of the
+     * {@link org.sonatype.spice.jersey.client.ahc.breaker.CircuitBreaker} of this client.
+     *
+     * @return the name of the MBean, or null if the client has no circuit breaker or
+     *         the MBean could not be registered.
+     */
+    public ObjectName getCircuitBreakerName() {
+        return circuitBreakerName;
+    }
+
+    /**
+     * Get the report of the warm-up of the connections of this client, see
+     * {@link AhcConfig#PROPERTY_WARM_UP_URIS}.
+     *
+     * @return the report, or null if the client was not warmed up when created.
+     */
+    public WarmUpReport getWarmUpReport() {
+        return warmUpReport;
+    }
+
+    /**
+     * Establish connections in advance, see
+     * {@link AhcClientHandler#warmUp(Collection, int)}.
+     *
+     * @param uris the URIs to send HEAD requests to.
+     * @param connectionsPerUri the number of requests sent in parallel to each URI.
+     * @return the report of the warm-up.
+     */
+    public WarmUpReport warmUp(final Collection<URI> uris, final int connectionsPerUri) {
+        return clientHandler.warmUp(uris, connectionsPerUri);
+    }
+
+    /**
+     * Download a resource into a file over several connections, see
+     * {@link AhcClientHandler#download(ClientRequest, SegmentedDownload)}.
+     *
+     * @param uri the URI of the resource.
+     * @param download the file and the segmentation of the download.
+     * @return the downloaded file.
+     * @throws ClientHandlerException if the download failed.
+     */
+    public DownloadedFile download(final URI uri, final SegmentedDownload download) throws ClientHandlerException {
+        return download(uri, new OutBoundHeaders(), download);
+    }
+
+    /**
+     * Download a resource into a file over several connections, see
+     * {@link AhcClientHandler#download(ClientRequest, SegmentedDownload)}.
+     * <p/>
+     * A HEAD request with the headers goes through the filters of the client before
+     * the download, so that every request of the download carries the headers added
+     * by the filters, such as credentials.
+     *
+     * @param uri the URI of the resource.
+     * @param headers the headers of every request of the download.
+     * @param download the file and the segmentation of the download.
+     * @return the downloaded file.
+     * @throws ClientHandlerException if the download failed.
+     */
+    public DownloadedFile download(final URI uri, final MultivaluedMap<String, Object> headers,
+            final SegmentedDownload download) throws ClientHandlerException {
+        final ClientRequest cr = ClientRequest.create().build(uri, "HEAD");
+        cr.getHeaders().putAll(headers);
+        cr.getProperties().put(AhcClientHandler.SEGMENTED_DOWNLOAD, download);
+        final ClientResponse response = handle(cr);
+        if (!(response instanceof DownloadResponse)) {
+            response.close();
+            throw new ClientHandlerException("HEAD " + uri + " was answered by a filter with status "
+                    + response.getStatus());
+        }
+        return response.getEntity(DownloadedFile.class);
     }
 
     /**
@@ -135,9 +329,86 @@ public class AhcHttpClient extends Client {
         return new AhcHttpClient(createDefaultClientHander(cc), provider);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public AsyncWebResource asyncResource(final URI u) {
+        return new AhcAsyncWebResource(this, (CopyOnWriteHashMap<String, Object>) getProperties(), u);
+    }
+
+    /**
+     * Handle a request asynchronously. When no filter is installed the request is
+     * directly executed by the {@link AhcClientHandler} and completes from an
+     * AsyncHttpClient callback, otherwise it is run by the client executor service.
+     *
+     * @param request the HTTP request.
+     * @param l the listener notified when the response is available, may be null.
+     * @return the future {@link ClientResponse}.
+     */
+    @Override
+    public Future<ClientResponse> handle(final ClientRequest request, final FutureListener<ClientResponse> l) {
+        if (getHeadHandler() != clientHandler) {
+            final FutureTask<ClientResponse> task = new FutureTask<ClientResponse>(new Callable<ClientResponse>() {
+                @Override
+                public ClientResponse call() throws ClientHandlerException {
+                    return AhcHttpClient.this.handle(request);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    if (l != null) {
+                        try {
+                            l.onComplete(this);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            };
+            getExecutorService().submit(task);
+            return task;
+        }
+
+        request.getProperties().putAll(getProperties());
+        request.getProperties().put(Client.class.getName(), this);
+        return clientHandler.handle(request, l);
+    }
+
+    /**
+     * Execute requests concurrently, with at most a given number of requests in
+     * flight per host. The requests beyond the limit are started in the order of the
+     * collection as the previous requests to the same host complete.
+     *
+     * @param requests the HTTP requests.
+     * @param maxConcurrencyPerHost the maximum number of requests in flight per host.
+     * @return the future responses, in the order of the requests.
+     */
+    public List<Future<ClientResponse>> handleAll(final Collection<ClientRequest> requests,
+            final int maxConcurrencyPerHost) {
+        return handleAll(requests, maxConcurrencyPerHost, null);
+    }
+
+    /**
+     * Execute requests concurrently, with at most a given number of requests in
+     * flight per host. The requests beyond the limit are started in the order of the
+     * collection as the previous requests to the same host complete.
+     *
+     * @param requests the HTTP requests.
+     * @param maxConcurrencyPerHost the maximum number of requests in flight per host.
+     * @param l the listener notified of each response as it completes, may be null.
+     * @return the future responses, in the order of the requests.
+     */
+    public List<Future<ClientResponse>> handleAll(final Collection<ClientRequest> requests,
+            final int maxConcurrencyPerHost, final FutureListener<ClientResponse> l) {
+        return new Batch(this, maxConcurrencyPerHost, l).execute(requests);
+    }
+
     @Override
     public void destroy(){
         try{
+            // Unregistered first, since closing the AHC client may fail.
+            unregister(metricsName);
+            unregister(limiterName);
+            unregister(circuitBreakerName);
             clientHandler.getHttpClient().close();
         } finally {
             super.destroy();
@@ -173,18 +444,74 @@ public class AhcHttpClient extends Client {
         }
     }
 
+    /**
+     * Set whether the requests of this client follow redirects. The setting applies to
+     * the requests sent from now on.
+     *
+     * @param redirect true if redirects are followed.
+     */
     @Override
     public void setFollowRedirects(final Boolean redirect) {
-        clientHandler.getConfig().getAsyncHttpClientConfigBuilder().setFollowRedirects(redirect);
+        super.setFollowRedirects(redirect);
+        final RequestOptions options = (RequestOptions) getProperties().get(AhcConfig.PROPERTY_REQUEST_OPTIONS);
+        if (options != null) {
+            getProperties().put(AhcConfig.PROPERTY_REQUEST_OPTIONS, options.withFollowRedirects(redirect));
+        }
     }
 
+    /**
+     * Set the read timeout of the requests of this client. The setting applies to the
+     * requests sent from now on.
+     *
+     * @param interval the read timeout in milliseconds.
+     */
     @Override
     public void setReadTimeout(final Integer interval) {
-        clientHandler.getConfig().getAsyncHttpClientConfigBuilder().setRequestTimeoutInMs(interval);
+        super.setReadTimeout(interval);
+        final RequestOptions options = (RequestOptions) getProperties().get(AhcConfig.PROPERTY_REQUEST_OPTIONS);
+        if (options != null) {
+            getProperties().put(AhcConfig.PROPERTY_REQUEST_OPTIONS, options.withReadTimeout(interval));
+        }
     }
 
+    /**
+     * Set the connect timeout of the requests of this client. Since the connect
+     * timeout is a setting of the {@link AsyncHttpClient}, the client is
+     * {@link #reconfigure(AsyncHttpClientConfig) reconfigured}.
+     *
+     * @param interval the connect timeout in milliseconds.
+     */
     @Override
     public void setConnectTimeout(final Integer interval) {
-        clientHandler.getConfig().getAsyncHttpClientConfigBuilder().setConnectionTimeoutInMs(interval);
+        super.setConnectTimeout(interval);
+        reconfigure(newAsyncHttpClientConfigBuilder().setConnectionTimeoutInMs(interval).build());
+    }
+
+    /**
+     * Create a builder of the configuration of a new {@link AsyncHttpClient} with the
+     * settings of the current one, except for its executor service and connections
+     * pool, which are closed with it.
+     *
+     * @return the builder.
+     */
+    public AsyncHttpClientConfig.Builder newAsyncHttpClientConfigBuilder() {
+        return new AsyncHttpClientConfig.Builder(clientHandler.getHttpClient().getConfig())
+                .setExecutorService(null)
+                .setConnectionsPool(null);
+    }
+
+    /**
+     * Replace the {@link AsyncHttpClient} of this client by a new one with the given
+     * configuration, for instance to change its timeouts or the size of its
+     * connections pool while requests are in flight. The requests in flight complete
+     * on the replaced client, which is closed once they have completed, while new
+     * requests are executed by the new client.
+     *
+     * @param config the configuration of the new client, which MUST NOT share the
+     *        executor service nor the connections pool of the current client, see
+     *        {@link #newAsyncHttpClientConfigBuilder()}.
+     */
+    public void reconfigure(final AsyncHttpClientConfig config) {
+        clientHandler.reconfigure(config);
     }
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.sun.jersey.core.header.InBoundHeaders;
+
+/**
+ * {@link InBoundHeaders} reading through the headers of an AHC response.
+ * <p/>
+ * Lookups are answered by the AHC map, which is already case insensitive, so that
+ * a response whose headers are only queried by name never copies them. The
+ * headers are copied into this map the first time they are modified or iterated,
+ * after which the AHC map is no longer used.
+ */
+final class AhcInBoundHeaders extends InBoundHeaders {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient FluentCaseInsensitiveStringsMap source;
+
+    AhcInBoundHeaders(final FluentCaseInsensitiveStringsMap source) {
+        this.source = source;
+    }
+
+    private void materialize() {
+        final FluentCaseInsensitiveStringsMap s = source;
+        if (s != null) {
+            source = null;
+            for (final Map.Entry<String, List<String>> e : s) {
+                super.put(e.getKey(), new ArrayList<String>(e.getValue()));
+            }
+        }
+    }
+
+    @Override
+    public List<String> get(final Object key) {
+        final FluentCaseInsensitiveStringsMap s = source;
+        return s != null ? s.get(key) : super.get(key);
+    }
+
+    @Override
+    public String getFirst(final String key) {
+        final FluentCaseInsensitiveStringsMap s = source;
+        return s != null ? s.getFirstValue(key) : super.getFirst(key);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        final FluentCaseInsensitiveStringsMap s = source;
+        return s != null ? s.containsKey(key) : super.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        final FluentCaseInsensitiveStringsMap s = source;
+        return s != null ? s.containsValue(value) : super.containsValue(value);
+    }
+
+    @Override
+    public int size() {
+        final FluentCaseInsensitiveStringsMap s = source;
+        return s != null ? s.size() : super.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        final FluentCaseInsensitiveStringsMap s = source;
+        return s != null ? s.isEmpty() : super.isEmpty();
+    }
+
+    @Override
+    public Set<Map.Entry<String, List<String>>> entrySet() {
+        materialize();
+        return super.entrySet();
+    }
+
+    @Override
+    public List<String> put(final String key, final List<String> value) {
+        materialize();
+        return super.put(key, value);
+    }
+
+    @Override
+    public void putAll(final Map<? extends String, ? extends List<String>> m) {
+        materialize();
+        super.putAll(m);
+    }
+
+    @Override
+    public List<String> remove(final Object key) {
+        materialize();
+        return super.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        source = null;
+        super.clear();
+    }
+
+    @Override
+    public void add(final String key, final String value) {
+        materialize();
+        super.add(key, value);
+    }
+
+    @Override
+    public void putSingle(final String key, final String value) {
+        materialize();
+        super.putSingle(key, value);
+    }
+
+    @Override
+    public Object clone() {
+        materialize();
+        return super.clone();
+    }
+}
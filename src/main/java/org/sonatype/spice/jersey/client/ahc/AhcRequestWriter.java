@@ -11,25 +11,35 @@
  *******************************************************************************/
 package org.sonatype.spice.jersey.client.ahc;
 
-import static com.sun.jersey.api.client.ClientRequest.getHeaderValue;
-
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 
+import org.sonatype.spice.jersey.client.ahc.buffer.BufferPool;
+import org.sonatype.spice.jersey.client.ahc.buffer.PooledOutputStream;
 import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.RequestOptions;
 
-import com.ning.http.client.PerRequestConfig;
 import com.ning.http.client.Request;
 import com.ning.http.client.RequestBuilder;
 import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientRequest;
 import com.sun.jersey.api.client.CommittingOutputStream;
 import com.sun.jersey.api.client.RequestWriter;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.spi.MessageBodyWorkers;
 
 /**
  * An implementation of {@link RequestWriter} that also configure the AHC {@link RequestBuilder}
@@ -38,53 +48,507 @@ import com.sun.jersey.api.client.RequestWriter;
  */
 public class AhcRequestWriter extends RequestWriter {
 
-    public void configureRequest(final RequestBuilder requestBuilder, final ClientRequest cr, final boolean needsBody) {
-        final Map<String, Object> props = cr.getProperties();
+    /**
+     * Size of the buffer between a streamed entity and the connection when
+     * {@link ClientConfig#PROPERTY_CHUNKED_ENCODING_SIZE} is not set.
+     */
+    private static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    private final boolean frameChunks;
+
+    /**
+     * The options last resolved from the properties of a request, reused while the
+     * properties do not change.
+     */
+    private volatile RequestOptions options;
+
+    /**
+     * The read timeout of the client, bounding the wait for the bytes of a streamed
+     * entity of a request without read timeout.
+     */
+    private volatile int defaultReadTimeout = -1;
+
+    public AhcRequestWriter() {
+        this(true);
+    }
+
+    /**
+     * @param frameChunks true if the AHC provider expects chunk framing to be part of
+     *        the bytes produced by a {@link com.ning.http.client.Body} of unknown length,
+     *        as the Netty provider does.
+     */
+    AhcRequestWriter(final boolean frameChunks) {
+        this.frameChunks = frameChunks;
+    }
 
-        // Set the read timeout
-        final Integer readTimeout = (Integer) props.get(AhcConfig.PROPERTY_READ_TIMEOUT);
-        if (readTimeout != null) {
-            final PerRequestConfig c = new PerRequestConfig();
-            c.setRequestTimeoutInMs(readTimeout);
-            requestBuilder.setPerRequestConfig(c);
+    /**
+     * Get the workers of this writer, which cache the readers and the writers they
+     * resolve. Workers set or injected since the last call are wrapped with a new
+     * cache, so that providers that changed are never hidden by the resolutions of the
+     * previous ones.
+     *
+     * @return the caching workers, or null if the workers have not been set.
+     */
+    @Override
+    public MessageBodyWorkers getMessageBodyWorkers() {
+        final MessageBodyWorkers workers = super.getMessageBodyWorkers();
+        if (workers == null || workers instanceof CachingMessageBodyWorkers) {
+            return workers;
         }
+        final MessageBodyWorkers cached = new CachingMessageBodyWorkers(workers);
+        setMessageBodyWorkers(cached);
+        return cached;
+    }
+
+    @Override
+    protected RequestEntityWriter getRequestEntityWriter(final ClientRequest cr) {
+        // The writer is resolved with the workers held by RequestWriter, which must cache.
+        getMessageBodyWorkers();
+        return super.getRequestEntityWriter(cr);
+    }
+
+    /**
+     * @param timeoutMillis the read timeout of the client in milliseconds, or -1 if
+     *        requests do not time out.
+     */
+    void setDefaultReadTimeout(final int timeoutMillis) {
+        defaultReadTimeout = timeoutMillis;
+    }
+
+    /**
+     * Resolve the options of a request, reusing the options last resolved if
+     * they are equal.
+     *
+     * @param cr the HTTP request.
+     * @return the options of the request.
+     */
+    RequestOptions getRequestOptions(final ClientRequest cr) {
+        final RequestOptions o = RequestOptions.resolve(cr.getProperties(), options);
+        options = o;
+        return o;
+    }
+
+    /**
+     * Configure the {@link RequestBuilder} from the {@link ClientRequest}.
+     * <p/>
+     * If {@link AhcConfig#PROPERTY_STREAM_REQUEST_ENTITY} is enabled the entity is not
+     * serialized here. Instead a {@link PipedEntity} is returned, which must be
+     * {@link PipedEntity#start(Executor) started} before the request is executed.
+     * Otherwise the entity is serialized into buffers of the {@link BufferPool} and a
+     * {@link BufferedEntity} is returned, which must be {@link RequestEntity#release()
+     * released} once the request completes.
+     * <p/>
+     * If {@link AhcConfig#PROPERTY_REQUEST_COMPRESSION} is set the entity is compressed,
+     * unless it is smaller than {@link AhcConfig#PROPERTY_REQUEST_COMPRESSION_THRESHOLD}
+     * or already has a content coding.
+     * <p/>
+     * An entity that is a {@link File}, a {@link FileInputStream} or a {@link FileChannel}
+     * is sent from the file by AHC without being read into memory, unless a filter
+     * adapts the entity or the entity is compressed. A {@link FileEntity} is returned,
+     * which closes the stream or the channel once it is released.
+     * <p/>
+     * If the size of a buffered or file entity reaches
+     * {@link AhcConfig#PROPERTY_EXPECT_CONTINUE_THRESHOLD} the request is sent with
+     * "Expect: 100-continue", and the entity tells the
+     * {@link RequestEntity#getContinueTimeout() timeout} of the expectation.
+     *
+     * @param requestBuilder the AHC request builder.
+     * @param cr the HTTP request.
+     * @param needsBody true if the method allows a request entity.
+     * @return the entity, or null if the request has no entity.
+     */
+    public RequestEntity configureRequest(final RequestBuilder requestBuilder, final ClientRequest cr, final boolean needsBody) {
+        final RequestOptions o = getRequestOptions(cr);
+        o.configure(requestBuilder);
+
         if (cr.getEntity() != null && needsBody) {
+            final FileEntity file = configureFileEntity(requestBuilder, cr, o);
+            if (file != null) {
+                return file;
+            }
+
             final RequestEntityWriter re = getRequestEntityWriter(cr);
 
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            if (cr.getPropertyAsFeature(AhcConfig.PROPERTY_STREAM_REQUEST_ENTITY)) {
+                return configureStreamedEntity(requestBuilder, cr, o, re);
+            }
+
+            final BufferPool pool = getBufferPool(cr);
+            final PooledOutputStream buffer = pool.newOutputStream(re.getSize());
             try {
-                re.writeRequestEntity(new CommittingOutputStream(baos) {
+                re.writeRequestEntity(new CommittingOutputStream(buffer) {
                     @Override
                     protected void commit() throws IOException {
                         configureHeaders(cr.getHeaders(), requestBuilder);
                     }
                 });
             } catch (final IOException ex) {
+                buffer.release();
                 throw new ClientHandlerException(ex);
+            } catch (final RuntimeException ex) {
+                buffer.release();
+                throw ex;
             }
 
-            final byte[] content = baos.toByteArray();
-            requestBuilder.setBody(new Request.EntityWriter() {
-                @Override
-                public void writeEntity(final OutputStream out) throws IOException {
-                    out.write(content);
-                }
-            });
+            final PooledOutputStream content = compress(requestBuilder, cr, o, pool, buffer);
+            final BufferedEntity entity = new BufferedEntity(content);
+            if (expectContinue(requestBuilder, o, content.size())) {
+                requestBuilder.setBody(new PooledBodyGenerator(content));
+                entity.continueTimeout = o.getExpectContinueTimeout();
+            } else {
+                requestBuilder.setBody(new Request.EntityWriter() {
+                    @Override
+                    public void writeEntity(final OutputStream out) throws IOException {
+                        content.writeTo(out);
+                    }
+                }, content.size());
+            }
+            return entity;
+        }
+        configureHeaders(cr.getHeaders(), requestBuilder);
+        return null;
+    }
+
+    /**
+     * Configure the body of a request whose entity is a file.
+     *
+     * @return the entity, or null if the entity is not a file or must be written by
+     *         a {@link javax.ws.rs.ext.MessageBodyWriter}.
+     */
+    private FileEntity configureFileEntity(final RequestBuilder requestBuilder, final ClientRequest cr,
+            final RequestOptions o) {
+        final Object entity = cr.getEntity();
+        final File file = entity instanceof File ? (File) entity : null;
+        final FileChannel channel = entity instanceof FileInputStream ? ((FileInputStream) entity).getChannel()
+                : entity instanceof FileChannel ? (FileChannel) entity : null;
+        if (file == null && channel == null) {
+            return null;
+        }
+
+        final long position;
+        final long size;
+        try {
+            position = channel != null ? channel.position() : 0;
+            size = channel != null ? channel.size() - position : file.length();
+        } catch (final IOException ex) {
+            throw new ClientHandlerException(ex);
+        }
+        // A request without a filter adapting its entity is its own adapter.
+        final boolean adapted = cr.getAdapter() != null && cr.getAdapter() != cr;
+        if (adapted || getRequestCompression(cr, o) != null && size >= o.getCompressionThreshold()) {
+            if (entity instanceof FileChannel) {
+                // There is no MessageBodyWriter of FileChannel.
+                cr.setEntity(Channels.newInputStream(channel));
+            }
+            return null;
+        }
+
+        final MultivaluedMap<String, Object> headers = cr.getHeaders();
+        if (!headers.containsKey(HttpHeaders.CONTENT_TYPE)) {
+            headers.putSingle(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_TYPE);
+        }
+        configureHeaders(headers, requestBuilder);
+        final boolean expectContinue = expectContinue(requestBuilder, o, size);
+        if (file != null && !expectContinue) {
+            requestBuilder.setBody(file);
+            return new FileEntity(null);
+        }
+
+        final FileEntity fileEntity;
+        if (file != null) {
+            // AHC defers the body until "100 Continue" only if it is generated.
+            final FileInputStream in;
+            try {
+                in = new FileInputStream(file);
+            } catch (final IOException ex) {
+                throw new ClientHandlerException(ex);
+            }
+            requestBuilder.setBody(new FileChannelBodyGenerator(in.getChannel(), 0, size));
+            fileEntity = new FileEntity(in);
         } else {
-            configureHeaders(cr.getHeaders(), requestBuilder);
+            requestBuilder.setBody(new FileChannelBodyGenerator(channel, position, size));
+            fileEntity = new FileEntity(entity instanceof FileInputStream ? (Closeable) entity : channel);
+        }
+        if (expectContinue) {
+            fileEntity.continueTimeout = o.getExpectContinueTimeout();
+        }
+        return fileEntity;
+    }
+
+    /**
+     * Send the request with "Expect: 100-continue" if its entity is large enough.
+     *
+     * @return true if the request expects to continue, in which case its body MUST be
+     *         set as a {@link com.ning.http.client.BodyGenerator}, since AHC defers
+     *         no other body until the server answers "100 Continue".
+     */
+    private static boolean expectContinue(final RequestBuilder requestBuilder, final RequestOptions o,
+            final long size) {
+        final int threshold = o.getExpectContinueThreshold();
+        if (threshold < 0 || size < threshold) {
+            return false;
+        }
+        requestBuilder.setHeader("Expect", "100-continue");
+        return true;
+    }
+
+    private PipedEntity configureStreamedEntity(final RequestBuilder requestBuilder, final ClientRequest cr,
+            final RequestOptions o, final RequestEntityWriter re) {
+        final MultivaluedMap<String, Object> headers = cr.getHeaders();
+        configureHeaders(headers, requestBuilder);
+
+        final Integer chunkSize = (Integer) cr.getProperties().get(ClientConfig.PROPERTY_CHUNKED_ENCODING_SIZE);
+        final BoundedPipe pipe = new BoundedPipe(chunkSize != null && chunkSize > 0 ? chunkSize : DEFAULT_PIPE_SIZE);
+
+        String encoding = getRequestCompression(cr, o);
+        if (encoding != null && re.getSize() != -1 && re.getSize() < o.getCompressionThreshold()) {
+            encoding = null;
         }
+        if (encoding != null) {
+            requestBuilder.addHeader(HttpHeaders.CONTENT_ENCODING, encoding);
+        }
+
+        // An adapter installed by a filter that encodes the entity changes its length.
+        final long size = headers.containsKey(HttpHeaders.CONTENT_ENCODING) || encoding != null ? -1 : re.getSize();
+        final Integer readTimeout = o.getReadTimeout();
+        requestBuilder.setBody(new PipedBodyGenerator(pipe, size, frameChunks,
+                readTimeout != null ? readTimeout : defaultReadTimeout));
+        return new PipedEntity(pipe, re, encoding);
+    }
+
+    /**
+     * Compress a buffered entity if it is large enough. The buffer of the
+     * uncompressed entity is released if it is compressed, and on failure.
+     *
+     * @return the entity to send.
+     */
+    private PooledOutputStream compress(final RequestBuilder requestBuilder, final ClientRequest cr,
+            final RequestOptions o, final BufferPool pool, final PooledOutputStream content) {
+        final String encoding;
+        try {
+            encoding = getRequestCompression(cr, o);
+        } catch (final ClientHandlerException ex) {
+            content.release();
+            throw ex;
+        }
+        if (encoding == null || content.size() < o.getCompressionThreshold()) {
+            return content;
+        }
+        final PooledOutputStream compressed = pool.newOutputStream(content.size() / 4);
+        try {
+            final OutputStream out = CompressingOutputStream.create(compressed, encoding);
+            content.writeTo(out);
+            out.close();
+        } catch (final IOException ex) {
+            compressed.release();
+            throw new ClientHandlerException(ex);
+        } finally {
+            content.release();
+        }
+        requestBuilder.addHeader(HttpHeaders.CONTENT_ENCODING, encoding);
+        return compressed;
+    }
+
+    /**
+     * @return the content coding compressing the entity, or null if the entity is
+     *         not compressed by this writer.
+     */
+    private static String getRequestCompression(final ClientRequest cr, final RequestOptions o) {
+        final String encoding = o.getRequestCompression();
+        if (encoding == null || cr.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            return null;
+        }
+        if (!CompressingOutputStream.isSupported(encoding)) {
+            throw new ClientHandlerException("Unsupported request content coding: " + encoding);
+        }
+        return encoding;
+    }
+
+    private static BufferPool getBufferPool(final ClientRequest cr) {
+        final BufferPool pool = (BufferPool) cr.getProperties().get(AhcConfig.PROPERTY_BUFFER_POOL);
+        return pool != null ? pool : BufferPool.getDefault();
     }
 
     private void configureHeaders(final MultivaluedMap<String, Object> metadata, final RequestBuilder requestBuilder) {
         for (final Map.Entry<String, List<Object>> e : metadata.entrySet()) {
             final List<Object> vs = e.getValue();
             for (final Object o : vs) {
-                if (String.class.isAssignableFrom( o.getClass() )) {
-                    requestBuilder.addHeader(e.getKey(), o.toString());
-                } else {
-                    requestBuilder.addHeader(e.getKey(), getHeaderValue(o));
+                requestBuilder.addHeader(e.getKey(), HeaderValues.toString(o));
+            }
+        }
+    }
+
+    /**
+     * A request entity returned by {@link AhcRequestWriter#configureRequest(RequestBuilder,
+     * ClientRequest, boolean)}. Each execution of the request holds a reference to the
+     * entity, and the resources of the entity are freed once every reference,
+     * including the one of the caller of configureRequest, is released.
+     */
+    public abstract static class RequestEntity {
+
+        int continueTimeout = -1;
+
+        RequestEntity() {
+        }
+
+        /**
+         * Start writing the entity, if it is written while the request is sent.
+         *
+         * @param executor the executor running the {@link javax.ws.rs.ext.MessageBodyWriter}.
+         */
+        public void start(final Executor executor) {
+        }
+
+        /**
+         * Stop writing the entity, for instance because the request failed or the
+         * server answered before reading it.
+         *
+         * @param cause the reason of the abort.
+         */
+        public void abort(final Throwable cause) {
+        }
+
+        /**
+         * @return true if the request may be sent again with this entity.
+         */
+        public boolean isReplayable() {
+            return true;
+        }
+
+        /**
+         * @return the time in milliseconds to wait for the server to answer a request
+         *         sent with "Expect: 100-continue" before sending it again without the
+         *         expectation, or -1 if the request is sent without it.
+         */
+        public int getContinueTimeout() {
+            return continueTimeout;
+        }
+
+        /**
+         * Acquire a reference to the entity.
+         */
+        public void retain() {
+        }
+
+        /**
+         * Release a reference to the entity.
+         */
+        public void release() {
+        }
+    }
+
+    /**
+     * A request entity serialized into buffers of a {@link BufferPool}, which return
+     * to the pool once the entity is released by every execution of the request.
+     */
+    public static final class BufferedEntity extends RequestEntity {
+
+        private final PooledOutputStream content;
+
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        BufferedEntity(final PooledOutputStream content) {
+            this.content = content;
+        }
+
+        @Override
+        public void retain() {
+            references.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                content.release();
+            }
+        }
+    }
+
+    /**
+     * A request entity sent from a file. The stream or the channel of the file, if
+     * any, is closed once the entity is released by every execution of the request.
+     */
+    public static final class FileEntity extends RequestEntity {
+
+        private final Closeable closeable;
+
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        FileEntity(final Closeable closeable) {
+            this.closeable = closeable;
+        }
+
+        @Override
+        public void retain() {
+            references.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+            if (references.decrementAndGet() == 0 && closeable != null) {
+                try {
+                    closeable.close();
+                } catch (final IOException e) {
+                    // The file was read.
                 }
             }
         }
     }
+
+    /**
+     * A request entity that is serialized into the connection while the request is
+     * being sent. It cannot be replayed.
+     */
+    public static final class PipedEntity extends RequestEntity {
+
+        private final BoundedPipe pipe;
+
+        private final RequestEntityWriter writer;
+
+        private final String encoding;
+
+        PipedEntity(final BoundedPipe pipe, final RequestEntityWriter writer, final String encoding) {
+            this.pipe = pipe;
+            this.writer = writer;
+            this.encoding = encoding;
+        }
+
+        /**
+         * Start writing the entity. The entity is written by the executor since
+         * AHC may read the body from the thread that executes the request.
+         */
+        @Override
+        public void start(final Executor executor) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CompressingOutputStream compressing = null;
+                    try {
+                        OutputStream out = pipe.getOutputStream();
+                        if (encoding != null) {
+                            compressing = CompressingOutputStream.create(out, encoding);
+                            out = compressing;
+                        }
+                        writer.writeRequestEntity(out);
+                        out.close();
+                    } catch (final Throwable t) {
+                        pipe.abort(t);
+                        if (compressing != null) {
+                            compressing.discard();
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void abort(final Throwable cause) {
+            pipe.abort(cause);
+        }
+
+        @Override
+        public boolean isReplayable() {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.async.AsyncClientHandler;
+import com.sun.jersey.api.client.async.FutureListener;
+
+/**
+ * Executes a batch of requests asynchronously, with at most a given number of
+ * requests in flight per host. The requests beyond the limit wait in the order of
+ * the batch and are started as the requests to the same host complete.
+ */
+final class Batch {
+
+    private final AsyncClientHandler handler;
+
+    private final int maxPerHost;
+
+    private final FutureListener<ClientResponse> listener;
+
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+    /**
+     * The requests allowed to start, started one after the other by the thread
+     * draining them.
+     */
+    private final LinkedList<Item> ready = new LinkedList<Item>();
+
+    private boolean draining;
+
+    Batch(final AsyncClientHandler handler, final int maxPerHost, final FutureListener<ClientResponse> listener) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("The concurrency per host must be positive: " + maxPerHost);
+        }
+        this.handler = handler;
+        this.maxPerHost = maxPerHost;
+        this.listener = listener;
+    }
+
+    /**
+     * Execute the requests.
+     *
+     * @param requests the requests.
+     * @return the futures of the responses, in the order of the requests.
+     */
+    List<Future<ClientResponse>> execute(final Collection<ClientRequest> requests) {
+        final List<Future<ClientResponse>> futures = new ArrayList<Future<ClientResponse>>(requests.size());
+        synchronized (this) {
+            for (final ClientRequest request : requests) {
+                final Item r = new Item(request);
+                futures.add(r);
+
+                Host h = hosts.get(r.host);
+                if (h == null) {
+                    h = new Host();
+                    hosts.put(r.host, h);
+                }
+                if (h.running < maxPerHost) {
+                    h.running++;
+                    ready.add(r);
+                } else {
+                    h.pending.add(r);
+                }
+            }
+        }
+        drain();
+        return futures;
+    }
+
+    /**
+     * Start the ready requests, unless another thread is already starting them. A
+     * request failing synchronously completes while it is started, and releases its
+     * host before the next request is started, so the requests are started in a loop
+     * rather than from the completion of the previous request.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        for (;;) {
+            final Item r;
+            synchronized (this) {
+                r = ready.poll();
+                if (r == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            boolean started = false;
+            try {
+                start(r);
+                started = true;
+            } finally {
+                if (!started) {
+                    synchronized (this) {
+                        draining = false;
+                    }
+                }
+            }
+        }
+    }
+
+    private void start(final Item r) {
+        if (r.isCancelled()) {
+            release(r.host);
+            return;
+        }
+        r.request = handler.handle(r.clientRequest, new FutureListener<ClientResponse>() {
+            @Override
+            public void onComplete(final Future<ClientResponse> f) {
+                r.complete(f);
+                release(r.host);
+            }
+        });
+        if (r.isCancelled()) {
+            r.request.cancel(true);
+        }
+    }
+
+    private void release(final String host) {
+        final Item next;
+        synchronized (this) {
+            final Host h = hosts.get(host);
+            next = h.pending.poll();
+            if (next == null) {
+                h.running--;
+            } else {
+                ready.add(next);
+            }
+        }
+        if (next != null) {
+            drain();
+        }
+    }
+
+    private static String getHost(final URI uri) {
+        return uri.getScheme() + "://" + uri.getHost() + ':' + uri.getPort();
+    }
+
+    private static final class Host {
+
+        private int running;
+
+        private final LinkedList<Item> pending = new LinkedList<Item>();
+    }
+
+    private final class Item extends CallbackFuture<ClientResponse> {
+
+        private final ClientRequest clientRequest;
+
+        private final String host;
+
+        private volatile Future<ClientResponse> request;
+
+        Item(final ClientRequest clientRequest) {
+            this.clientRequest = clientRequest;
+            this.host = getHost(clientRequest.getURI());
+        }
+
+        void complete(final Future<ClientResponse> f) {
+            try {
+                set(f.get());
+            } catch (final ExecutionException e) {
+                setException(e.getCause());
+            } catch (final CancellationException e) {
+                cancel(false);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                setException(e);
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            final Future<ClientResponse> r = request;
+            if (cancelled && r != null) {
+                r.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            super.done();
+            if (listener != null) {
+                try {
+                    listener.onComplete(this);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
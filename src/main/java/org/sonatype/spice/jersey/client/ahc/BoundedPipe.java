@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed size, thread safe byte pipe between exactly one producer and one consumer.
+ * <p/>
+ * Unlike {@link java.io.PipedInputStream} the pipe does not track the identity of
+ * the threads using it, so the producer and the consumer may hop between threads
+ * (which is what happens with Netty I/O workers and AHC callback pools).
+ * A producer writing into a full pipe blocks until the consumer catches up, which
+ * keeps the memory held by an in-flight entity bounded by the pipe capacity.
+ * <p/>
+ * Either side can {@link #abort(Throwable)} the pipe; the other side then fails with an
+ * {@link IOException} whose cause is the abort reason.
+ */
+final class BoundedPipe {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final byte[] buffer;
+
+    private int head;
+
+    private int count;
+
+    private boolean closed;
+
+    private Throwable failure;
+
+    private final InputStream in = new PipeInputStream();
+
+    private final OutputStream out = new PipeOutputStream();
+
+    BoundedPipe(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * @return the consumer side of the pipe.
+     */
+    InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * @return the producer side of the pipe. Closing it signals the end of the data.
+     */
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Fail both sides of the pipe. Calling this method after the pipe has already
+     * been aborted has no effect.
+     *
+     * @param cause the reason of the failure.
+     */
+    void abort(final Throwable cause) {
+        lock.lock();
+        try {
+            if (failure == null) {
+                failure = cause != null ? cause : new IOException("Pipe aborted");
+            }
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read up to {@code len} bytes, blocking until at least one byte is available or
+     * the producer closed the pipe.
+     */
+    int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            while (count == 0) {
+                checkFailure();
+                if (closed) {
+                    return -1;
+                }
+                await(notEmpty);
+            }
+            checkFailure();
+
+            final int n = Math.min(len, count);
+            final int first = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            if (first < n) {
+                System.arraycopy(buffer, 0, b, off + first, n - first);
+            }
+            consume(n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read up to {@code len} bytes into a buffer, waiting for them as
+     * {@link #await(long)} does.
+     *
+     * @return the number of bytes read, or -1 if the producer closed the pipe.
+     */
+    int read(final ByteBuffer dst, final int len, final long timeoutMillis) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            if (await(timeoutMillis) == -1) {
+                return -1;
+            }
+            final int n = Math.min(len, count);
+            final int first = Math.min(n, buffer.length - head);
+            dst.put(buffer, head, first);
+            if (first < n) {
+                dst.put(buffer, 0, n - first);
+            }
+            consume(n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until at least one byte is available or the producer closed the pipe. A
+     * consumer waiting longer than the timeout aborts the pipe.
+     *
+     * @param timeoutMillis the maximum time to wait in milliseconds, or zero or a
+     *        negative value to wait indefinitely.
+     * @return the number of bytes available, or -1 if the producer closed the pipe.
+     * @throws IOException if the pipe was aborted or the wait timed out.
+     */
+    int await(final long timeoutMillis) throws IOException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (count == 0) {
+                checkFailure();
+                if (closed) {
+                    return -1;
+                }
+                if (timeoutMillis <= 0) {
+                    await(notEmpty);
+                } else if (nanos > 0) {
+                    nanos = awaitNanos(notEmpty, nanos);
+                } else {
+                    final IOException e = new IOException("Nothing written to the pipe for " + timeoutMillis + " ms");
+                    abort(e);
+                    throw e;
+                }
+            }
+            checkFailure();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void consume(final int n) {
+        head = (head + n) % buffer.length;
+        count -= n;
+        notFull.signalAll();
+    }
+
+    /**
+     * Write {@code len} bytes, blocking while the pipe is full.
+     */
+    void write(final byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            while (len > 0) {
+                while (count == buffer.length) {
+                    checkFailure();
+                    await(notFull);
+                }
+                checkFailure();
+                if (closed) {
+                    throw new IOException("Pipe closed");
+                }
+
+                final int tail = (head + count) % buffer.length;
+                final int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(b, off, buffer, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notEmpty.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int available() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            final IOException e = new IOException("Pipe aborted: " + failure.getMessage());
+            e.initCause(failure);
+            throw e;
+        }
+    }
+
+    private void await(final Condition c) throws IOException {
+        try {
+            c.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private long awaitNanos(final Condition c, final long nanos) throws IOException {
+        try {
+            return c.awaitNanos(nanos);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private final class PipeInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return BoundedPipe.this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            return BoundedPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return BoundedPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            // Unblock a producer that would otherwise wait forever for room.
+            abort(new IOException("Pipe closed by the consumer"));
+        }
+    }
+
+    private final class PipeOutputStream extends OutputStream {
+
+        @Override
+        public void write(final int b) throws IOException {
+            BoundedPipe.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            BoundedPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            BoundedPipe.this.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+/**
+ * {@link MessageBodyWorkers} caching the readers and the writers that other workers
+ * resolve for a Java class, a generic type and a media type, so that the entities of
+ * a type already seen do not search the providers again.
+ * <p/>
+ * Only resolutions without annotations are cached, which are those of the request
+ * writer and of {@link com.sun.jersey.api.client.ClientResponse#getEntity(Class)}. A
+ * provider is thus expected to decide whether it reads or writes a type from the type
+ * and the media type only, as the providers of Jersey do. A type without a provider
+ * is not cached, and neither are resolutions beyond {@value #MAX_ENTRIES}, since media
+ * types with varying parameters would otherwise grow the cache without bound.
+ * <p/>
+ * The providers of a client do not change once it is created, they are replaced with
+ * new workers instead, so the cache is discarded with the workers it wraps.
+ */
+final class CachingMessageBodyWorkers implements MessageBodyWorkers {
+
+    static final int MAX_ENTRIES = 1024;
+
+    private final MessageBodyWorkers workers;
+
+    private final ConcurrentMap<Key, MessageBodyReader<?>> readers = new ConcurrentHashMap<Key, MessageBodyReader<?>>();
+
+    private final ConcurrentMap<Key, MessageBodyWriter<?>> writers = new ConcurrentHashMap<Key, MessageBodyWriter<?>>();
+
+    private final ConcurrentMap<Key, List<MediaType>> writerMediaTypes = new ConcurrentHashMap<Key, List<MediaType>>();
+
+    CachingMessageBodyWorkers(final MessageBodyWorkers workers) {
+        this.workers = workers;
+    }
+
+    @Override
+    public Map<MediaType, List<MessageBodyReader>> getReaders(final MediaType mediaType) {
+        return workers.getReaders(mediaType);
+    }
+
+    @Override
+    public Map<MediaType, List<MessageBodyWriter>> getWriters(final MediaType mediaType) {
+        return workers.getWriters(mediaType);
+    }
+
+    @Override
+    public String readersToString(final Map<MediaType, List<MessageBodyReader>> readers) {
+        return workers.readersToString(readers);
+    }
+
+    @Override
+    public String writersToString(final Map<MediaType, List<MessageBodyWriter>> writers) {
+        return workers.writersToString(writers);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> MessageBodyReader<T> getMessageBodyReader(final Class<T> type, final Type genericType,
+            final Annotation[] annotations, final MediaType mediaType) {
+        if (annotations != null && annotations.length > 0) {
+            return workers.getMessageBodyReader(type, genericType, annotations, mediaType);
+        }
+        final Key key = new Key(type, genericType, mediaType);
+        MessageBodyReader<T> reader = (MessageBodyReader<T>) readers.get(key);
+        if (reader == null) {
+            reader = workers.getMessageBodyReader(type, genericType, annotations, mediaType);
+            put(readers, key, reader);
+        }
+        return reader;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> MessageBodyWriter<T> getMessageBodyWriter(final Class<T> type, final Type genericType,
+            final Annotation[] annotations, final MediaType mediaType) {
+        if (annotations != null && annotations.length > 0) {
+            return workers.getMessageBodyWriter(type, genericType, annotations, mediaType);
+        }
+        final Key key = new Key(type, genericType, mediaType);
+        MessageBodyWriter<T> writer = (MessageBodyWriter<T>) writers.get(key);
+        if (writer == null) {
+            writer = workers.getMessageBodyWriter(type, genericType, annotations, mediaType);
+            put(writers, key, writer);
+        }
+        return writer;
+    }
+
+    @Override
+    public <T> List<MediaType> getMessageBodyWriterMediaTypes(final Class<T> type, final Type genericType,
+            final Annotation[] annotations) {
+        if (annotations != null && annotations.length > 0) {
+            return workers.getMessageBodyWriterMediaTypes(type, genericType, annotations);
+        }
+        final Key key = new Key(type, genericType, null);
+        List<MediaType> mediaTypes = writerMediaTypes.get(key);
+        if (mediaTypes == null) {
+            mediaTypes = Collections.unmodifiableList(new ArrayList<MediaType>(
+                    workers.getMessageBodyWriterMediaTypes(type, genericType, annotations)));
+            put(writerMediaTypes, key, mediaTypes);
+        }
+        return mediaTypes;
+    }
+
+    @Override
+    public <T> MediaType getMessageBodyWriterMediaType(final Class<T> type, final Type genericType,
+            final Annotation[] annotations, final List<MediaType> acceptableMediaTypes) {
+        return workers.getMessageBodyWriterMediaType(type, genericType, annotations, acceptableMediaTypes);
+    }
+
+    private static <V> void put(final ConcurrentMap<Key, V> cache, final Key key, final V value) {
+        if (value != null && cache.size() < MAX_ENTRIES) {
+            cache.putIfAbsent(key, value);
+        }
+    }
+
+    /**
+     * The key of a resolution. Media types are compared by their exact type, subtype
+     * and parameters, since {@link MediaType#hashCode()} lowercases them for every
+     * call; a media type differing only by case is merely resolved again.
+     */
+    private static final class Key {
+
+        private final Class<?> type;
+
+        private final Type genericType;
+
+        private final MediaType mediaType;
+
+        private final int hash;
+
+        Key(final Class<?> type, final Type genericType, final MediaType mediaType) {
+            this.type = type;
+            this.genericType = genericType;
+            this.mediaType = mediaType;
+            this.hash = 31 * (31 * type.hashCode() + (genericType != null ? genericType.hashCode() : 0))
+                    + (mediaType != null ? hashCode(mediaType) : 0);
+        }
+
+        private static int hashCode(final MediaType m) {
+            return 31 * (31 * m.getType().hashCode() + m.getSubtype().hashCode()) + m.getParameters().hashCode();
+        }
+
+        private static boolean equal(final MediaType a, final MediaType b) {
+            return a == b || a != null && b != null && a.getType().equals(b.getType())
+                    && a.getSubtype().equals(b.getSubtype()) && a.getParameters().equals(b.getParameters());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key k = (Key) o;
+            return hash == k.hash && type == k.type
+                    && (genericType == k.genericType || genericType != null && genericType.equals(k.genericType))
+                    && equal(mediaType, k.mediaType);
+        }
+    }
+}
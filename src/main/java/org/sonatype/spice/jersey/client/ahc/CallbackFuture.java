@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A future completed from AHC callbacks instead of by running a task. Threads
+ * waiting for it are parked with {@link java.util.concurrent.locks.LockSupport},
+ * never on a monitor.
+ */
+class CallbackFuture<V> extends FutureTask<V> {
+
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+
+    CallbackFuture() {
+        super(new Callable<V>() {
+            @Override
+            public V call() {
+                return null;
+            }
+        });
+    }
+
+    @Override
+    protected void set(final V v) {
+        super.set(v);
+    }
+
+    @Override
+    protected void setException(final Throwable t) {
+        super.setException(t);
+    }
+
+    /**
+     * Run a listener by an executor once the future is done.
+     */
+    void addListener(final Runnable listener, final Executor executor) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(listener);
+            }
+        };
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    @Override
+    protected void done() {
+        final List<Runnable> l;
+        synchronized (this) {
+            l = listeners;
+            listeners = null;
+        }
+        for (final Runnable r : l) {
+            r.run();
+        }
+    }
+}
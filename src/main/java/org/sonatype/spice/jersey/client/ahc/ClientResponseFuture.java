@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+
+/**
+ * A view of an AHC future that reports failures the way the blocking
+ * {@link AhcClientHandler#handle(com.sun.jersey.api.client.ClientRequest)} does,
+ * that is as a {@link ClientHandlerException}.
+ */
+final class ClientResponseFuture implements Future<ClientResponse> {
+
+    private final Future<ClientResponse> future;
+
+    ClientResponseFuture(final Future<ClientResponse> future) {
+        this.future = future;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return future.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return future.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    @Override
+    public ClientResponse get() throws InterruptedException, ExecutionException {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            throw translate(e);
+        }
+    }
+
+    @Override
+    public ClientResponse get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            return future.get(timeout, unit);
+        } catch (final ExecutionException e) {
+            throw translate(e);
+        }
+    }
+
+    private ExecutionException translate(final ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof ClientHandlerException) {
+            return e;
+        }
+        return new ExecutionException(new ClientHandlerException(cause));
+    }
+}
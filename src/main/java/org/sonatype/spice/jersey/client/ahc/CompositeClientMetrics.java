@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.net.URI;
+
+import org.sonatype.spice.jersey.client.ahc.metrics.ClientMetrics;
+
+/**
+ * Notifies two {@link ClientMetrics} of the measurements of the requests, in order.
+ */
+final class CompositeClientMetrics implements ClientMetrics {
+
+    private final ClientMetrics first;
+
+    private final ClientMetrics second;
+
+    CompositeClientMetrics(final ClientMetrics first, final ClientMetrics second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    /**
+     * Combine two metrics, either of which may be null.
+     *
+     * @return the combined metrics, or null if both are null.
+     */
+    static ClientMetrics of(final ClientMetrics first, final ClientMetrics second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return new CompositeClientMetrics(first, second);
+    }
+
+    @Override
+    public void onRequestStarted(final String method, final URI uri) {
+        first.onRequestStarted(method, uri);
+        second.onRequestStarted(method, uri);
+    }
+
+    @Override
+    public void onRequestCompleted(final String method, final URI uri, final int status, final long durationNanos,
+            final long requestBytes, final long responseBytes) {
+        first.onRequestCompleted(method, uri, status, durationNanos, requestBytes, responseBytes);
+        second.onRequestCompleted(method, uri, status, durationNanos, requestBytes, responseBytes);
+    }
+
+    @Override
+    public void onRequestFailed(final String method, final URI uri, final Throwable t, final long durationNanos) {
+        first.onRequestFailed(method, uri, t, durationNanos);
+        second.onRequestFailed(method, uri, t, durationNanos);
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+
+/**
+ * An output stream compressing a request entity in the "gzip" or "deflate" content
+ * coding with a {@link java.util.zip.Deflater} of a {@link DeflaterPool}, which is
+ * given back once the stream is closed.
+ */
+final class CompressingOutputStream extends DeflaterOutputStream {
+
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final DeflaterPool pool;
+
+    private final CRC32 crc;
+
+    private boolean closed;
+
+    private CompressingOutputStream(final OutputStream out, final DeflaterPool pool, final boolean gzip)
+            throws IOException {
+        super(out, pool.acquire(), BUFFER_SIZE);
+        this.pool = pool;
+        this.crc = gzip ? new CRC32() : null;
+        if (gzip) {
+            out.write(GZIP_HEADER);
+        }
+    }
+
+    /**
+     * Check whether a content coding is supported.
+     *
+     * @param encoding the content coding.
+     * @return true for "gzip" and "deflate".
+     */
+    static boolean isSupported(final String encoding) {
+        return "gzip".equals(encoding) || "deflate".equals(encoding);
+    }
+
+    /**
+     * Compress the bytes written to a stream.
+     *
+     * @param out the stream receiving the compressed bytes.
+     * @param encoding the content coding, "gzip" or "deflate".
+     * @return the stream compressing the bytes written.
+     * @throws IOException if the stream cannot be written to.
+     */
+    static CompressingOutputStream create(final OutputStream out, final String encoding) throws IOException {
+        if ("gzip".equals(encoding)) {
+            return new CompressingOutputStream(out, DeflaterPool.GZIP, true);
+        }
+        if ("deflate".equals(encoding)) {
+            return new CompressingOutputStream(out, DeflaterPool.ZLIB, false);
+        }
+        throw new ClientHandlerException("Unsupported request content coding: " + encoding);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        super.write(b, off, len);
+        if (crc != null) {
+            crc.update(b, off, len);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (def.finished()) {
+            return;
+        }
+        super.finish();
+        if (crc != null) {
+            writeInt((int) crc.getValue());
+            writeInt(def.getTotalIn());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+            out.close();
+        } finally {
+            pool.release(def);
+        }
+    }
+
+    /**
+     * Give the deflater back without completing the compressed data, for instance
+     * because the entity could not be written.
+     */
+    void discard() {
+        if (!closed) {
+            closed = true;
+            pool.release(def);
+        }
+    }
+
+    private void writeInt(final int i) throws IOException {
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of {@link Deflater} instances, which allocate native memory that is
+ * only released when they are ended or finalized.
+ */
+final class DeflaterPool {
+
+    /**
+     * Deflaters producing raw deflate data, wrapped in the gzip format.
+     */
+    static final DeflaterPool GZIP = new DeflaterPool(true);
+
+    /**
+     * Deflaters producing the zlib format of the "deflate" content coding.
+     */
+    static final DeflaterPool ZLIB = new DeflaterPool(false);
+
+    private static final int MAX_IDLE = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final boolean nowrap;
+
+    private final Queue<Deflater> idle = new ConcurrentLinkedQueue<Deflater>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private DeflaterPool(final boolean nowrap) {
+        this.nowrap = nowrap;
+    }
+
+    Deflater acquire() {
+        final Deflater d = idle.poll();
+        if (d == null) {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        }
+        idleCount.decrementAndGet();
+        return d;
+    }
+
+    void release(final Deflater d) {
+        if (idleCount.incrementAndGet() > MAX_IDLE) {
+            idleCount.decrementAndGet();
+            d.end();
+            return;
+        }
+        d.reset();
+        idle.offer(d);
+    }
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.io.File;
+import java.io.InputStream;
+
+import org.sonatype.spice.jersey.client.ahc.download.DownloadedFile;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+/**
+ * A {@link ClientResponse} whose entity was written to a file, which is obtained
+ * as a {@link File} or a {@link DownloadedFile}.
+ */
+final class DownloadResponse extends ClientResponse {
+
+    private final DownloadedFile file;
+
+    DownloadResponse(final int status, final InBoundHeaders headers, final InputStream entity,
+            final MessageBodyWorkers workers, final DownloadedFile file) {
+        super(status, headers, entity, workers);
+        this.file = file;
+    }
+
+    @Override
+    public <T> T getEntity(final Class<T> c) {
+        if (c == File.class) {
+            return c.cast(file.getFile());
+        }
+        if (c == DownloadedFile.class) {
+            return c.cast(file);
+        }
+        return super.getEntity(c);
+    }
+}
@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Body;
+import com.ning.http.client.BodyGenerator;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.RandomAccessBody;
+import com.ning.http.client.Request;
+import com.ning.http.client.RequestBuilder;
+
+/**
+ * The future of a request sent with "Expect: 100-continue", whose body AHC sends
+ * once the server answers "100 Continue", so that a server rejecting the request,
+ * for instance with 401 or 413, never receives the body.
+ * <p/>
+ * A server ignoring the expectation waits for the body instead. If the body is not
+ * being sent and no response has been received once the timeout elapses, the request
+ * is cancelled and sent again without the expectation. The server cannot have
+ * processed a request whose body it has not received, and the body of the request
+ * MUST be a {@link BodyGenerator} that may be created again.
+ */
+final class ExpectContinueFuture<V> implements ListenableFuture<V> {
+
+    private static final int WAITING = 0;
+
+    private static final int CONTINUED = 1;
+
+    private static final int ABANDONED = 2;
+
+    private final AsyncHttpClient client;
+
+    private final Request request;
+
+    private final AsyncHandler<V> handler;
+
+    private final CallbackFuture<V> result = new CallbackFuture<V>();
+
+    private volatile ListenableFuture<V> attempt;
+
+    private ExpectContinueFuture(final AsyncHttpClient client, final Request request, final AsyncHandler<V> handler) {
+        this.client = client;
+        this.request = request;
+        this.handler = handler;
+    }
+
+    /**
+     * Execute a request sent with "Expect: 100-continue".
+     *
+     * @param client the client executing the request.
+     * @param request the request.
+     * @param handler the handler of the response.
+     * @param timeoutMillis the time to wait for the server to answer or accept the body.
+     * @return the future of the response.
+     * @throws IOException if the request cannot be executed.
+     */
+    static <V> ExpectContinueFuture<V> execute(final AsyncHttpClient client, final Request request,
+            final AsyncHandler<V> handler, final int timeoutMillis) throws IOException {
+        final ExpectContinueFuture<V> future = new ExpectContinueFuture<V>(client, request, handler);
+        future.start(timeoutMillis);
+        return future;
+    }
+
+    private void start(final int timeoutMillis) throws IOException {
+        final Attempt first = new Attempt(WAITING);
+        attempt = client.executeRequest(first.getRequest(request), first);
+        RetryingResponse.TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isDone() && first.abandon()) {
+                    fallback();
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void fallback() {
+        attempt.cancel(true);
+
+        final FluentCaseInsensitiveStringsMap headers = new FluentCaseInsensitiveStringsMap(request.getHeaders());
+        headers.delete("Expect");
+        final Request withoutExpectation = new RequestBuilder(request).setHeaders(headers).build();
+        try {
+            attempt = client.executeRequest(withoutExpectation, new Attempt(CONTINUED));
+            if (result.isCancelled()) {
+                attempt.cancel(true);
+            }
+        } catch (final IOException e) {
+            handler.onThrowable(e);
+            result.setException(e);
+        } catch (final RuntimeException e) {
+            handler.onThrowable(e);
+            result.setException(e);
+        }
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        final boolean cancelled = result.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            attempt.cancel(mayInterruptIfRunning);
+        }
+        return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return result.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        return result.get();
+    }
+
+    @Override
+    public V get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return result.get(timeout, unit);
+    }
+
+    @Override
+    public ListenableFuture<V> addListener(final Runnable listener, final Executor executor) {
+        result.addListener(listener, executor);
+        return this;
+    }
+
+    @Override
+    public void done() {
+        attempt.done();
+    }
+
+    @Override
+    public void abort(final Throwable t) {
+        attempt.abort(t);
+    }
+
+    @Override
+    public void content(final V v) {
+        attempt.content(v);
+    }
+
+    @Override
+    public void touch() {
+        attempt.touch();
+    }
+
+    @Override
+    public boolean getAndSetWriteHeaders(final boolean writeHeaders) {
+        return attempt.getAndSetWriteHeaders(writeHeaders);
+    }
+
+    @Override
+    public boolean getAndSetWriteBody(final boolean writeBody) {
+        return attempt.getAndSetWriteBody(writeBody);
+    }
+
+    /**
+     * An attempt of the request, which continues once its body is read or its
+     * response received, unless it was abandoned before.
+     */
+    private final class Attempt implements AsyncHandler<V> {
+
+        private final AtomicInteger state;
+
+        Attempt(final int state) {
+            this.state = new AtomicInteger(state);
+        }
+
+        /**
+         * @return the request of this attempt, whose body marks the attempt as
+         *         continued once it is read.
+         */
+        Request getRequest(final Request request) {
+            final BodyGenerator generator = request.getBodyGenerator();
+            return new RequestBuilder(request).setBody(new BodyGenerator() {
+                @Override
+                public Body createBody() throws IOException {
+                    final Body body = generator.createBody();
+                    return body instanceof RandomAccessBody ? new ContinuedRandomAccessBody(body)
+                            : new ContinuedBody(body);
+                }
+            }).build();
+        }
+
+        /**
+         * @return true if the attempt was abandoned, false if it has continued.
+         */
+        boolean abandon() {
+            return state.compareAndSet(WAITING, ABANDONED);
+        }
+
+        /**
+         * @return true if the attempt has continued, false if it was abandoned.
+         */
+        boolean proceed() {
+            state.compareAndSet(WAITING, CONTINUED);
+            return state.get() == CONTINUED;
+        }
+
+        @Override
+        public STATE onStatusReceived(final HttpResponseStatus status) throws Exception {
+            return proceed() ? handler.onStatusReceived(status) : STATE.ABORT;
+        }
+
+        @Override
+        public STATE onHeadersReceived(final HttpResponseHeaders headers) throws Exception {
+            return handler.onHeadersReceived(headers);
+        }
+
+        @Override
+        public STATE onBodyPartReceived(final HttpResponseBodyPart bodyPart) throws Exception {
+            return handler.onBodyPartReceived(bodyPart);
+        }
+
+        @Override
+        public V onCompleted() throws Exception {
+            if (!proceed()) {
+                return null;
+            }
+            try {
+                final V v = handler.onCompleted();
+                result.set(v);
+                return v;
+            } catch (final Exception e) {
+                result.setException(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public void onThrowable(final Throwable t) {
+            if (proceed()) {
+                handler.onThrowable(t);
+                result.setException(t);
+            }
+        }
+
+        /**
+         * A body whose attempt continues once it is read.
+         */
+        private class ContinuedBody implements Body {
+
+            final Body body;
+
+            ContinuedBody(final Body body) {
+                this.body = body;
+            }
+
+            @Override
+            public long getContentLength() {
+                return body.getContentLength();
+            }
+
+            @Override
+            public long read(final ByteBuffer buffer) throws IOException {
+                proceed();
+                return body.read(buffer);
+            }
+
+            @Override
+            public void close() throws IOException {
+                body.close();
+            }
+        }
+
+        private final class ContinuedRandomAccessBody extends ContinuedBody implements RandomAccessBody {
+
+            ContinuedRandomAccessBody(final Body body) {
+                super(body);
+            }
+
+            @Override
+            public long transferTo(final long position, final long count, final WritableByteChannel target)
+                    throws IOException {
+                proceed();
+                return ((RandomAccessBody) body).transferTo(position, count, target);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.ning.http.client.BodyGenerator;
+import com.ning.http.client.RandomAccessBody;
+
+/**
+ * A {@link BodyGenerator} sending a region of a {@link FileChannel}. The body is a
+ * {@link RandomAccessBody}, which the Netty provider of AHC transfers with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so that the file
+ * is not copied to the heap, unless the connection is secure.
+ * <p/>
+ * The channel is read at absolute positions, hence the body may be created again
+ * when the request is replayed. The channel is not closed by the body.
+ */
+final class FileChannelBodyGenerator implements BodyGenerator {
+
+    private final FileChannel channel;
+
+    private final long position;
+
+    private final long count;
+
+    FileChannelBodyGenerator(final FileChannel channel, final long position, final long count) {
+        this.channel = channel;
+        this.position = position;
+        this.count = count;
+    }
+
+    @Override
+    public RandomAccessBody createBody() {
+        return new FileChannelBody();
+    }
+
+    private final class FileChannelBody implements RandomAccessBody {
+
+        private long read;
+
+        @Override
+        public long getContentLength() {
+            return count;
+        }
+
+        /**
+         * Fill the buffer unless the region is exhausted, see {@link PipedBodyGenerator}.
+         */
+        @Override
+        public long read(final ByteBuffer buffer) throws IOException {
+            if (read == count) {
+                return -1;
+            }
+            final int limit = buffer.limit();
+            buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), count - read));
+            long filled = 0;
+            try {
+                while (buffer.hasRemaining()) {
+                    final int n = channel.read(buffer, position + read + filled);
+                    if (n == -1) {
+                        throw new IOException("File is shorter than its length of " + count + " bytes");
+                    }
+                    filled += n;
+                }
+            } finally {
+                buffer.limit(limit);
+            }
+            read += filled;
+            return filled;
+        }
+
+        @Override
+        public long transferTo(final long offset, final long length, final WritableByteChannel target)
+                throws IOException {
+            return channel.transferTo(position + offset, Math.min(length, count - offset), target);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
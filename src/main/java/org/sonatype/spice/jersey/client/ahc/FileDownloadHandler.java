@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import org.sonatype.spice.jersey.client.ahc.download.DownloadedFile;
+import org.sonatype.spice.jersey.client.ahc.download.FileDownload;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+import com.ning.http.client.Response;
+
+/**
+ * An {@link com.ning.http.client.AsyncHandler} writing the entity of a successful
+ * response to a {@link FileChannel} as its body parts arrive, instead of
+ * accumulating them, and computing its checksum on the fly. The entity of an
+ * unsuccessful response is accumulated as usual, so that it may be read.
+ */
+abstract class FileDownloadHandler<T> extends AsyncCompletionHandler<T> {
+
+    private final FileDownload download;
+
+    private int statusCode;
+
+    private FileChannel channel;
+
+    private MessageDigest digest;
+
+    private long length;
+
+    FileDownloadHandler(final FileDownload download) {
+        this.download = download;
+    }
+
+    /**
+     * Invoked once the response is complete.
+     *
+     * @param response the response, whose entity is empty if it was downloaded.
+     * @param file the downloaded file, or null if the response was not successful.
+     */
+    protected abstract T onCompleted(Response response, DownloadedFile file) throws Exception;
+
+    @Override
+    public STATE onStatusReceived(final HttpResponseStatus status) throws Exception {
+        statusCode = status.getStatusCode();
+        return super.onStatusReceived(status);
+    }
+
+    @Override
+    public STATE onHeadersReceived(final HttpResponseHeaders headers) throws Exception {
+        // Trailing headers of a chunked response come after the file was opened.
+        if (channel == null && statusCode >= 200 && statusCode < 300) {
+            final RandomAccessFile file = new RandomAccessFile(download.getFile(), "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            if (download.getChecksumAlgorithm() != null) {
+                digest = MessageDigest.getInstance(download.getChecksumAlgorithm());
+            }
+        }
+        return super.onHeadersReceived(headers);
+    }
+
+    @Override
+    public STATE onBodyPartReceived(final HttpResponseBodyPart bodyPart) throws Exception {
+        if (channel == null) {
+            return super.onBodyPartReceived(bodyPart);
+        }
+        final ByteBuffer buffer = bodyPart.getBodyByteBuffer();
+        if (digest != null) {
+            digest.update(buffer.duplicate());
+        }
+        length += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return STATE.CONTINUE;
+    }
+
+    @Override
+    public final T onCompleted(final Response response) throws Exception {
+        if (channel == null) {
+            return onCompleted(response, null);
+        }
+        try {
+            if (download.getSync() != FileDownload.Sync.NONE) {
+                channel.force(download.getSync() == FileDownload.Sync.ALL);
+            }
+            channel.close();
+        } catch (final IOException e) {
+            delete();
+            throw e;
+        }
+        return onCompleted(response,
+                new DownloadedFile(download.getFile(), length, digest != null ? digest.digest() : null));
+    }
+
+    @Override
+    public void onThrowable(final Throwable t) {
+        if (channel != null) {
+            delete();
+        }
+    }
+
+    private void delete() {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            // Deleted anyway.
+        }
+        download.getFile().delete();
+    }
+}
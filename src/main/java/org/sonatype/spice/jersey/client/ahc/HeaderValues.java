@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ws.rs.ext.RuntimeDelegate;
+import javax.ws.rs.ext.RuntimeDelegate.HeaderDelegate;
+
+/**
+ * Converts request header values to strings like
+ * {@link com.sun.jersey.api.client.ClientRequest#getHeaderValue(Object)}, but
+ * looks up the {@link HeaderDelegate} of a type only once instead of for every
+ * value.
+ */
+final class HeaderValues {
+
+    /**
+     * Stands for types without a delegate, whose values are converted with
+     * {@link Object#toString()}.
+     */
+    private static final HeaderDelegate<Object> TO_STRING = new HeaderDelegate<Object>() {
+        @Override
+        public Object fromString(final String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String toString(final Object value) {
+            return value.toString();
+        }
+    };
+
+    private static final ConcurrentMap<Class<?>, HeaderDelegate<Object>> DELEGATES =
+            new ConcurrentHashMap<Class<?>, HeaderDelegate<Object>>();
+
+    private HeaderValues() {
+    }
+
+    /**
+     * @param value a header value.
+     * @return the value as sent on the wire.
+     */
+    static String toString(final Object value) {
+        if (value instanceof String) {
+            return (String) value;
+        }
+        final Class<?> type = value.getClass();
+        HeaderDelegate<Object> delegate = DELEGATES.get(type);
+        if (delegate == null) {
+            delegate = createDelegate(type);
+            DELEGATES.putIfAbsent(type, delegate);
+        }
+        return delegate.toString(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static HeaderDelegate<Object> createDelegate(final Class<?> type) {
+        final HeaderDelegate<Object> delegate =
+                (HeaderDelegate<Object>) RuntimeDelegate.getInstance().createHeaderDelegate(type);
+        return delegate != null ? delegate : TO_STRING;
+    }
+}
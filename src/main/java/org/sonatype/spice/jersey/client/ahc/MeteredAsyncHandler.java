@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.sonatype.spice.jersey.client.ahc.metrics.ClientMetrics;
+
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+
+/**
+ * An {@link AsyncHandler} reporting the outcome of a request to
+ * {@link ClientMetrics} before delegating to the handler of the response.
+ */
+final class MeteredAsyncHandler<T> implements AsyncHandler<T> {
+
+    private final AsyncHandler<T> handler;
+
+    private final ClientMetrics metrics;
+
+    private final String method;
+
+    private final URI uri;
+
+    private final long requestBytes;
+
+    private final long start;
+
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private volatile int statusCode;
+
+    private volatile long responseBytes;
+
+    MeteredAsyncHandler(final AsyncHandler<T> handler, final ClientMetrics metrics, final String method,
+            final URI uri, final long requestBytes) {
+        this.handler = handler;
+        this.metrics = metrics;
+        this.method = method;
+        this.uri = uri;
+        this.requestBytes = requestBytes;
+        this.start = System.nanoTime();
+        metrics.onRequestStarted(method, uri);
+    }
+
+    /**
+     * Report a failure that happened before the request could be handed over to AHC.
+     */
+    void fail(final Throwable t) {
+        if (done.compareAndSet(false, true)) {
+            metrics.onRequestFailed(method, uri, t, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public STATE onStatusReceived(final HttpResponseStatus status) throws Exception {
+        statusCode = status.getStatusCode();
+        return handler.onStatusReceived(status);
+    }
+
+    @Override
+    public STATE onHeadersReceived(final HttpResponseHeaders headers) throws Exception {
+        return handler.onHeadersReceived(headers);
+    }
+
+    @Override
+    public STATE onBodyPartReceived(final HttpResponseBodyPart bodyPart) throws Exception {
+        responseBytes += bodyPart.length();
+        return handler.onBodyPartReceived(bodyPart);
+    }
+
+    @Override
+    public T onCompleted() throws Exception {
+        if (done.compareAndSet(false, true)) {
+            metrics.onRequestCompleted(method, uri, statusCode, System.nanoTime() - start, requestBytes,
+                    responseBytes);
+        }
+        return handler.onCompleted();
+    }
+
+    @Override
+    public void onThrowable(final Throwable t) {
+        fail(t);
+        handler.onThrowable(t);
+    }
+}
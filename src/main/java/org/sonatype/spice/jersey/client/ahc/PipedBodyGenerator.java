@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ning.http.client.Body;
+import com.ning.http.client.BodyGenerator;
+
+/**
+ * A {@link BodyGenerator} that drains a {@link BoundedPipe} filled by a
+ * {@link com.sun.jersey.api.client.RequestWriter.RequestEntityWriter}.
+ * <p/>
+ * When the entity length is known the bytes are sent as is with a Content-Length.
+ * Netty's BodyChunkedInput treats a short read as the end of a fixed length body,
+ * so such a body, like any other {@link Body} of a known length, fills the buffer
+ * completely unless it is exhausted.
+ * Otherwise the body is sent with chunked transfer encoding; the Netty provider of
+ * AHC does not frame chunks of a custom {@link Body} itself, so the framing is done
+ * here when {@code frameChunks} is set.
+ * <p/>
+ * A piped body can only be read once, hence the AHC request must not be replayed.
+ * <p/>
+ * The body is read by an I/O thread of the AHC provider, which blocks while the
+ * writer has not produced the next bytes. The wait is bounded by a timeout, after
+ * which the pipe is aborted and the read fails, which aborts the request.
+ */
+final class PipedBodyGenerator implements BodyGenerator {
+
+    private static final byte[] CRLF = "\r\n".getBytes();
+
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    /**
+     * Room reserved in every chunk for the hexadecimal size and the CRLFs around the data.
+     */
+    private static final int CHUNK_OVERHEAD = 12;
+
+    private final BoundedPipe pipe;
+
+    private final long contentLength;
+
+    private final boolean frameChunks;
+
+    private final long timeoutMillis;
+
+    private final AtomicBoolean created = new AtomicBoolean();
+
+    /**
+     * @param pipe the pipe filled by the writer of the entity.
+     * @param contentLength the length of the entity, or -1 if it is unknown.
+     * @param frameChunks true if the body frames the chunks of an entity of unknown length.
+     * @param timeoutMillis the maximum time in milliseconds to wait for the writer to
+     *        produce bytes, or zero or a negative value to wait indefinitely.
+     */
+    PipedBodyGenerator(final BoundedPipe pipe, final long contentLength, final boolean frameChunks,
+            final long timeoutMillis) {
+        this.pipe = pipe;
+        this.contentLength = contentLength;
+        this.frameChunks = frameChunks;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public Body createBody() throws IOException {
+        if (!created.compareAndSet(false, true)) {
+            throw new IOException("A streamed request entity cannot be replayed");
+        }
+        return contentLength >= 0 ? new FixedLengthBody() : new ChunkedBody();
+    }
+
+    private final class FixedLengthBody implements Body {
+
+        private long remaining = contentLength;
+
+        @Override
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public long read(final ByteBuffer buffer) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            final int len = (int) Math.min(buffer.remaining(), remaining);
+            int filled = 0;
+            while (filled < len) {
+                final int n = pipe.read(buffer, len - filled, timeoutMillis);
+                if (n == -1) {
+                    throw new IOException("Request entity is shorter than its declared length of "
+                            + contentLength + " bytes");
+                }
+                filled += n;
+            }
+            remaining -= filled;
+            return filled;
+        }
+
+        @Override
+        public void close() {
+            pipe.abort(new IOException("Request body closed"));
+        }
+    }
+
+    private final class ChunkedBody implements Body {
+
+        private boolean eof;
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long read(final ByteBuffer buffer) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (!frameChunks) {
+                if (!buffer.hasRemaining()) {
+                    return 0;
+                }
+                final int n = pipe.read(buffer, buffer.remaining(), timeoutMillis);
+                eof = n == -1;
+                return n;
+            }
+
+            // No room for a chunk of at least one byte, or for the last chunk.
+            if (buffer.remaining() <= CHUNK_OVERHEAD) {
+                return 0;
+            }
+            final int start = buffer.position();
+            // The size of the chunk is written before its data, hence known first.
+            final int available = pipe.await(timeoutMillis);
+            if (available == -1) {
+                eof = true;
+                buffer.put(LAST_CHUNK);
+            } else {
+                final int n = Math.min(available, buffer.remaining() - CHUNK_OVERHEAD);
+                putHex(buffer, n);
+                buffer.put(CRLF);
+                pipe.read(buffer, n, timeoutMillis);
+                buffer.put(CRLF);
+            }
+            return buffer.position() - start;
+        }
+
+        @Override
+        public void close() {
+            pipe.abort(new IOException("Request body closed"));
+        }
+    }
+
+    private static void putHex(final ByteBuffer buffer, final int n) {
+        int shift = 28;
+        while (shift > 0 && n >>> shift == 0) {
+            shift -= 4;
+        }
+        for (; shift >= 0; shift -= 4) {
+            buffer.put(HEX_DIGITS[n >>> shift & 0xf]);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.sonatype.spice.jersey.client.ahc.buffer.PooledOutputStream;
+
+import com.ning.http.client.Body;
+import com.ning.http.client.BodyGenerator;
+
+/**
+ * A {@link BodyGenerator} sending the content of a {@link PooledOutputStream}.
+ * Unlike an entity writer, whose content the Netty provider of AHC writes along
+ * with the headers of the request, a body is written by the provider when it
+ * chooses to, for instance once the server has answered "100 Continue".
+ * <p/>
+ * The content is read at absolute positions, hence the body may be created again
+ * when the request is replayed.
+ */
+final class PooledBodyGenerator implements BodyGenerator {
+
+    private final PooledOutputStream content;
+
+    PooledBodyGenerator(final PooledOutputStream content) {
+        this.content = content;
+    }
+
+    @Override
+    public Body createBody() {
+        return new PooledBody();
+    }
+
+    private final class PooledBody implements Body {
+
+        private long read;
+
+        @Override
+        public long getContentLength() {
+            return content.size();
+        }
+
+        /**
+         * Fill the buffer unless the content is exhausted, see {@link PipedBodyGenerator}.
+         */
+        @Override
+        public long read(final ByteBuffer buffer) throws IOException {
+            final int n = content.read(read, buffer);
+            if (n > 0) {
+                read += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sonatype.spice.jersey.client.ahc.retry.HedgePolicy;
+import org.sonatype.spice.jersey.client.ahc.retry.RetryPolicy;
+
+import com.ning.http.client.AsyncCompletionHandlerBase;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.Response;
+
+/**
+ * The response to a request that may take several attempts: retries of an attempt
+ * that failed, as decided by a {@link RetryPolicy}, and a hedged attempt sent when
+ * the first one is slow, as decided by a {@link HedgePolicy}.
+ * <p/>
+ * The first successful response completes the future, after which the attempts
+ * still in flight are cancelled. If every attempt fails the future fails with the
+ * cause of the last failure. Cancelling the future cancels every attempt.
+ */
+abstract class RetryingResponse extends CallbackFuture<Response> {
+
+    static final ScheduledExecutorService TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "ahc-retry-timer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final URI uri;
+
+    private final RetryPolicy retryPolicy;
+
+    private final HedgePolicy hedgePolicy;
+
+    private final List<Attempt> attempts = new CopyOnWriteArrayList<Attempt>();
+
+    /**
+     * The number of attempts in flight, or scheduled to retry a failed attempt.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicInteger retries = new AtomicInteger();
+
+    /**
+     * @param uri the URI of the request.
+     * @param retryPolicy the retry policy, or null if the request is not retried.
+     * @param hedgePolicy the hedge policy, or null if the request is not hedged.
+     */
+    RetryingResponse(final URI uri, final RetryPolicy retryPolicy, final HedgePolicy hedgePolicy) {
+        this.uri = uri;
+        this.retryPolicy = retryPolicy;
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * Execute an attempt of the request.
+     *
+     * @param handler the AHC handler processing the response.
+     * @param first true for the first attempt.
+     * @return the future of the AHC request.
+     * @throws IOException if the request cannot be executed.
+     */
+    protected abstract Future<Response> execute(AsyncHandler<Response> handler, boolean first) throws IOException;
+
+    /**
+     * Execute the first attempt, and schedule the hedged attempt.
+     */
+    void start() {
+        if (retryPolicy != null) {
+            retryPolicy.getBudget().deposit();
+        }
+        if (hedgePolicy != null) {
+            hedgePolicy.getBudget().deposit();
+        }
+        pending.incrementAndGet();
+        attempt(true);
+
+        final long delay = hedgePolicy != null ? hedgePolicy.getDelayMillis(uri) : -1;
+        if (delay >= 0 && !isDone()) {
+            TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isDone() && hedgePolicy.getBudget().tryWithdraw()) {
+                        pending.incrementAndGet();
+                        attempt(false);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void attempt(final boolean first) {
+        if (isDone()) {
+            pending.decrementAndGet();
+            return;
+        }
+        final Attempt attempt = new Attempt();
+        try {
+            attempt.future = execute(attempt, first);
+            attempts.add(attempt);
+            if (isDone()) {
+                attempt.cancel();
+            }
+        } catch (final IOException e) {
+            onAttempt(null, e);
+        } catch (final RuntimeException e) {
+            onAttempt(null, e);
+        }
+    }
+
+    private void onAttempt(final Response response, final Throwable t) {
+        if (isDone()) {
+            return;
+        }
+        if (response != null && (retryPolicy == null || !retryPolicy.isRetryable(response.getStatusCode()))) {
+            set(response);
+            return;
+        }
+
+        // Another attempt may still succeed.
+        if (pending.decrementAndGet() > 0) {
+            return;
+        }
+        final int retry = retries.incrementAndGet();
+        if (retryPolicy == null || response == null && !retryPolicy.isRetryable(t)
+                || retry > retryPolicy.getMaxRetries() || !retryPolicy.getBudget().tryWithdraw()) {
+            complete(response, t);
+            return;
+        }
+        pending.incrementAndGet();
+        TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                attempt(false);
+            }
+        }, retryPolicy.getDelayMillis(retry), TimeUnit.MILLISECONDS);
+    }
+
+    private void complete(final Response response, final Throwable t) {
+        if (response != null) {
+            set(response);
+        } else {
+            setException(t);
+        }
+    }
+
+    @Override
+    protected void done() {
+        for (final Attempt a : attempts) {
+            a.cancel();
+        }
+        super.done();
+    }
+
+    private final class Attempt extends AsyncCompletionHandlerBase {
+
+        private final long start = System.nanoTime();
+
+        private volatile Future<Response> future;
+
+        /**
+         * Cancelling the AHC future of a completed attempt would close its connection.
+         */
+        private volatile boolean finished;
+
+        @Override
+        public Response onCompleted(final Response response) throws Exception {
+            finished = true;
+            if (hedgePolicy != null) {
+                hedgePolicy.record(uri, System.nanoTime() - start);
+            }
+            onAttempt(response, null);
+            return response;
+        }
+
+        @Override
+        public void onThrowable(final Throwable t) {
+            finished = true;
+            onAttempt(null, t);
+        }
+
+        void cancel() {
+            final Future<Response> f = future;
+            if (!finished && f != null) {
+                f.cancel(true);
+            }
+        }
+    }
+}
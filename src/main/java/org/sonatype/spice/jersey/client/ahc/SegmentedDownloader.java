@@ -0,0 +1,426 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.sonatype.spice.jersey.client.ahc.download.DownloadedFile;
+import org.sonatype.spice.jersey.client.ahc.download.SegmentedDownload;
+
+import com.ning.http.client.AsyncCompletionHandlerBase;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+import com.ning.http.client.Request;
+import com.ning.http.client.RequestBuilder;
+import com.ning.http.client.Response;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+
+/**
+ * Performs a {@link SegmentedDownload}. A HEAD request tells the length of the
+ * resource and whether the server supports byte ranges. If it does, the file is sized
+ * to the length of the resource and each segment is fetched with a range request,
+ * whose body parts are written at their offset in the file as they arrive. Otherwise
+ * the resource is fetched with a single request.
+ */
+final class SegmentedDownloader {
+
+    private final AhcClientHandler handler;
+
+    private final ClientRequest cr;
+
+    private final URI uri;
+
+    private final SegmentedDownload download;
+
+    SegmentedDownloader(final AhcClientHandler handler, final ClientRequest cr, final SegmentedDownload download) {
+        this.handler = handler;
+        this.cr = cr;
+        this.uri = cr.getURI();
+        this.download = download;
+    }
+
+    DownloadedFile download() throws Exception {
+        final Response head = get(handler.execute(handler.getDownloadRequestBuilder(cr, "HEAD").build(),
+                new AsyncCompletionHandlerBase()));
+        if (head.getStatusCode() < 200 || head.getStatusCode() >= 300) {
+            throw new ClientHandlerException("HEAD " + uri + " failed with status " + head.getStatusCode());
+        }
+        final long length = getLength(head);
+        final boolean ranged = length > 0 && "bytes".equalsIgnoreCase(trim(head.getHeader("Accept-Ranges")));
+        final String validator = ranged ? getValidator(head) : null;
+
+        final File stateFile = download.getStateFile();
+        List<Segment> segments = validator != null ? load(stateFile, length, validator) : null;
+        final RandomAccessFile file = new RandomAccessFile(download.getFile(), "rw");
+        try {
+            final FileChannel channel = file.getChannel();
+            if (segments == null) {
+                stateFile.delete();
+                file.setLength(0);
+                if (ranged) {
+                    file.setLength(length);
+                    segments = plan(length);
+                    if (validator != null) {
+                        save(stateFile, channel, segments, length, validator);
+                    }
+                } else {
+                    segments = Collections.singletonList(new Segment(0, -1, 0));
+                }
+            }
+
+            Throwable failure = null;
+            for (int attempt = 0; attempt < download.getAttempts() && !isComplete(segments); attempt++) {
+                if (!ranged) {
+                    // Restarted from the beginning.
+                    segments.get(0).position = 0;
+                    channel.truncate(0);
+                }
+                try {
+                    final Throwable f = fetch(channel, segments, ranged, validator);
+                    if (f != null) {
+                        failure = f;
+                    }
+                } catch (final InterruptedException e) {
+                    if (validator != null) {
+                        save(stateFile, channel, segments, length, validator);
+                    }
+                    throw e;
+                }
+            }
+
+            if (!isComplete(segments)) {
+                if (validator != null) {
+                    save(stateFile, channel, segments, length, validator);
+                }
+                throw new ClientHandlerException("Download of " + uri + " to " + download.getFile() + " failed",
+                        failure);
+            }
+            stateFile.delete();
+            return new DownloadedFile(download.getFile(), ranged ? length : segments.get(0).position, null);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Fetch the incomplete segments concurrently.
+     *
+     * @return the last failure, or null.
+     */
+    private Throwable fetch(final FileChannel channel, final List<Segment> segments, final boolean ranged,
+            final String validator) throws InterruptedException {
+        Throwable failure = null;
+        final List<SegmentHandler> running = new ArrayList<SegmentHandler>(segments.size());
+        for (final Segment segment : segments) {
+            if (segment.isComplete()) {
+                continue;
+            }
+            final SegmentHandler h = new SegmentHandler(channel, segment, ranged);
+            try {
+                h.future = handler.execute(getRequest(segment, ranged, validator), h);
+                running.add(h);
+            } catch (final IOException e) {
+                failure = e;
+            }
+        }
+
+        for (int i = 0; i < running.size(); i++) {
+            final SegmentHandler h = running.get(i);
+            try {
+                h.future.get();
+            } catch (final ExecutionException e) {
+                if (h.failure == null) {
+                    h.failure = e.getCause();
+                }
+            } catch (final InterruptedException e) {
+                for (final SegmentHandler r : running.subList(i, running.size())) {
+                    r.future.cancel(true);
+                }
+                throw e;
+            }
+            if (h.failure != null) {
+                failure = h.failure;
+            } else if (!h.segment.isComplete()) {
+                failure = new IOException("Premature end of " + h.segment);
+            }
+        }
+        return failure;
+    }
+
+    private Request getRequest(final Segment segment, final boolean ranged, final String validator) {
+        final RequestBuilder requestBuilder = handler.getDownloadRequestBuilder(cr, "GET");
+        if (ranged) {
+            requestBuilder.setHeader("Range", "bytes=" + segment.position + "-" + (segment.end - 1));
+            if (validator != null) {
+                requestBuilder.setHeader("If-Range", validator);
+            }
+        }
+        return requestBuilder.build();
+    }
+
+    private List<Segment> plan(final long length) {
+        final int n = (int) Math.min(download.getSegments(), Math.max(1, length / download.getMinSegmentSize()));
+        final long size = length / n;
+        final List<Segment> segments = new ArrayList<Segment>(n);
+        for (int i = 0; i < n; i++) {
+            final long start = i * size;
+            segments.add(new Segment(start, i == n - 1 ? length : start + size, start));
+        }
+        return segments;
+    }
+
+    /**
+     * Load the segments of an incomplete download of the same version of the resource.
+     *
+     * @return the segments, or null if the download cannot be resumed.
+     */
+    private List<Segment> load(final File stateFile, final long length, final String validator) {
+        if (!stateFile.isFile() || download.getFile().length() != length) {
+            return null;
+        }
+        final Properties state = new Properties();
+        try {
+            final InputStream in = new FileInputStream(stateFile);
+            try {
+                state.load(in);
+            } finally {
+                in.close();
+            }
+            if (!uri.toString().equals(state.getProperty("uri"))
+                    || !Long.toString(length).equals(state.getProperty("length"))
+                    || !validator.equals(state.getProperty("validator"))) {
+                return null;
+            }
+            final int n = Integer.parseInt(state.getProperty("segments"));
+            final List<Segment> segments = new ArrayList<Segment>(n);
+            for (int i = 0; i < n; i++) {
+                final String[] values = state.getProperty("segment." + i).split(",");
+                final Segment segment = new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]),
+                        Long.parseLong(values[2]));
+                if (segment.start < 0 || segment.position < segment.start || segment.position > segment.end
+                        || segment.end > length) {
+                    return null;
+                }
+                segments.add(segment);
+            }
+            return segments;
+        } catch (final IOException e) {
+            return null;
+        } catch (final RuntimeException e) {
+            // Malformed.
+            return null;
+        }
+    }
+
+    /**
+     * Record the progress of the segments, once the bytes written so far are on the
+     * storage device.
+     */
+    private void save(final File stateFile, final FileChannel channel, final List<Segment> segments,
+            final long length, final String validator) throws IOException {
+        final Properties state = new Properties();
+        state.setProperty("uri", uri.toString());
+        state.setProperty("length", Long.toString(length));
+        state.setProperty("validator", validator);
+        state.setProperty("segments", Integer.toString(segments.size()));
+        for (int i = 0; i < segments.size(); i++) {
+            final Segment segment = segments.get(i);
+            state.setProperty("segment." + i, segment.start + "," + segment.end + "," + segment.position);
+        }
+        channel.force(false);
+
+        final OutputStream out = new FileOutputStream(stateFile);
+        try {
+            state.store(out, "Segments of " + download.getFile());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static boolean isComplete(final List<Segment> segments) {
+        for (final Segment segment : segments) {
+            if (!segment.isComplete()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getLength(final Response head) {
+        final String value = trim(head.getHeader("Content-Length"));
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return a validator allowed in an If-Range header, which is a strong entity tag
+     *         or a last modification date, or null.
+     */
+    private static String getValidator(final Response head) {
+        final String etag = trim(head.getHeader("ETag"));
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return trim(head.getHeader("Last-Modified"));
+    }
+
+    private static String trim(final String value) {
+        return value == null ? null : value.trim();
+    }
+
+    private static <T> T get(final Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The bytes from start, inclusive, to end, exclusive, of the resource, of which the
+     * bytes before position have been written. The end of a resource that is not
+     * downloaded by range is unknown.
+     */
+    private static final class Segment {
+
+        final long start;
+
+        final long end;
+
+        volatile long position;
+
+        volatile boolean done;
+
+        Segment(final long start, final long end, final long position) {
+            this.start = start;
+            this.end = end;
+            this.position = position;
+        }
+
+        boolean isComplete() {
+            return end < 0 ? done : position == end;
+        }
+
+        @Override
+        public String toString() {
+            return "segment " + start + "-" + end + " at " + position;
+        }
+    }
+
+    /**
+     * Writes the body parts of a segment at their offset in the file.
+     */
+    private static final class SegmentHandler implements AsyncHandler<Void> {
+
+        final FileChannel channel;
+
+        final Segment segment;
+
+        final boolean ranged;
+
+        volatile Future<Void> future;
+
+        volatile Throwable failure;
+
+        private boolean headersReceived;
+
+        SegmentHandler(final FileChannel channel, final Segment segment, final boolean ranged) {
+            this.channel = channel;
+            this.segment = segment;
+            this.ranged = ranged;
+        }
+
+        @Override
+        public STATE onStatusReceived(final HttpResponseStatus status) throws Exception {
+            final int expected = ranged ? 206 : 200;
+            if (status.getStatusCode() != expected) {
+                failure = new IOException("Unexpected status " + status.getStatusCode() + " for " + segment);
+                return STATE.ABORT;
+            }
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public STATE onHeadersReceived(final HttpResponseHeaders headers) throws Exception {
+            // Trailing headers of a chunked response come after the headers.
+            if (ranged && !headersReceived) {
+                final String range = headers.getHeaders().getFirstValue("Content-Range");
+                if (range == null || !range.trim().startsWith("bytes " + segment.position + "-")) {
+                    failure = new IOException("Unexpected Content-Range " + range + " for " + segment);
+                    return STATE.ABORT;
+                }
+            }
+            headersReceived = true;
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public STATE onBodyPartReceived(final HttpResponseBodyPart bodyPart) throws Exception {
+            final ByteBuffer buffer = bodyPart.getBodyByteBuffer();
+            long position = segment.position;
+            if (segment.end >= 0 && position + buffer.remaining() > segment.end) {
+                failure = new IOException("Too many bytes for " + segment);
+                return STATE.ABORT;
+            }
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            segment.position = position;
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public Void onCompleted() throws Exception {
+            if (failure == null && segment.end < 0) {
+                segment.done = true;
+            }
+            return null;
+        }
+
+        @Override
+        public void onThrowable(final Throwable t) {
+            if (failure == null) {
+                failure = t;
+            }
+        }
+    }
+}
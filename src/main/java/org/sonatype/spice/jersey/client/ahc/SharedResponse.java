@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import com.ning.http.client.Response;
+
+/**
+ * The response of a request shared by identical concurrent requests. The entity is
+ * read once and every request gets its own stream over it.
+ */
+final class SharedResponse extends CallbackFuture<Response> {
+
+    private volatile byte[] body;
+
+    /**
+     * @return the entity of the response, valid once the future is done.
+     */
+    byte[] getBody() {
+        return body;
+    }
+
+    void complete(final Response response) throws Exception {
+        body = response.getResponseBodyAsBytes();
+        set(response);
+    }
+}
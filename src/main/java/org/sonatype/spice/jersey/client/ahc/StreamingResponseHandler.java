@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+import com.sun.jersey.api.client.ClientResponse;
+
+/**
+ * An {@link AsyncHandler} that produces the {@link ClientResponse} as soon as the
+ * status line and the headers have been received, and then feeds the body parts
+ * through a {@link BoundedPipe} that the response entity reads from.
+ * <p/>
+ * When the pipe is full the thread delivering the body parts waits for the entity
+ * to be consumed, so the memory used by a response does not depend on its size.
+ * The consequence is that the entity of a streamed response MUST be read or closed.
+ */
+abstract class StreamingResponseHandler implements AsyncHandler<Void> {
+
+    private static final Callable<ClientResponse> NO_OP = new Callable<ClientResponse>() {
+        @Override
+        public ClientResponse call() {
+            return null;
+        }
+    };
+
+    private final BoundedPipe pipe;
+
+    private final ResponseFuture response = new ResponseFuture();
+
+    private volatile Future<?> request;
+
+    private volatile Runnable listener;
+
+    private volatile Executor listenerExecutor;
+
+    private int statusCode;
+
+    StreamingResponseHandler(final int bufferSize) {
+        this.pipe = new BoundedPipe(bufferSize);
+    }
+
+    /**
+     * Create the {@link ClientResponse}. This method is invoked by an I/O thread and
+     * must not read the entity.
+     */
+    protected abstract ClientResponse createResponse(int statusCode, FluentCaseInsensitiveStringsMap headers,
+            InputStream entity) throws Exception;
+
+    /**
+     * @return the future completing once the response headers have been received.
+     */
+    Future<ClientResponse> getResponse() {
+        return response;
+    }
+
+    /**
+     * Set the AHC future of the request, which is cancelled with the response future.
+     */
+    void setRequest(final Future<?> request) {
+        this.request = request;
+        if (response.isCancelled()) {
+            request.cancel(true);
+        }
+    }
+
+    /**
+     * Register a listener run by the executor once the response future is done. Must be
+     * called before the request is executed.
+     */
+    void setListener(final Runnable listener, final Executor executor) {
+        this.listenerExecutor = executor;
+        this.listener = listener;
+    }
+
+    @Override
+    public STATE onStatusReceived(final HttpResponseStatus status) throws Exception {
+        statusCode = status.getStatusCode();
+        return STATE.CONTINUE;
+    }
+
+    @Override
+    public STATE onHeadersReceived(final HttpResponseHeaders headers) throws Exception {
+        // Trailing headers of a chunked response come after the response was created.
+        if (!response.isDone()) {
+            response.set(createResponse(statusCode, headers.getHeaders(), pipe.getInputStream()));
+        }
+        return STATE.CONTINUE;
+    }
+
+    @Override
+    public STATE onBodyPartReceived(final HttpResponseBodyPart bodyPart) throws Exception {
+        try {
+            bodyPart.writeTo(pipe.getOutputStream());
+            return STATE.CONTINUE;
+        } catch (final IOException e) {
+            // The entity was closed before being fully read.
+            return STATE.ABORT;
+        }
+    }
+
+    @Override
+    public Void onCompleted() throws Exception {
+        pipe.getOutputStream().close();
+        if (!response.isDone()) {
+            response.setException(new IOException("Response completed without headers"));
+        }
+        return null;
+    }
+
+    @Override
+    public void onThrowable(final Throwable t) {
+        pipe.abort(t);
+        response.setException(t);
+    }
+
+    private final class ResponseFuture extends FutureTask<ClientResponse> {
+
+        ResponseFuture() {
+            super(NO_OP);
+        }
+
+        @Override
+        protected void set(final ClientResponse v) {
+            super.set(v);
+        }
+
+        @Override
+        protected void setException(final Throwable t) {
+            super.setException(t);
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                pipe.abort(new CancellationException());
+                final Future<?> r = request;
+                if (r != null) {
+                    r.cancel(true);
+                }
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            final Runnable l = listener;
+            if (l != null) {
+                listenerExecutor.execute(l);
+            }
+        }
+    }
+}
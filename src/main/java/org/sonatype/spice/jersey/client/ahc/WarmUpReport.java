@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The outcome of a warm-up of the connections of a client, see
+ * {@link AhcClientHandler#warmUp(java.util.Collection, int)}.
+ */
+public final class WarmUpReport {
+
+    private final long elapsedMillis;
+
+    private final Map<URI, Integer> connections;
+
+    private final Map<URI, Throwable> failures;
+
+    WarmUpReport(final long elapsedMillis, final Map<URI, Integer> connections, final Map<URI, Throwable> failures) {
+        this.elapsedMillis = elapsedMillis;
+        this.connections = Collections.unmodifiableMap(connections);
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return the duration of the warm-up in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return the number of successful requests to each URI, which is the number of
+     *         connections established to its host unless the server closed some.
+     */
+    public Map<URI, Integer> getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return the failure of a request to each URI that had failed requests.
+     */
+    public Map<URI, Throwable> getFailures() {
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return "WarmUpReport[elapsedMillis=" + elapsedMillis + ", connections=" + connections
+                + ", failures=" + failures + "]";
+    }
+}
@@ -0,0 +1,402 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.balancer;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sonatype.spice.jersey.client.ahc.metrics.ClientMetrics;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+
+/**
+ * Spreads the requests to a service over a list of endpoints, the replicas of the
+ * service, instead of going through an external load balancer.
+ * <p/>
+ * Requests are addressed to a service URI, such as {@code http://catalog/}, and
+ * {@link #route(URI)} rewrites their URI to an endpoint chosen by a {@link Strategy}.
+ * The list of endpoints may be replaced at any time with {@link #setEndpoints(Map)},
+ * the state of the endpoints that remain being kept.
+ * <p/>
+ * An endpoint whose requests fail {@value #MAX_FAILURES} times in a row, with an
+ * exception or a 5xx status, is ejected for a duration that grows with the number
+ * of its ejections, unless that would leave less than half of the endpoints.
+ * <p/>
+ * The balancer is notified of the outcome of the requests as {@link ClientMetrics}.
+ *
+ * @see org.sonatype.spice.jersey.client.ahc.config.AhcConfig#PROPERTY_LOAD_BALANCER
+ */
+public class LoadBalancer implements ClientMetrics {
+
+    /**
+     * The way endpoints are chosen.
+     */
+    public enum Strategy {
+        /**
+         * Choose the least loaded of two random endpoints, the load being the number of
+         * requests in flight times the average latency, divided by the weight.
+         */
+        POWER_OF_TWO_CHOICES,
+
+        /**
+         * Choose the endpoints in turn, each one as often as its weight.
+         */
+        WEIGHTED_ROUND_ROBIN
+    }
+
+    static final int MAX_FAILURES = 5;
+
+    private static final long EJECTION_NANOS = 30L * 1000 * 1000 * 1000;
+
+    private static final int MAX_EJECTION_FACTOR = 10;
+
+    /**
+     * The time constant of the moving average of the latency.
+     */
+    private static final double DECAY_NANOS = 10.0 * 1000 * 1000 * 1000;
+
+    private static final Random RANDOM = new Random();
+
+    private final URI serviceUri;
+
+    private final String servicePath;
+
+    private final Strategy strategy;
+
+    private volatile Endpoint[] endpoints = new Endpoint[0];
+
+    /**
+     * Create a balancer without endpoints.
+     *
+     * @param serviceUri the URI of the service, whose scheme, host, port and path
+     *        prefix identify the requests to balance.
+     * @param strategy the way endpoints are chosen.
+     */
+    public LoadBalancer(final URI serviceUri, final Strategy strategy) {
+        this.serviceUri = serviceUri;
+        final String path = serviceUri.getRawPath();
+        this.servicePath = path == null || path.endsWith("/") ? trim(path) : path;
+        this.strategy = strategy;
+    }
+
+    /**
+     * @return the URI of the service.
+     */
+    public URI getServiceUri() {
+        return serviceUri;
+    }
+
+    /**
+     * Replace the endpoints, with a weight of 1.
+     *
+     * @param uris the URIs of the endpoints.
+     */
+    public void setEndpoints(final Collection<URI> uris) {
+        final Map<URI, Integer> weights = new LinkedHashMap<URI, Integer>();
+        for (final URI u : uris) {
+            weights.put(u, 1);
+        }
+        setEndpoints(weights);
+    }
+
+    /**
+     * Replace the endpoints.
+     *
+     * @param weights the URIs of the endpoints, with their positive weight.
+     */
+    public synchronized void setEndpoints(final Map<URI, Integer> weights) {
+        final Map<String, Endpoint> current = new HashMap<String, Endpoint>();
+        for (final Endpoint e : endpoints) {
+            current.put(e.uri.toString(), e);
+        }
+        final List<Endpoint> l = new ArrayList<Endpoint>(weights.size());
+        for (final Map.Entry<URI, Integer> w : weights.entrySet()) {
+            if (w.getValue() <= 0) {
+                throw new IllegalArgumentException("The weight of " + w.getKey() + " must be positive");
+            }
+            Endpoint e = current.get(w.getKey().toString());
+            if (e == null) {
+                e = new Endpoint(w.getKey());
+            }
+            e.weight = w.getValue();
+            l.add(e);
+        }
+        endpoints = l.toArray(new Endpoint[l.size()]);
+    }
+
+    /**
+     * @return the endpoints.
+     */
+    public List<Endpoint> getEndpoints() {
+        final List<Endpoint> l = new ArrayList<Endpoint>();
+        Collections.addAll(l, endpoints);
+        return l;
+    }
+
+    /**
+     * Rewrite the URI of a request to the service to an endpoint.
+     *
+     * @param uri the URI of a request.
+     * @return the URI of the request on the chosen endpoint, or the URI itself if it
+     *         does not address the service.
+     * @throws ClientHandlerException if the service has no endpoint.
+     */
+    public URI route(final URI uri) {
+        final String path = uri.getRawPath();
+        if (!serviceUri.getScheme().equalsIgnoreCase(uri.getScheme())
+                || !serviceUri.getHost().equalsIgnoreCase(uri.getHost())
+                || serviceUri.getPort() != uri.getPort()
+                || path == null || !path.startsWith(servicePath)
+                || path.length() > servicePath.length() && path.charAt(servicePath.length()) != '/') {
+            return uri;
+        }
+
+        final Endpoint e = choose();
+        final StringBuilder sb = new StringBuilder(e.prefix)
+                .append(path.substring(servicePath.length()));
+        if (uri.getRawQuery() != null) {
+            sb.append('?').append(uri.getRawQuery());
+        }
+        if (uri.getRawFragment() != null) {
+            sb.append('#').append(uri.getRawFragment());
+        }
+        return URI.create(sb.toString());
+    }
+
+    private Endpoint choose() {
+        final Endpoint[] all = endpoints;
+        if (all.length == 0) {
+            throw new ClientHandlerException("The service " + serviceUri + " has no endpoint");
+        }
+
+        final long now = System.nanoTime();
+        final List<Endpoint> available = new ArrayList<Endpoint>(all.length);
+        for (final Endpoint e : all) {
+            if (!e.isEjected(now)) {
+                available.add(e);
+            }
+        }
+        if (available.isEmpty()) {
+            Collections.addAll(available, all);
+        }
+
+        if (strategy == Strategy.WEIGHTED_ROUND_ROBIN) {
+            return chooseInTurn(available);
+        }
+        final int n = available.size();
+        if (n == 1) {
+            return available.get(0);
+        }
+        final int i = RANDOM.nextInt(n);
+        final int j = (i + 1 + RANDOM.nextInt(n - 1)) % n;
+        final Endpoint a = available.get(i);
+        final Endpoint b = available.get(j);
+        return a.getLoad() <= b.getLoad() ? a : b;
+    }
+
+    /**
+     * Smooth weighted round robin: every endpoint gains its weight, and the richest
+     * one is chosen and pays the total weight.
+     */
+    private synchronized Endpoint chooseInTurn(final List<Endpoint> available) {
+        Endpoint chosen = null;
+        int total = 0;
+        for (final Endpoint e : available) {
+            e.credit += e.weight;
+            total += e.weight;
+            if (chosen == null || e.credit > chosen.credit) {
+                chosen = e;
+            }
+        }
+        chosen.credit -= total;
+        return chosen;
+    }
+
+    @Override
+    public void onRequestStarted(final String method, final URI uri) {
+        final Endpoint e = getEndpoint(uri);
+        if (e != null) {
+            e.inFlight.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onRequestCompleted(final String method, final URI uri, final int status, final long durationNanos,
+            final long requestBytes, final long responseBytes) {
+        final Endpoint e = getEndpoint(uri);
+        if (e != null) {
+            e.inFlight.decrementAndGet();
+            e.onResponse(durationNanos, status < 500);
+        }
+    }
+
+    @Override
+    public void onRequestFailed(final String method, final URI uri, final Throwable t, final long durationNanos) {
+        final Endpoint e = getEndpoint(uri);
+        if (e != null) {
+            e.inFlight.decrementAndGet();
+            if (!(t instanceof CancellationException)) {
+                e.onResponse(durationNanos, false);
+            }
+        }
+    }
+
+    /**
+     * @return the endpoint whose prefix, as written by {@link #route(URI)}, is the
+     *         longest one of the URI of a request, or null.
+     */
+    private Endpoint getEndpoint(final URI uri) {
+        final String s = uri.toString();
+        Endpoint endpoint = null;
+        for (final Endpoint e : endpoints) {
+            final int n = e.prefix.length();
+            if (s.startsWith(e.prefix) && (s.length() == n || "/?#".indexOf(s.charAt(n)) >= 0)
+                    && (endpoint == null || n > endpoint.prefix.length())) {
+                endpoint = e;
+            }
+        }
+        return endpoint;
+    }
+
+    private static String trim(final String s) {
+        return s != null && s.endsWith("/") ? s.substring(0, s.length() - 1) : s == null ? "" : s;
+    }
+
+    /**
+     * An endpoint of the service.
+     */
+    public final class Endpoint {
+
+        private final URI uri;
+
+        /**
+         * The URI without a trailing slash, to which the path of a request is appended.
+         */
+        private final String prefix;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private volatile int weight = 1;
+
+        /**
+         * Guarded by the balancer.
+         */
+        private int credit;
+
+        private volatile double latency;
+
+        private long updated = System.nanoTime();
+
+        private int failures;
+
+        private int ejections;
+
+        private volatile long ejectedUntil;
+
+        Endpoint(final URI uri) {
+            this.uri = uri;
+            this.prefix = trim(uri.toString());
+        }
+
+        /**
+         * @return the URI of the endpoint.
+         */
+        public URI getUri() {
+            return uri;
+        }
+
+        /**
+         * @return the weight of the endpoint.
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return the number of requests in flight to the endpoint.
+         */
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * @return the moving average of the latency of the endpoint, in nanoseconds.
+         */
+        public double getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return true if the endpoint is ejected because its requests failed.
+         */
+        public boolean isEjected() {
+            return isEjected(System.nanoTime());
+        }
+
+        boolean isEjected(final long now) {
+            final long until = ejectedUntil;
+            return until != 0 && now - until < 0;
+        }
+
+        double getLoad() {
+            return (latency + 1) * (inFlight.get() + 1) / weight;
+        }
+
+        synchronized void onResponse(final long latencyNanos, final boolean success) {
+            final long now = System.nanoTime();
+            final double w = Math.exp(-(now - updated) / DECAY_NANOS);
+            latency = latency == 0 ? latencyNanos : latency * w + latencyNanos * (1 - w);
+            updated = now;
+
+            if (success) {
+                failures = 0;
+                if (ejectedUntil != 0 && now - ejectedUntil >= 0) {
+                    ejections = 0;
+                    ejectedUntil = 0;
+                }
+                return;
+            }
+            if (++failures >= MAX_FAILURES && !isEjected(now)) {
+                synchronized (LoadBalancer.this) {
+                    if (canEject(now)) {
+                        ejections = Math.min(ejections + 1, MAX_EJECTION_FACTOR);
+                        ejectedUntil = now + EJECTION_NANOS * ejections;
+                        failures = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check that ejecting one more endpoint leaves at least half of them.
+     */
+    private boolean canEject(final long now) {
+        final Endpoint[] all = endpoints;
+        int ejected = 1;
+        for (final Endpoint e : all) {
+            if (e.isEjected(now)) {
+                ejected++;
+            }
+        }
+        return ejected * 2 <= all.length;
+    }
+}
@@ -0,0 +1,486 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.breaker;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.sonatype.spice.jersey.client.ahc.metrics.ClientMetrics;
+
+/**
+ * Fails requests immediately, with a {@link CircuitOpenException}, while their
+ * host is known to be failing, instead of letting every request wait for its
+ * timeout.
+ * <p/>
+ * Every host, or route of a host, has a circuit. A closed circuit lets requests
+ * through and measures, over a sliding window of {@value #WINDOW_SECONDS} seconds,
+ * the ratio of failed requests, which got an exception or a 5xx status, and of slow
+ * requests. Once the window holds at least {@value #MIN_CALLS} requests and either
+ * ratio reaches its threshold, the circuit opens and rejects requests. After a
+ * while the circuit becomes half-open and lets {@value #PROBES} probe requests
+ * through: it closes if they all succeed, and opens again otherwise. The outcome
+ * of a request is ignored once the circuit has left the state in which the request
+ * was let through, so that a slow request sent while the circuit was closed does not
+ * decide whether a half-open circuit closes.
+ * <p/>
+ * Requests and state transitions are counted without locking.
+ *
+ * @see org.sonatype.spice.jersey.client.ahc.config.AhcConfig#PROPERTY_CIRCUIT_BREAKER
+ */
+public class CircuitBreaker implements CircuitBreakerMBean {
+
+    /**
+     * The state of a circuit.
+     */
+    public enum State {
+        /**
+         * Requests are sent.
+         */
+        CLOSED,
+
+        /**
+         * Requests are rejected.
+         */
+        OPEN,
+
+        /**
+         * Probe requests are sent to decide whether the circuit closes.
+         */
+        HALF_OPEN
+    }
+
+    static final int WINDOW_SECONDS = 10;
+
+    static final int MIN_CALLS = 20;
+
+    static final int PROBES = 3;
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    private static final long NANOS_PER_MILLI = 1000L * 1000;
+
+    private final double failureRateThreshold;
+
+    private final double slowCallRateThreshold;
+
+    private final long slowCallNanos;
+
+    private final long openNanos;
+
+    /**
+     * The origin of the seconds of the sliding windows.
+     */
+    private final long origin = System.nanoTime();
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    private final List<CircuitBreakerListener> listeners = new CopyOnWriteArrayList<CircuitBreakerListener>();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong opened = new AtomicLong();
+
+    /**
+     * Create a breaker opening a circuit when half of its requests fail or all of
+     * them take more than 10 seconds, for 30 seconds.
+     */
+    public CircuitBreaker() {
+        this(50, 100, 10000, 30000);
+    }
+
+    /**
+     * Create a breaker.
+     *
+     * @param failureRateThreshold the percentage of failed requests opening a circuit.
+     * @param slowCallRateThreshold the percentage of slow requests opening a circuit.
+     * @param slowCallMillis the duration from which a request is slow.
+     * @param openMillis the duration after which an open circuit becomes half-open.
+     */
+    public CircuitBreaker(final double failureRateThreshold, final double slowCallRateThreshold,
+            final long slowCallMillis, final long openMillis) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = slowCallMillis * NANOS_PER_MILLI;
+        this.openNanos = openMillis * NANOS_PER_MILLI;
+    }
+
+    /**
+     * Register a listener notified of the state transitions of the circuits.
+     *
+     * @param listener the listener.
+     */
+    public void addListener(final CircuitBreakerListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Get the permission to send a request.
+     *
+     * @param uri the URI of the request.
+     * @param route the route of the request, such as a path template, or null if the
+     *        circuit is the one of the host.
+     * @return the permission of the request, which must be notified of the outcome
+     *         of the request, or released if the request is not sent.
+     * @throws CircuitOpenException if the circuit is open.
+     */
+    public Permit acquire(final URI uri, final String route) {
+        final String name = getCircuitName(uri, route);
+        Circuit c = circuits.get(name);
+        if (c == null) {
+            final Circuit n = new Circuit(name);
+            c = circuits.putIfAbsent(name, n);
+            if (c == null) {
+                c = n;
+            }
+        }
+        final Status s = c.tryAcquire();
+        if (s == null) {
+            rejected.incrementAndGet();
+            throw new CircuitOpenException(c.name);
+        }
+        return new Permit(c, s);
+    }
+
+    /**
+     * Get a circuit.
+     *
+     * @param name the name of the circuit.
+     * @return the circuit, or null if no request used it.
+     */
+    public Circuit getCircuit(final String name) {
+        return circuits.get(name);
+    }
+
+    /**
+     * Get the name of the circuit of a request.
+     *
+     * @param uri the URI of the request.
+     * @param route the route of the request, or null.
+     * @return the circuit name, formatted as "scheme://host:port" followed by the route,
+     *         if any.
+     */
+    public static String getCircuitName(final URI uri, final String route) {
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        }
+        final String host = uri.getScheme() + "://" + uri.getHost() + ':' + port;
+        return route == null ? host : host + ' ' + route;
+    }
+
+    @Override
+    public String[] getCircuits() {
+        return circuits.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public long getOpened() {
+        return opened.get();
+    }
+
+    @Override
+    public String state(final String circuit) {
+        final Circuit c = circuits.get(circuit);
+        return c == null ? null : c.getState().name();
+    }
+
+    @Override
+    public double failureRate(final String circuit) {
+        final Circuit c = circuits.get(circuit);
+        return c == null ? 0 : c.getFailureRate();
+    }
+
+    @Override
+    public double slowCallRate(final String circuit) {
+        final Circuit c = circuits.get(circuit);
+        return c == null ? 0 : c.getSlowCallRate();
+    }
+
+    /**
+     * The state of a circuit since a transition. The half-open state counts its
+     * probes.
+     */
+    private static final class Status {
+
+        final State state;
+
+        final long since;
+
+        final AtomicInteger permits = new AtomicInteger(PROBES);
+
+        final AtomicInteger successes = new AtomicInteger();
+
+        Status(final State state, final long since) {
+            this.state = state;
+            this.since = since;
+        }
+    }
+
+    /**
+     * The number of requests completed during a second.
+     */
+    private static final class Bucket {
+
+        final long second;
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        final AtomicInteger failures = new AtomicInteger();
+
+        final AtomicInteger slowCalls = new AtomicInteger();
+
+        Bucket(final long second) {
+            this.second = second;
+        }
+    }
+
+    /**
+     * The permission of a request to be sent, notified of the outcome of the request
+     * as {@link ClientMetrics}. It remembers the state of the circuit in which it was
+     * granted, since outcomes are only counted while the circuit is in that state.
+     */
+    public static final class Permit implements ClientMetrics {
+
+        private final Circuit circuit;
+
+        private final Status status;
+
+        Permit(final Circuit circuit, final Status status) {
+            this.circuit = circuit;
+            this.status = status;
+        }
+
+        /**
+         * @return the circuit of the request.
+         */
+        public Circuit getCircuit() {
+            return circuit;
+        }
+
+        /**
+         * Give back the permission of a request that was not sent.
+         */
+        public void release() {
+            circuit.release(status);
+        }
+
+        @Override
+        public void onRequestStarted(final String method, final URI uri) {
+            // The permission is acquired before the request is started.
+        }
+
+        @Override
+        public void onRequestCompleted(final String method, final URI uri, final int status, final long durationNanos,
+                final long requestBytes, final long responseBytes) {
+            circuit.record(this.status, status >= 500, durationNanos);
+        }
+
+        @Override
+        public void onRequestFailed(final String method, final URI uri, final Throwable t, final long durationNanos) {
+            if (t instanceof CancellationException) {
+                release();
+            } else {
+                circuit.record(status, true, durationNanos);
+            }
+        }
+    }
+
+    /**
+     * The circuit of a host or route.
+     */
+    public final class Circuit {
+
+        private final String name;
+
+        private final AtomicReference<Status> status =
+                new AtomicReference<Status>(new Status(State.CLOSED, System.nanoTime()));
+
+        private final AtomicReferenceArray<Bucket> window = new AtomicReferenceArray<Bucket>(WINDOW_SECONDS);
+
+        Circuit(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the name of the circuit.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the state of the circuit.
+         */
+        public State getState() {
+            return status.get().state;
+        }
+
+        /**
+         * @return the percentage of failed requests in the sliding window.
+         */
+        public double getFailureRate() {
+            final int[] c = count(System.nanoTime());
+            return c[0] == 0 ? 0 : 100.0 * c[1] / c[0];
+        }
+
+        /**
+         * @return the percentage of slow requests in the sliding window.
+         */
+        public double getSlowCallRate() {
+            final int[] c = count(System.nanoTime());
+            return c[0] == 0 ? 0 : 100.0 * c[2] / c[0];
+        }
+
+        /**
+         * Give back a permission granted in a state, unless the circuit has left it.
+         */
+        void release(final Status granted) {
+            if (granted.state == State.HALF_OPEN && status.get() == granted) {
+                granted.permits.incrementAndGet();
+            }
+        }
+
+        /**
+         * @return the state in which the permission is granted, or null if the
+         *         request is rejected.
+         */
+        Status tryAcquire() {
+            for (;;) {
+                final Status s = status.get();
+                switch (s.state) {
+                case CLOSED:
+                    return s;
+                case OPEN:
+                    final long now = System.nanoTime();
+                    if (now - s.since < openNanos) {
+                        return null;
+                    }
+                    transition(s, new Status(State.HALF_OPEN, now));
+                    break;
+                default:
+                    for (;;) {
+                        final int p = s.permits.get();
+                        if (p <= 0) {
+                            return null;
+                        }
+                        if (s.permits.compareAndSet(p, p - 1)) {
+                            return s;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Record the outcome of a request, unless the circuit has left the state in
+         * which the request was let through.
+         */
+        void record(final Status granted, final boolean failed, final long durationNanos) {
+            final long now = System.nanoTime();
+            final Status s = status.get();
+            if (s != granted) {
+                // A request sent before the last transition.
+                return;
+            }
+            switch (s.state) {
+            case CLOSED:
+                final Bucket b = getBucket(now);
+                b.calls.incrementAndGet();
+                if (failed) {
+                    b.failures.incrementAndGet();
+                }
+                if (durationNanos >= slowCallNanos) {
+                    b.slowCalls.incrementAndGet();
+                }
+                final int[] c = count(now);
+                if (c[0] >= MIN_CALLS && (100.0 * c[1] / c[0] >= failureRateThreshold
+                        || 100.0 * c[2] / c[0] >= slowCallRateThreshold)) {
+                    open(s, now);
+                }
+                break;
+            case HALF_OPEN:
+                if (failed || durationNanos >= slowCallNanos) {
+                    open(s, now);
+                } else if (s.successes.incrementAndGet() >= PROBES && transition(s, new Status(State.CLOSED, now))) {
+                    for (int i = 0; i < WINDOW_SECONDS; i++) {
+                        window.set(i, null);
+                    }
+                }
+                break;
+            default:
+                // No request is let through an open circuit.
+            }
+        }
+
+        private void open(final Status s, final long now) {
+            if (transition(s, new Status(State.OPEN, now))) {
+                opened.incrementAndGet();
+            }
+        }
+
+        private boolean transition(final Status from, final Status to) {
+            if (!status.compareAndSet(from, to)) {
+                return false;
+            }
+            for (final CircuitBreakerListener l : listeners) {
+                l.onStateChange(name, from.state, to.state);
+            }
+            return true;
+        }
+
+        private Bucket getBucket(final long now) {
+            final long second = (now - origin) / NANOS_PER_SECOND;
+            final int i = (int) (second % WINDOW_SECONDS);
+            for (;;) {
+                final Bucket b = window.get(i);
+                if (b != null && b.second == second) {
+                    return b;
+                }
+                final Bucket n = new Bucket(second);
+                if (window.compareAndSet(i, b, n)) {
+                    return n;
+                }
+            }
+        }
+
+        /**
+         * @return the number of requests, failed requests and slow requests in the
+         *         sliding window.
+         */
+        private int[] count(final long now) {
+            final long second = (now - origin) / NANOS_PER_SECOND;
+            final int[] c = new int[3];
+            for (int i = 0; i < WINDOW_SECONDS; i++) {
+                final Bucket b = window.get(i);
+                if (b != null && second - b.second < WINDOW_SECONDS) {
+                    c[0] += b.calls.get();
+                    c[1] += b.failures.get();
+                    c[2] += b.slowCalls.get();
+                }
+            }
+            return c;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.breaker;
+
+/**
+ * Notified of the state transitions of the circuits of a {@link CircuitBreaker}.
+ * Listeners are invoked by the threads completing the requests, including the AHC
+ * I/O threads, so they must not block.
+ */
+public interface CircuitBreakerListener {
+
+    /**
+     * A circuit changed state.
+     *
+     * @param circuit the name of the circuit.
+     * @param from the previous state.
+     * @param to the new state.
+     */
+    void onStateChange(String circuit, CircuitBreaker.State from, CircuitBreaker.State to);
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.breaker;
+
+/**
+ * The management interface of {@link CircuitBreaker}.
+ */
+public interface CircuitBreakerMBean {
+
+    /**
+     * @return the names of the circuits.
+     */
+    String[] getCircuits();
+
+    /**
+     * @return the number of requests rejected because their circuit was open.
+     */
+    long getRejected();
+
+    /**
+     * @return the number of times a circuit opened.
+     */
+    long getOpened();
+
+    /**
+     * @param circuit one of the {@link #getCircuits() circuits}.
+     * @return the state of the circuit.
+     */
+    String state(String circuit);
+
+    /**
+     * @param circuit one of the {@link #getCircuits() circuits}.
+     * @return the percentage of failed requests in the sliding window of the circuit.
+     */
+    double failureRate(String circuit);
+
+    /**
+     * @param circuit one of the {@link #getCircuits() circuits}.
+     * @return the percentage of slow requests in the sliding window of the circuit.
+     */
+    double slowCallRate(String circuit);
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.breaker;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+
+/**
+ * Thrown when a request is not sent because the circuit of its host, or route, is
+ * open.
+ */
+public class CircuitOpenException extends ClientHandlerException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String circuit;
+
+    /**
+     * @param circuit the name of the open circuit.
+     */
+    public CircuitOpenException(final String circuit) {
+        super("The circuit " + circuit + " is open");
+        this.circuit = circuit;
+    }
+
+    /**
+     * @return the name of the open circuit.
+     */
+    public String getCircuit() {
+        return circuit;
+    }
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.buffer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of the byte arrays that request entities are serialized into, so that
+ * buffering an entity does not allocate memory once the pool is warm.
+ * <p/>
+ * Arrays come in three size classes, 1 KiB, 8 KiB and 64 KiB, that a
+ * {@link PooledOutputStream} chains as the entity grows. The pool keeps the arrays
+ * that are released until the total size of the idle arrays reaches a bound, and
+ * lets the garbage collector reclaim the others.
+ * <p/>
+ * If leak detection is enabled, every {@link PooledOutputStream} records where it
+ * was created and a stream that is garbage collected without having been released
+ * is logged with that stack trace. Recording the stack trace is expensive, so leak
+ * detection is meant for debugging.
+ */
+public class BufferPool {
+
+    /**
+     * The system property enabling the leak detection of the {@link #getDefault()
+     * default pool}.
+     */
+    public static final String DETECT_LEAKS_PROPERTY = "org.sonatype.spice.jersey.client.ahc.buffer.detectLeaks";
+
+    private static final Logger LOGGER = Logger.getLogger(BufferPool.class.getName());
+
+    private static final int[] SIZES = { 1024, 8 * 1024, 64 * 1024 };
+
+    private static final long DEFAULT_MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_POOLED_BYTES,
+            Boolean.getBoolean(DETECT_LEAKS_PROPERTY));
+
+    private final ConcurrentLinkedQueue<byte[]>[] free;
+
+    private final long maxPooledBytes;
+
+    private final boolean detectLeaks;
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    private final AtomicInteger leaks = new AtomicInteger();
+
+    /**
+     * Create a pool keeping up to 16 MiB of idle arrays, without leak detection.
+     */
+    public BufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES, false);
+    }
+
+    /**
+     * Create a pool.
+     *
+     * @param maxPooledBytes the maximum total size of the idle arrays.
+     * @param detectLeaks true if streams that are not released are logged.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(final long maxPooledBytes, final boolean detectLeaks) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("The maximum size must not be negative");
+        }
+        this.maxPooledBytes = maxPooledBytes;
+        this.detectLeaks = detectLeaks;
+        this.free = new ConcurrentLinkedQueue[SIZES.length];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<byte[]>();
+        }
+    }
+
+    /**
+     * @return the pool shared by the clients that are not configured with their own
+     *         pool. Its leak detection is enabled by the {@link #DETECT_LEAKS_PROPERTY}
+     *         system property.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Create a stream buffering bytes in arrays of this pool. The stream MUST be
+     * {@link PooledOutputStream#release() released} once its content is not used
+     * anymore.
+     *
+     * @param sizeHint the expected number of bytes, or -1 if unknown.
+     * @return the stream.
+     */
+    public PooledOutputStream newOutputStream(final long sizeHint) {
+        return new PooledOutputStream(this, sizeHint,
+                detectLeaks ? new Throwable("Buffer allocated here") : null);
+    }
+
+    /**
+     * @return the total size in bytes of the idle arrays.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return the total size in bytes of the arrays allocated because the pool had
+     *         none of the requested size.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return the number of streams that were garbage collected without having been
+     *         released, if leak detection is enabled.
+     */
+    public int getLeaks() {
+        return leaks.get();
+    }
+
+    /**
+     * @return the size of the first array of a stream expected to hold the given
+     *         number of bytes.
+     */
+    static int getInitialSize(final long sizeHint) {
+        for (final int size : SIZES) {
+            if (sizeHint <= size) {
+                return size;
+            }
+        }
+        return SIZES[SIZES.length - 1];
+    }
+
+    /**
+     * @return the size of the array following an array of the given size.
+     */
+    static int getNextSize(final int size) {
+        for (final int s : SIZES) {
+            if (s > size) {
+                return s;
+            }
+        }
+        return SIZES[SIZES.length - 1];
+    }
+
+    byte[] acquire(final int size) {
+        final byte[] b = free[indexOf(size)].poll();
+        if (b != null) {
+            pooledBytes.addAndGet(-b.length);
+            return b;
+        }
+        allocatedBytes.addAndGet(size);
+        return new byte[size];
+    }
+
+    void release(final byte[] b) {
+        if (pooledBytes.addAndGet(b.length) > maxPooledBytes) {
+            pooledBytes.addAndGet(-b.length);
+            return;
+        }
+        free[indexOf(b.length)].offer(b);
+    }
+
+    void leaked(final Throwable allocation) {
+        leaks.incrementAndGet();
+        LOGGER.log(Level.WARNING, "A pooled buffer was garbage collected without having been released", allocation);
+    }
+
+    private static int indexOf(final int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (SIZES[i] == size) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a size class: " + size);
+    }
+}
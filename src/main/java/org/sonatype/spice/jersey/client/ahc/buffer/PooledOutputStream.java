@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.buffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link OutputStream} buffering bytes in a chain of arrays of a
+ * {@link BufferPool}. Unlike a {@link java.io.ByteArrayOutputStream} the content is
+ * never copied while the stream grows, nor to be read: {@link #writeTo(OutputStream)}
+ * writes the arrays themselves.
+ * <p/>
+ * The stream is written by a single thread. Once it is written its content may be
+ * read by several threads concurrently, until it is {@link #release() released}.
+ */
+public final class PooledOutputStream extends OutputStream {
+
+    private final BufferPool pool;
+
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+    private final LeakTracker tracker;
+
+    private byte[] chunk;
+
+    private int count;
+
+    private long size;
+
+    private volatile boolean released;
+
+    PooledOutputStream(final BufferPool pool, final long sizeHint, final Throwable allocation) {
+        this.pool = pool;
+        this.tracker = allocation != null ? new LeakTracker(pool, allocation) : null;
+        this.chunk = pool.acquire(BufferPool.getInitialSize(sizeHint));
+        chunks.add(chunk);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        ensureOpen();
+        if (count == chunk.length) {
+            grow();
+        }
+        chunk[count++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        size += len;
+        while (len > 0) {
+            if (count == chunk.length) {
+                grow();
+            }
+            final int n = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Write the content of this stream.
+     *
+     * @param out the stream to write to.
+     * @throws IOException if the content cannot be written or has been released.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        ensureOpen();
+        final int last = chunks.size() - 1;
+        for (int i = 0; i < last; i++) {
+            final byte[] c = chunks.get(i);
+            out.write(c, 0, c.length);
+        }
+        out.write(chunks.get(last), 0, count);
+    }
+
+    /**
+     * Copy the content of this stream from a position into a buffer, as much as it
+     * holds.
+     *
+     * @param position the position in the content.
+     * @param buffer the buffer to copy to.
+     * @return the number of bytes copied, or -1 if the position is the end of the content.
+     * @throws IOException if the content has been released.
+     */
+    public int read(final long position, final ByteBuffer buffer) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        final int start = buffer.position();
+        final int last = chunks.size() - 1;
+        int i = 0;
+        long offset = 0;
+        // The arrays grow up to the largest size, which the following arrays all have,
+        // hence the array holding the position is found without walking the chain.
+        while (i < last) {
+            final int length = chunks.get(i).length;
+            if (position < offset + length) {
+                break;
+            }
+            if (length == chunks.get(i + 1).length) {
+                final int skipped = (int) Math.min((position - offset) / length, last - i);
+                i += skipped;
+                offset += (long) skipped * length;
+                break;
+            }
+            offset += length;
+            i++;
+        }
+        for (; i <= last && buffer.hasRemaining(); i++) {
+            final byte[] c = chunks.get(i);
+            final int length = i == last ? count : c.length;
+            final int from = (int) (position - offset > 0 ? position - offset : 0);
+            final int n = Math.min(length - from, buffer.remaining());
+            buffer.put(c, from, n);
+            offset += length;
+        }
+        return buffer.position() - start;
+    }
+
+    /**
+     * Return the arrays of this stream to the pool. The content cannot be read
+     * anymore.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (tracker != null) {
+            tracker.released = true;
+        }
+        for (final byte[] c : chunks) {
+            pool.release(c);
+        }
+        chunks.clear();
+        chunk = null;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (released) {
+            throw new IOException("The buffer has been released");
+        }
+    }
+
+    private void grow() {
+        chunk = pool.acquire(BufferPool.getNextSize(chunk.length));
+        chunks.add(chunk);
+        count = 0;
+    }
+
+    /**
+     * Reports the stream to the pool if it is garbage collected before being
+     * released. A separate object is finalized so that the stream itself, which is
+     * the common case, does not pay for finalization.
+     */
+    private static final class LeakTracker {
+
+        private final BufferPool pool;
+
+        private final Throwable allocation;
+
+        volatile boolean released;
+
+        LeakTracker(final BufferPool pool, final Throwable allocation) {
+            this.pool = pool;
+            this.allocation = allocation;
+        }
+
+        @Override
+        protected void finalize() {
+            if (!released) {
+                pool.leaked(allocation);
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.core.header.reader.HttpHeaderReader;
+
+/**
+ * A response stored by a {@link ResponseCache}. Instances are immutable, a
+ * revalidated response replacing the stored one.
+ */
+final class CachedResponse {
+
+    private static final String AGE = "Age";
+
+    private static final String EXPIRES = "Expires";
+
+    private static final String ETAG = "ETag";
+
+    private static final int HEADER_OVERHEAD = 32;
+
+    private final int status;
+
+    private final InBoundHeaders headers;
+
+    private final byte[] body;
+
+    private final Map<String, String> varying;
+
+    private final long expires;
+
+    private final long weight;
+
+    /**
+     * @param status the status code of the response.
+     * @param headers the headers of the response.
+     * @param body the entity of the response.
+     * @param varying the values of the request headers listed by the Vary header.
+     * @param expires the time until which the response may be used without
+     *        revalidation.
+     */
+    CachedResponse(final int status, final InBoundHeaders headers, final byte[] body,
+            final Map<String, String> varying, final long expires) {
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+        this.varying = varying;
+        this.expires = expires;
+
+        long w = body.length;
+        for (final Map.Entry<String, List<String>> e : headers.entrySet()) {
+            for (final String v : e.getValue()) {
+                w += HEADER_OVERHEAD + e.getKey().length() + v.length();
+            }
+        }
+        this.weight = w;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    long getWeight() {
+        return weight;
+    }
+
+    boolean isFresh(final long now) {
+        return now < expires;
+    }
+
+    boolean hasValidators() {
+        return headers.containsKey(ETAG) || headers.containsKey(HttpHeaders.LAST_MODIFIED);
+    }
+
+    String getETag() {
+        return headers.getFirst(ETAG);
+    }
+
+    String getLastModified() {
+        return headers.getFirst(HttpHeaders.LAST_MODIFIED);
+    }
+
+    /**
+     * @return true if the request headers listed by the Vary header of the
+     *         response have the same values as in the request of the response.
+     */
+    boolean matches(final MultivaluedMap<String, Object> requestHeaders) {
+        for (final Map.Entry<String, String> e : varying.entrySet()) {
+            if (!e.getValue().equals(join(requestHeaders.get(e.getKey())))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the headers of the response.
+     */
+    InBoundHeaders getHeaders() {
+        return copy(headers);
+    }
+
+    InputStream getBody() {
+        return new ByteArrayInputStream(body);
+    }
+
+    /**
+     * Update the response with the headers of a 304 (Not Modified) response.
+     *
+     * @param notModified the headers of the 304 response.
+     * @param now the time the 304 response was received.
+     * @return the updated response.
+     */
+    CachedResponse revalidate(final MultivaluedMap<String, String> notModified, final long now) {
+        final InBoundHeaders updated = getHeaders();
+        for (final Map.Entry<String, List<String>> e : notModified.entrySet()) {
+            if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(e.getKey())) {
+                updated.put(e.getKey(), new ArrayList<String>(e.getValue()));
+            }
+        }
+        return new CachedResponse(status, updated, body, varying,
+                getExpires(getCacheControl(updated), updated, now));
+    }
+
+    /**
+     * Get the time until which a response may be used without revalidation, from
+     * its Cache-Control max-age directive or its Expires header.
+     *
+     * @return the time, or 0 if the response must be revalidated.
+     */
+    static long getExpires(final CacheControl cc, final MultivaluedMap<String, String> headers, final long now) {
+        if (cc != null) {
+            if (cc.isNoCache()) {
+                return 0;
+            }
+            if (cc.getMaxAge() >= 0) {
+                return now + (cc.getMaxAge() - getAge(headers)) * 1000L;
+            }
+        }
+
+        final String expires = headers.getFirst(EXPIRES);
+        if (expires == null) {
+            return 0;
+        }
+        try {
+            final long e = HttpHeaderReader.readDate(expires).getTime();
+            final String date = headers.getFirst(HttpHeaders.DATE);
+            // Use the clock of the server to compute the freshness lifetime.
+            return date == null ? e : now + e - HttpHeaderReader.readDate(date).getTime();
+        } catch (final ParseException ex) {
+            // An invalid date means that the response is already expired.
+            return 0;
+        }
+    }
+
+    private static long getAge(final MultivaluedMap<String, String> headers) {
+        final String age = headers.getFirst(AGE);
+        if (age != null) {
+            try {
+                return Long.parseLong(age.trim());
+            } catch (final NumberFormatException e) {
+                // Ignored as the header is invalid.
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the Cache-Control header, or null if it is absent or invalid.
+     */
+    static CacheControl getCacheControl(final MultivaluedMap<String, ?> headers) {
+        final String value = join(headers.get(HttpHeaders.CACHE_CONTROL));
+        if (value.length() == 0) {
+            return null;
+        }
+        try {
+            return CacheControl.valueOf(value);
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return a deep copy of headers.
+     */
+    static InBoundHeaders copy(final MultivaluedMap<String, String> headers) {
+        final InBoundHeaders copy = new InBoundHeaders();
+        for (final Map.Entry<String, List<String>> e : headers.entrySet()) {
+            copy.put(e.getKey(), new ArrayList<String>(e.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * @return the values of a header as a comma separated list.
+     */
+    static String join(final List<?> values) {
+        if (values == null || values.isEmpty()) {
+            return "";
+        }
+        if (values.size() == 1) {
+            return ClientRequest.getHeaderValue(values.get(0));
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final Object v : values) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(ClientRequest.getHeaderValue(v));
+        }
+        return sb.toString();
+    }
+}
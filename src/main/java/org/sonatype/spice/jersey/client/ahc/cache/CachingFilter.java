@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.filter.ClientFilter;
+
+/**
+ * A client filter answering GET requests from a {@link ResponseCache}.
+ * <p/>
+ * 200 (OK) responses are stored unless their Cache-Control header contains the
+ * no-store directive, and provided they are fresh for some time, according to
+ * their Cache-Control max-age directive or their Expires header, or carry an
+ * ETag or Last-Modified validator. A fresh response is returned without
+ * contacting the server. A stale one is revalidated with a conditional request,
+ * a 304 (Not Modified) response being replaced by the stored response.
+ * <p/>
+ * The no-cache and no-store directives of a request are honored, as well as the
+ * Vary header of the responses. Requests with other methods than GET, HEAD and
+ * OPTIONS invalidate the response stored for their URI. Requests carrying their
+ * own conditional or Range headers are not answered from the cache.
+ * <p/>
+ * Since a cache may be shared, the response to a request with an Authorization
+ * header, whether set by the caller or by a filter below this one, is only stored
+ * if its Cache-Control header contains the public or s-maxage directive, as
+ * required of shared caches by RFC 7234, section 3.2.
+ * <p/>
+ * The entities of the stored responses are kept in memory.
+ */
+public class CachingFilter extends ClientFilter {
+
+    private static final String IF_NONE_MATCH = "If-None-Match";
+
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String RANGE = "Range";
+
+    private static final String PRAGMA = "Pragma";
+
+    private static final String VARY = "Vary";
+
+    private static final String ETAG = "ETag";
+
+    private final ResponseCache cache;
+
+    /**
+     * Create a filter with its own cache, see {@link ResponseCache#ResponseCache(long)}.
+     *
+     * @param maxSize the maximum number of bytes of the responses stored.
+     */
+    public CachingFilter(final long maxSize) {
+        this(new ResponseCache(maxSize));
+    }
+
+    /**
+     * Create a filter with its own cache.
+     *
+     * @param maxSize the maximum number of bytes of the responses stored.
+     * @param maxEntrySize the maximum number of bytes of a single response.
+     */
+    public CachingFilter(final long maxSize, final long maxEntrySize) {
+        this(new ResponseCache(maxSize, maxEntrySize));
+    }
+
+    /**
+     * Create a filter storing the responses in a cache.
+     *
+     * @param cache the cache, which may be shared with other filters.
+     */
+    public CachingFilter(final ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the cache of the filter.
+     */
+    public ResponseCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public ClientResponse handle(final ClientRequest cr) throws ClientHandlerException {
+        final String method = cr.getMethod();
+        final String key = cr.getURI().toString();
+        if (!"GET".equals(method)) {
+            final ClientResponse r = getNext().handle(cr);
+            if (!"HEAD".equals(method) && !"OPTIONS".equals(method) && r.getStatus() < 400) {
+                cache.invalidate(key);
+            }
+            return r;
+        }
+
+        final MultivaluedMap<String, Object> headers = cr.getHeaders();
+        if (headers.containsKey(IF_NONE_MATCH) || headers.containsKey(IF_MODIFIED_SINCE)
+                || headers.containsKey(RANGE)) {
+            return getNext().handle(cr);
+        }
+        final CacheControl cc = CachedResponse.getCacheControl(headers);
+        if (cc != null && cc.isNoStore()) {
+            return getNext().handle(cr);
+        }
+        final boolean revalidate = cc != null && (cc.isNoCache() || cc.getMaxAge() == 0)
+                || "no-cache".equals(CachedResponse.join(headers.get(PRAGMA)));
+
+        final long now = System.currentTimeMillis();
+        CachedResponse cached = cache.get(key);
+        if (cached != null && !cached.matches(headers)) {
+            cached = null;
+        }
+        if (cached != null && !revalidate && cached.isFresh(now)) {
+            final Client client = (Client) cr.getProperties().get(Client.class.getName());
+            if (client != null) {
+                cache.recordHit();
+                return new ClientResponse(cached.getStatus(), cached.getHeaders(), cached.getBody(),
+                        client.getMessageBodyWorkers());
+            }
+        }
+        if (cached != null && cached.hasValidators()) {
+            if (cached.getETag() != null) {
+                headers.putSingle(IF_NONE_MATCH, cached.getETag());
+            }
+            if (cached.getLastModified() != null) {
+                headers.putSingle(IF_MODIFIED_SINCE, cached.getLastModified());
+            }
+        } else {
+            cached = null;
+        }
+
+        final ClientResponse r;
+        try {
+            r = getNext().handle(cr);
+        } finally {
+            // The conditional headers belong to this request only, not to the caller.
+            if (cached != null) {
+                headers.remove(IF_NONE_MATCH);
+                headers.remove(IF_MODIFIED_SINCE);
+            }
+        }
+        if (cached != null && r.getStatus() == ClientResponse.Status.NOT_MODIFIED.getStatusCode()) {
+            cache.recordHit();
+            r.close();
+
+            cached = cached.revalidate(r.getHeaders(), now);
+            cache.put(key, cached);
+            r.setStatus(cached.getStatus());
+            r.getHeaders().clear();
+            r.getHeaders().putAll(cached.getHeaders());
+            r.setEntityInputStream(cached.getBody());
+            return r;
+        }
+
+        cache.recordMiss();
+        if (r.getStatus() == ClientResponse.Status.OK.getStatusCode()) {
+            store(key, headers, r, now);
+        }
+        return r;
+    }
+
+    private void store(final String key, final MultivaluedMap<String, Object> requestHeaders,
+            final ClientResponse r, final long now) {
+        final MultivaluedMap<String, String> headers = r.getHeaders();
+        final CacheControl cc = CachedResponse.getCacheControl(headers);
+        if (cc != null && cc.isNoStore()) {
+            cache.invalidate(key);
+            return;
+        }
+        if (requestHeaders.containsKey(HttpHeaders.AUTHORIZATION) && !isPublic(headers, cc)) {
+            return;
+        }
+        final Map<String, String> varying = getVarying(headers, requestHeaders);
+        if (varying == null) {
+            return;
+        }
+        final long expires = CachedResponse.getExpires(cc, headers, now);
+        if (expires <= now && !headers.containsKey(ETAG) && !headers.containsKey(HttpHeaders.LAST_MODIFIED)) {
+            return;
+        }
+        if (r.getLength() > cache.getMaxEntrySize()) {
+            return;
+        }
+
+        final byte[] body;
+        try {
+            body = read(r, cache.getMaxEntrySize());
+        } catch (final IOException e) {
+            throw new ClientHandlerException(e);
+        }
+        if (body == null) {
+            return;
+        }
+
+        final CachedResponse cached =
+                new CachedResponse(r.getStatus(), CachedResponse.copy(headers), body, varying, expires);
+        cache.put(key, cached);
+        r.setEntityInputStream(new ByteArrayInputStream(body));
+    }
+
+    /**
+     * @return true if the response to an authenticated request may be stored by a
+     *         shared cache.
+     */
+    private static boolean isPublic(final MultivaluedMap<String, String> headers, final CacheControl cc) {
+        if (cc == null) {
+            return false;
+        }
+        if (cc.getSMaxAge() >= 0) {
+            return true;
+        }
+        // CacheControl does not keep the public directive.
+        for (final String directive : CachedResponse.join(headers.get(HttpHeaders.CACHE_CONTROL)).split(",")) {
+            if ("public".equalsIgnoreCase(directive.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the entity of a response, unless it is larger than the limit in which
+     * case the entity of the response is left readable from the start.
+     *
+     * @return the entity, or null if it is larger than the limit.
+     */
+    private static byte[] read(final ClientResponse r, final long limit) throws IOException {
+        final InputStream in = r.getEntityInputStream();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(r.getLength() > 0 ? r.getLength() : 1024);
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            if (out.size() > limit) {
+                r.setEntityInputStream(new SequenceInputStream(new ByteArrayInputStream(out.toByteArray()), in));
+                return null;
+            }
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the values of the request headers listed by the Vary header of the
+     *         response, or null if the response varies on every request.
+     */
+    private static Map<String, String> getVarying(final MultivaluedMap<String, String> headers,
+            final MultivaluedMap<String, Object> requestHeaders) {
+        final String vary = CachedResponse.join(headers.get(VARY));
+        if (vary.length() == 0) {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> varying = new HashMap<String, String>();
+        for (final String name : vary.split(",")) {
+            final String n = name.trim();
+            if ("*".equals(n)) {
+                return null;
+            }
+            if (n.length() > 0) {
+                varying.put(n, CachedResponse.join(requestHeaders.get(n)));
+            }
+        }
+        return varying;
+    }
+}
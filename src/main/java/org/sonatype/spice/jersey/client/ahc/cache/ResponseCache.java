@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The responses stored by a {@link CachingFilter}, evicted in least recently
+ * used order once their total size exceeds a bound. A response larger than the
+ * bound of a single entry is not stored, so that it cannot evict every other
+ * response.
+ * <p/>
+ * A cache may be shared by several filters, and so by several clients.
+ */
+public class ResponseCache {
+
+    private final long maxSize;
+
+    private final long maxEntrySize;
+
+    private final LinkedHashMap<String, CachedResponse> entries =
+            new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+
+    private long size;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Create a cache storing responses of up to an eighth of its maximum size.
+     *
+     * @param maxSize the maximum number of bytes of the responses stored, bodies
+     *        and headers included.
+     */
+    public ResponseCache(final long maxSize) {
+        this(maxSize, Math.max(1, maxSize / 8));
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param maxSize the maximum number of bytes of the responses stored, bodies
+     *        and headers included.
+     * @param maxEntrySize the maximum number of bytes of a single response.
+     */
+    public ResponseCache(final long maxSize, final long maxEntrySize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("The maximum size must be positive: " + maxSize);
+        }
+        if (maxEntrySize <= 0 || maxEntrySize > maxSize) {
+            throw new IllegalArgumentException("The maximum entry size must be positive and at most "
+                    + maxSize + ": " + maxEntrySize);
+        }
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * @return the maximum number of bytes of the responses stored.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the maximum number of bytes of a single response.
+     */
+    public long getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * @return the number of bytes of the responses stored.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of responses stored.
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of requests answered from the cache, with or without
+     *         revalidation.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return the number of requests for which no response was stored.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Remove the response stored for a URI.
+     *
+     * @param uri the URI of the request.
+     */
+    public synchronized void invalidate(final String uri) {
+        final CachedResponse e = entries.remove(uri);
+        if (e != null) {
+            size -= e.getWeight();
+        }
+    }
+
+    /**
+     * Remove all the responses.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    synchronized CachedResponse get(final String uri) {
+        return entries.get(uri);
+    }
+
+    synchronized void recordHit() {
+        hits++;
+    }
+
+    synchronized void recordMiss() {
+        misses++;
+    }
+
+    synchronized void put(final String uri, final CachedResponse response) {
+        final long weight = response.getWeight();
+        if (weight > maxEntrySize) {
+            invalidate(uri);
+            return;
+        }
+
+        final CachedResponse previous = entries.put(uri, response);
+        if (previous != null) {
+            size -= previous.getWeight();
+        }
+        size += weight;
+
+        final Iterator<Map.Entry<String, CachedResponse>> i = entries.entrySet().iterator();
+        while (size > maxSize && i.hasNext()) {
+            size -= i.next().getValue().getWeight();
+            i.remove();
+        }
+    }
+}
@@ -16,6 +16,320 @@ import com.sun.jersey.api.client.config.ClientConfig;
 
 public interface AhcConfig extends ClientConfig {
 
+    /**
+     * Request entity streaming property. A value of "true" declares that request
+     * entities are written to the connection while they are serialized, instead of
+     * being buffered in memory before the request is sent.
+     * <p>
+     * When the size of the entity is known it is sent with a Content-Length,
+     * otherwise chunked transfer encoding is used. Headers added by a
+     * {@link javax.ws.rs.ext.MessageBodyWriter} while it writes the entity are
+     * ignored, since the request head has already been sent by then.
+     * The size of the buffer between the writer and the connection is taken from
+     * {@link #PROPERTY_CHUNKED_ENCODING_SIZE} when present.
+     * <p>
+     * The entity is read by an I/O thread of AHC, which blocks while the writer has
+     * not produced the next bytes, and meanwhile serves no other connection. A
+     * writer that may stall should thus not be streamed. The wait is bounded by the
+     * read timeout of the request, see {@link #PROPERTY_READ_TIMEOUT}, after which
+     * the request is aborted.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.Boolean}.
+     * If the property is absent then the default value is "false".
+     */
+    public static final String PROPERTY_STREAM_REQUEST_ENTITY =
+            "org.sonatype.spice.jersey.client.ahc.config.property.streamRequestEntity";
+
+    /**
+     * Response entity streaming property. A value of "true" declares that a
+     * {@link com.sun.jersey.api.client.ClientResponse} is returned as soon as the
+     * status line and the headers are received, its entity being fed while the body
+     * arrives instead of being buffered in memory first.
+     * <p>
+     * The entity of a streamed response MUST be read or the response closed, since
+     * the connection stops reading from the network once
+     * {@link #PROPERTY_RESPONSE_BUFFER_SIZE} bytes are waiting to be consumed.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.Boolean}.
+     * If the property is absent then the default value is "false".
+     */
+    public static final String PROPERTY_STREAM_RESPONSE_ENTITY =
+            "org.sonatype.spice.jersey.client.ahc.config.property.streamResponseEntity";
+
+    /**
+     * The number of bytes of a streamed response entity that may be received ahead
+     * of the reader.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.Integer}.
+     * If the property is absent then the default value is 65536.
+     */
+    public static final String PROPERTY_RESPONSE_BUFFER_SIZE =
+            "org.sonatype.spice.jersey.client.ahc.config.property.responseBufferSize";
+
+    /**
+     * The store keeping the cookies of the client.
+     * <p>
+     * The value MUST be an instance of
+     * {@link org.sonatype.spice.jersey.client.ahc.cookie.CookieStore}, for instance a
+     * {@link org.sonatype.spice.jersey.client.ahc.cookie.NoOpCookieStore} for clients
+     * that do not need cookies.
+     * If the property is absent then a
+     * {@link org.sonatype.spice.jersey.client.ahc.cookie.DefaultCookieStore} is used.
+     */
+    public static final String PROPERTY_COOKIE_STORE =
+            "org.sonatype.spice.jersey.client.ahc.config.property.cookieStore";
+
+    /**
+     * The metrics receiving the latency, size and outcome of every request.
+     * <p>
+     * The value MUST be an instance of
+     * {@link org.sonatype.spice.jersey.client.ahc.metrics.ClientMetrics}. A
+     * {@link org.sonatype.spice.jersey.client.ahc.metrics.DefaultClientMetrics} is
+     * also registered as a platform MBean by
+     * {@link org.sonatype.spice.jersey.client.ahc.AhcHttpClient}.
+     * If the property is absent then requests are not measured.
+     */
+    public static final String PROPERTY_CLIENT_METRICS =
+            "org.sonatype.spice.jersey.client.ahc.config.property.clientMetrics";
+
+    /**
+     * Response sharing property. A value of "true" declares that a GET or HEAD
+     * request sent while an identical request, with the same URI, headers and
+     * {@link RequestOptions}, is in flight does not go to the server but gets a copy
+     * of the response to that request. Only the headers and the options are
+     * compared: requests that differ by other properties, such as
+     * {@link #PROPERTY_CIRCUIT_ROUTE}, share their responses. The responses are
+     * buffered, whatever the value of {@link #PROPERTY_STREAM_RESPONSE_ENTITY}.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.Boolean}.
+     * If the property is absent then the default value is "false".
+     */
+    public static final String PROPERTY_SHARE_RESPONSES =
+            "org.sonatype.spice.jersey.client.ahc.config.property.shareResponses";
+
+    /**
+     * Callback completion property. A value of "true" declares that a request
+     * executed synchronously is cancelled when the waiting thread is interrupted,
+     * instead of running to completion unattended. Either way the interrupted
+     * thread gets a {@link com.sun.jersey.api.client.ClientHandlerException}.
+     * Requests that may be retried or hedged, see {@link #PROPERTY_RETRY_POLICY}
+     * and {@link #PROPERTY_HEDGE_POLICY}, are always cancelled.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.Boolean}.
+     * If the property is absent then the default value is "false".
+     */
+    public static final String PROPERTY_CALLBACK_COMPLETION =
+            "org.sonatype.spice.jersey.client.ahc.config.property.callbackCompletion";
+
+    /**
+     * Maximum concurrency property. If present, the number of requests in flight to a
+     * host is limited by an
+     * {@link org.sonatype.spice.jersey.client.ahc.limit.AdaptiveConcurrencyLimiter},
+     * which adapts the limit of every host to the latency of its responses, without
+     * exceeding the value of this property. The limiter is also registered as a
+     * platform MBean by {@link org.sonatype.spice.jersey.client.ahc.AhcHttpClient}.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.Integer}.
+     * If the property is absent then the number of requests is not limited.
+     */
+    public static final String PROPERTY_MAX_CONCURRENCY =
+            "org.sonatype.spice.jersey.client.ahc.config.property.maxConcurrency";
+
+    /**
+     * The maximum number of synchronous requests per host that wait for the
+     * concurrency limit of the host, see {@link #PROPERTY_MAX_CONCURRENCY}. Requests
+     * beyond that number, as well as asynchronous requests beyond the limit, are
+     * rejected with a
+     * {@link org.sonatype.spice.jersey.client.ahc.limit.ConcurrencyLimitExceededException}.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.Integer}.
+     * If the property is absent then the default value is 0.
+     */
+    public static final String PROPERTY_MAX_QUEUED_REQUESTS =
+            "org.sonatype.spice.jersey.client.ahc.config.property.maxQueuedRequests";
+
+    /**
+     * The policy deciding which failed requests are retried, and when.
+     * <p>
+     * The value MUST be an instance of
+     * {@link org.sonatype.spice.jersey.client.ahc.retry.RetryPolicy}. Only requests
+     * with an idempotent method and a buffered entity are retried, and neither
+     * requests with a streamed response, see {@link #PROPERTY_STREAM_RESPONSE_ENTITY},
+     * nor requests sharing their response, see {@link #PROPERTY_SHARE_RESPONSES}.
+     * If the property is absent then requests are not retried.
+     */
+    public static final String PROPERTY_RETRY_POLICY =
+            "org.sonatype.spice.jersey.client.ahc.config.property.retryPolicy";
+
+    /**
+     * The policy deciding when a second attempt of a slow GET, HEAD or OPTIONS
+     * request is sent, the first response to either attempt being used.
+     * <p>
+     * The value MUST be an instance of
+     * {@link org.sonatype.spice.jersey.client.ahc.retry.HedgePolicy}. As with
+     * {@link #PROPERTY_RETRY_POLICY}, requests with a streamed or shared response
+     * are not hedged.
+     * If the property is absent then requests are not hedged.
+     */
+    public static final String PROPERTY_HEDGE_POLICY =
+            "org.sonatype.spice.jersey.client.ahc.config.property.hedgePolicy";
+
+    /**
+     * The balancer of the requests to a service over the endpoints of the service.
+     * The URI of a request to the service is rewritten to the chosen endpoint before
+     * the request is sent.
+     * <p>
+     * The value MUST be an instance of
+     * {@link org.sonatype.spice.jersey.client.ahc.balancer.LoadBalancer}.
+     * If the property is absent then requests are not balanced.
+     */
+    public static final String PROPERTY_LOAD_BALANCER =
+            "org.sonatype.spice.jersey.client.ahc.config.property.loadBalancer";
+
+    /**
+     * The breaker failing the requests to a host immediately, with a
+     * {@link org.sonatype.spice.jersey.client.ahc.breaker.CircuitOpenException},
+     * while most requests to the host fail. The breaker is also registered as a
+     * platform MBean by {@link org.sonatype.spice.jersey.client.ahc.AhcHttpClient}.
+     * <p>
+     * The value MUST be an instance of
+     * {@link org.sonatype.spice.jersey.client.ahc.breaker.CircuitBreaker}.
+     * If the property is absent then requests are always sent.
+     */
+    public static final String PROPERTY_CIRCUIT_BREAKER =
+            "org.sonatype.spice.jersey.client.ahc.config.property.circuitBreaker";
+
+    /**
+     * Circuit route property, which may be set on a request. Requests to a host
+     * with different routes, such as path templates, have different circuits, see
+     * {@link #PROPERTY_CIRCUIT_BREAKER}.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.String}.
+     * If the property is absent then the request uses the circuit of its host.
+     */
+    public static final String PROPERTY_CIRCUIT_ROUTE =
+            "org.sonatype.spice.jersey.client.ahc.config.property.circuitRoute";
+
+    /**
+     * Request compression property, which may be set on the client or on a request.
+     * A value of "gzip" or "deflate" declares that request entities are compressed
+     * with that content coding, and sent with the matching Content-Encoding header.
+     * Streamed entities, see {@link #PROPERTY_STREAM_REQUEST_ENTITY}, are compressed
+     * while they are written. Entities that already have a Content-Encoding header,
+     * for instance set by a {@link com.sun.jersey.api.client.filter.GZIPContentEncodingFilter},
+     * are left as they are.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.String}.
+     * If the property is absent then request entities are not compressed.
+     */
+    public static final String PROPERTY_REQUEST_COMPRESSION =
+            "org.sonatype.spice.jersey.client.ahc.config.property.requestCompression";
+
+    /**
+     * The size in bytes from which request entities are compressed, see
+     * {@link #PROPERTY_REQUEST_COMPRESSION}. Streamed entities of unknown size are
+     * always compressed.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.Integer}.
+     * If the property is absent then the default value is 1024.
+     */
+    public static final String PROPERTY_REQUEST_COMPRESSION_THRESHOLD =
+            "org.sonatype.spice.jersey.client.ahc.config.property.requestCompressionThreshold";
+
+    /**
+     * The size in bytes from which request entities are sent with
+     * "Expect: 100-continue", so that the entity is only sent once the server has
+     * answered with "100 Continue", and not at all if the server rejects the request.
+     * Entities that are streamed, see {@link #PROPERTY_STREAM_REQUEST_ENTITY}, are
+     * never sent with the expectation, since they cannot be sent again to a server
+     * ignoring it, see {@link #PROPERTY_EXPECT_CONTINUE_TIMEOUT}.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.Integer}.
+     * If the property is absent then requests are sent without the expectation.
+     */
+    public static final String PROPERTY_EXPECT_CONTINUE_THRESHOLD =
+            "org.sonatype.spice.jersey.client.ahc.config.property.expectContinueThreshold";
+
+    /**
+     * The time in milliseconds to wait for the server to answer a request sent with
+     * "Expect: 100-continue", see {@link #PROPERTY_EXPECT_CONTINUE_THRESHOLD}. A server
+     * that has neither answered nor accepted the entity by then is assumed to ignore
+     * the expectation, and the request is sent again without it.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.Integer}.
+     * If the property is absent then the default value is 1000.
+     */
+    public static final String PROPERTY_EXPECT_CONTINUE_TIMEOUT =
+            "org.sonatype.spice.jersey.client.ahc.config.property.expectContinueTimeout";
+
+    /**
+     * The pool of the buffers that request entities, unless they are streamed, are
+     * serialized into. The buffers of a request return to the pool once the request
+     * completes.
+     * <p>
+     * The value MUST be an instance of {@link org.sonatype.spice.jersey.client.ahc.buffer.BufferPool}.
+     * If the property is absent then the
+     * {@link org.sonatype.spice.jersey.client.ahc.buffer.BufferPool#getDefault() default pool}
+     * is used.
+     */
+    public static final String PROPERTY_BUFFER_POOL =
+            "org.sonatype.spice.jersey.client.ahc.config.property.bufferPool";
+
+    /**
+     * The options of requests, resolved once instead of for every request from
+     * {@link #PROPERTY_READ_TIMEOUT}, {@link #PROPERTY_FOLLOW_REDIRECTS},
+     * {@link #PROPERTY_REQUEST_COMPRESSION}, {@link #PROPERTY_REQUEST_COMPRESSION_THRESHOLD},
+     * {@link #PROPERTY_EXPECT_CONTINUE_THRESHOLD} and {@link #PROPERTY_EXPECT_CONTINUE_TIMEOUT},
+     * which are ignored when this property is present. The options may also set the
+     * proxy of a request.
+     * <p>
+     * The value MUST be an instance of {@link RequestOptions}.
+     * If the property is absent then the options are resolved from the other properties.
+     */
+    public static final String PROPERTY_REQUEST_OPTIONS =
+            "org.sonatype.spice.jersey.client.ahc.config.property.requestOptions";
+
+    /**
+     * The URIs that {@link org.sonatype.spice.jersey.client.ahc.AhcHttpClient} sends
+     * HEAD requests to when it is created, so that connections to their hosts are
+     * established and pooled before the first requests. The URIs should be cheap to
+     * request, for instance a health check.
+     * <p>
+     * The value MUST be an instance of {@link java.util.Collection} of
+     * {@link java.net.URI}.
+     * If the property is absent then no connection is established in advance.
+     */
+    public static final String PROPERTY_WARM_UP_URIS =
+            "org.sonatype.spice.jersey.client.ahc.config.property.warmUpUris";
+
+    /**
+     * The number of connections established in parallel to each of the
+     * {@link #PROPERTY_WARM_UP_URIS}.
+     * <p>
+     * The value MUST be an instance of {@link java.lang.Integer}.
+     * If the property is absent then the default value is 1.
+     */
+    public static final String PROPERTY_WARM_UP_CONNECTIONS =
+            "org.sonatype.spice.jersey.client.ahc.config.property.warmUpConnections";
+
+    /**
+     * A request property to write the entity of a successful response to a file as it
+     * arrives, rather than holding it in memory, computing its checksum on the fly.
+     * The file is then obtained from the
+     * {@link com.sun.jersey.api.client.ClientResponse#getEntity(Class)} for the class
+     * {@link java.io.File} or
+     * {@link org.sonatype.spice.jersey.client.ahc.download.DownloadedFile}.
+     * The entity of an unsuccessful response is read as usual.
+     * <p>
+     * A download is neither retried, hedged, shared nor streamed.
+     * <p>
+     * The value MUST be an instance of
+     * {@link org.sonatype.spice.jersey.client.ahc.download.FileDownload}.
+     * If the property is absent then the response entity is not written to a file.
+     */
+    public static final String PROPERTY_DOWNLOAD =
+            "org.sonatype.spice.jersey.client.ahc.config.property.download";
+
     /**
      * Get the {@link com.ning.http.client.AsyncHttpClientConfig.Builder} config object. Credentials may be set on the it.
      * <p>
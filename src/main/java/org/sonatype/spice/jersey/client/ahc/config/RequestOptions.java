@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.config;
+
+import java.util.Map;
+
+import com.ning.http.client.PerRequestConfig;
+import com.ning.http.client.ProxyServer;
+import com.ning.http.client.RequestBuilder;
+import com.sun.jersey.api.client.config.ClientConfig;
+
+/**
+ * The settings of a request that may differ from the defaults of the
+ * {@link com.ning.http.client.AsyncHttpClient}: the read timeout, redirects, the
+ * proxy, the compression of the request entity and whether it is sent with
+ * "Expect: 100-continue".
+ * <p/>
+ * Options are immutable and meant to be created once, and set as the
+ * {@link AhcConfig#PROPERTY_REQUEST_OPTIONS} property of a client or of a
+ * {@link com.sun.jersey.api.client.WebResource}, so that requests are configured
+ * without looking up each setting nor allocating per request:
+ * <pre>
+ * RequestOptions options = RequestOptions.DEFAULT.withReadTimeout(5000).withFollowRedirects(true);
+ * webResource.setProperty(AhcConfig.PROPERTY_REQUEST_OPTIONS, options);
+ * </pre>
+ */
+public final class RequestOptions {
+
+    /**
+     * The options of a request using the defaults of the client.
+     */
+    public static final RequestOptions DEFAULT = new RequestOptions(null, null, null, null, 1024, -1, 1000);
+
+    private final Integer readTimeout;
+
+    private final Boolean followRedirects;
+
+    private final ProxyServer proxyServer;
+
+    private final String requestCompression;
+
+    private final int compressionThreshold;
+
+    private final int expectContinueThreshold;
+
+    private final int expectContinueTimeout;
+
+    private final PerRequestConfig perRequestConfig;
+
+    private RequestOptions(final Integer readTimeout, final Boolean followRedirects, final ProxyServer proxyServer,
+            final String requestCompression, final int compressionThreshold, final int expectContinueThreshold,
+            final int expectContinueTimeout) {
+        this.readTimeout = readTimeout;
+        this.followRedirects = followRedirects;
+        this.proxyServer = proxyServer;
+        this.requestCompression = requestCompression;
+        this.compressionThreshold = compressionThreshold;
+        this.expectContinueThreshold = expectContinueThreshold;
+        this.expectContinueTimeout = expectContinueTimeout;
+        this.perRequestConfig = readTimeout != null ? new PerRequestConfig(null, readTimeout) : null;
+    }
+
+    /**
+     * Resolve the options of a request from its properties:
+     * {@link AhcConfig#PROPERTY_REQUEST_OPTIONS} if present, and otherwise
+     * {@link ClientConfig#PROPERTY_READ_TIMEOUT}, {@link ClientConfig#PROPERTY_FOLLOW_REDIRECTS},
+     * {@link AhcConfig#PROPERTY_REQUEST_COMPRESSION},
+     * {@link AhcConfig#PROPERTY_REQUEST_COMPRESSION_THRESHOLD},
+     * {@link AhcConfig#PROPERTY_EXPECT_CONTINUE_THRESHOLD} and
+     * {@link AhcConfig#PROPERTY_EXPECT_CONTINUE_TIMEOUT}.
+     *
+     * @param properties the properties of the request.
+     * @param previous options previously resolved, returned instead of new options
+     *        if they are equal, or null.
+     * @return the options.
+     */
+    public static RequestOptions resolve(final Map<String, Object> properties, final RequestOptions previous) {
+        final RequestOptions options = (RequestOptions) properties.get(AhcConfig.PROPERTY_REQUEST_OPTIONS);
+        if (options != null) {
+            return options;
+        }
+        final Integer readTimeout = (Integer) properties.get(ClientConfig.PROPERTY_READ_TIMEOUT);
+        final Boolean followRedirects = (Boolean) properties.get(ClientConfig.PROPERTY_FOLLOW_REDIRECTS);
+        final String requestCompression = (String) properties.get(AhcConfig.PROPERTY_REQUEST_COMPRESSION);
+        final Integer threshold = (Integer) properties.get(AhcConfig.PROPERTY_REQUEST_COMPRESSION_THRESHOLD);
+        final int compressionThreshold = threshold != null ? threshold : DEFAULT.compressionThreshold;
+        final Integer expectThreshold = (Integer) properties.get(AhcConfig.PROPERTY_EXPECT_CONTINUE_THRESHOLD);
+        final int expectContinueThreshold = expectThreshold != null ? expectThreshold
+                : DEFAULT.expectContinueThreshold;
+        final Integer expectTimeout = (Integer) properties.get(AhcConfig.PROPERTY_EXPECT_CONTINUE_TIMEOUT);
+        final int expectContinueTimeout = expectTimeout != null ? expectTimeout : DEFAULT.expectContinueTimeout;
+
+        final RequestOptions o = previous != null ? previous : DEFAULT;
+        if (equal(o.readTimeout, readTimeout) && equal(o.followRedirects, followRedirects)
+                && o.proxyServer == null && equal(o.requestCompression, requestCompression)
+                && o.compressionThreshold == compressionThreshold
+                && o.expectContinueThreshold == expectContinueThreshold
+                && o.expectContinueTimeout == expectContinueTimeout) {
+            return o;
+        }
+        return new RequestOptions(readTimeout, followRedirects, null, requestCompression, compressionThreshold,
+                expectContinueThreshold, expectContinueTimeout);
+    }
+
+    /**
+     * @param readTimeout the time in milliseconds to wait for the response, or null
+     *        for the default of the client.
+     * @return options with the given read timeout.
+     */
+    public RequestOptions withReadTimeout(final Integer readTimeout) {
+        return new RequestOptions(readTimeout, followRedirects, proxyServer, requestCompression, compressionThreshold,
+                expectContinueThreshold, expectContinueTimeout);
+    }
+
+    /**
+     * @param followRedirects true if redirects are followed, or null for the default
+     *        of the client.
+     * @return options with the given redirect policy.
+     */
+    public RequestOptions withFollowRedirects(final Boolean followRedirects) {
+        return new RequestOptions(readTimeout, followRedirects, proxyServer, requestCompression, compressionThreshold,
+                expectContinueThreshold, expectContinueTimeout);
+    }
+
+    /**
+     * @param proxyServer the proxy to send the request through, or null for the
+     *        default of the client.
+     * @return options with the given proxy.
+     */
+    public RequestOptions withProxyServer(final ProxyServer proxyServer) {
+        return new RequestOptions(readTimeout, followRedirects, proxyServer, requestCompression, compressionThreshold,
+                expectContinueThreshold, expectContinueTimeout);
+    }
+
+    /**
+     * @param requestCompression the content coding compressing the request entity,
+     *        see {@link AhcConfig#PROPERTY_REQUEST_COMPRESSION}, or null.
+     * @return options with the given request compression.
+     */
+    public RequestOptions withRequestCompression(final String requestCompression) {
+        return new RequestOptions(readTimeout, followRedirects, proxyServer, requestCompression, compressionThreshold,
+                expectContinueThreshold, expectContinueTimeout);
+    }
+
+    /**
+     * @param compressionThreshold the size in bytes from which request entities are
+     *        compressed.
+     * @return options with the given compression threshold.
+     */
+    public RequestOptions withCompressionThreshold(final int compressionThreshold) {
+        return new RequestOptions(readTimeout, followRedirects, proxyServer, requestCompression, compressionThreshold,
+                expectContinueThreshold, expectContinueTimeout);
+    }
+
+    /**
+     * @param expectContinueThreshold the size in bytes from which request entities are
+     *        sent with "Expect: 100-continue", or -1 if they never are.
+     * @return options with the given threshold.
+     */
+    public RequestOptions withExpectContinueThreshold(final int expectContinueThreshold) {
+        return new RequestOptions(readTimeout, followRedirects, proxyServer, requestCompression, compressionThreshold,
+                expectContinueThreshold, expectContinueTimeout);
+    }
+
+    /**
+     * @param expectContinueTimeout the time in milliseconds to wait for the server to
+     *        answer a request sent with "Expect: 100-continue" before sending it again
+     *        without the expectation.
+     * @return options with the given timeout.
+     */
+    public RequestOptions withExpectContinueTimeout(final int expectContinueTimeout) {
+        return new RequestOptions(readTimeout, followRedirects, proxyServer, requestCompression, compressionThreshold,
+                expectContinueThreshold, expectContinueTimeout);
+    }
+
+    /**
+     * @return the read timeout in milliseconds, or null for the default of the client.
+     */
+    public Integer getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * @return true if redirects are followed, or null for the default of the client.
+     */
+    public Boolean getFollowRedirects() {
+        return followRedirects;
+    }
+
+    /**
+     * @return the proxy, or null for the default of the client.
+     */
+    public ProxyServer getProxyServer() {
+        return proxyServer;
+    }
+
+    /**
+     * @return the content coding compressing the request entity, or null if the
+     *         entity is not compressed.
+     */
+    public String getRequestCompression() {
+        return requestCompression;
+    }
+
+    /**
+     * @return the size in bytes from which request entities are compressed.
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @return the size in bytes from which request entities are sent with
+     *         "Expect: 100-continue", or -1 if they never are.
+     */
+    public int getExpectContinueThreshold() {
+        return expectContinueThreshold;
+    }
+
+    /**
+     * @return the time in milliseconds to wait for the server to answer a request sent
+     *         with "Expect: 100-continue".
+     */
+    public int getExpectContinueTimeout() {
+        return expectContinueTimeout;
+    }
+
+    /**
+     * Apply the options to an AHC request.
+     *
+     * @param requestBuilder the AHC request builder.
+     */
+    public void configure(final RequestBuilder requestBuilder) {
+        if (perRequestConfig != null) {
+            requestBuilder.setPerRequestConfig(perRequestConfig);
+        }
+        if (followRedirects != null) {
+            requestBuilder.setFollowRedirects(followRedirects);
+        }
+        if (proxyServer != null) {
+            requestBuilder.setProxyServer(proxyServer);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        int h = readTimeout != null ? readTimeout.hashCode() : 0;
+        h = 31 * h + (followRedirects != null ? followRedirects.hashCode() : 0);
+        h = 31 * h + (proxyServer != null ? proxyServer.hashCode() : 0);
+        h = 31 * h + (requestCompression != null ? requestCompression.hashCode() : 0);
+        h = 31 * h + compressionThreshold;
+        h = 31 * h + expectContinueThreshold;
+        return 31 * h + expectContinueTimeout;
+    }
+
+    /**
+     * Options are equal if all their settings are equal. Proxies are compared by
+     * {@link ProxyServer#equals(Object)}, that is by identity.
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof RequestOptions)) {
+            return false;
+        }
+        final RequestOptions r = (RequestOptions) o;
+        return equal(readTimeout, r.readTimeout) && equal(followRedirects, r.followRedirects)
+                && equal(proxyServer, r.proxyServer) && equal(requestCompression, r.requestCompression)
+                && compressionThreshold == r.compressionThreshold
+                && expectContinueThreshold == r.expectContinueThreshold
+                && expectContinueTimeout == r.expectContinueTimeout;
+    }
+
+    private static boolean equal(final Object a, final Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
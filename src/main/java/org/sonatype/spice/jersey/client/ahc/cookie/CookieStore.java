@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.cookie;
+
+import java.net.URI;
+import java.util.List;
+
+import com.ning.http.client.cookie.Cookie;
+
+/**
+ * Keeps the cookies received by an {@link org.sonatype.spice.jersey.client.ahc.AhcClientHandler}
+ * and selects the ones to send with a request.
+ * <p/>
+ * Implementations must be thread safe since a client handler is shared by all the
+ * threads using the client.
+ */
+public interface CookieStore {
+
+    /**
+     * Store a cookie received in the response to a request. A cookie that is expired
+     * removes the stored cookie it replaces.
+     *
+     * @param uri the URI of the request.
+     * @param cookie the cookie set by the response.
+     */
+    public void add(URI uri, Cookie cookie);
+
+    /**
+     * Get the cookies to send with a request.
+     *
+     * @param uri the URI of the request.
+     * @return the matching cookies, never null.
+     */
+    public List<Cookie> get(URI uri);
+
+    /**
+     * Remove all the cookies.
+     */
+    public void clear();
+}
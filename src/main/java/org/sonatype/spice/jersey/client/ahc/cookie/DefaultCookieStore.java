@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.cookie;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.ning.http.client.cookie.Cookie;
+
+/**
+ * The default {@link CookieStore}.
+ * <p/>
+ * Cookies are indexed by domain, so that selecting the cookies of a request only
+ * looks at the domains the host of the request belongs to. Within a domain the
+ * cookies are keyed by name and path, a new cookie replacing the previous one.
+ * Domain and path matching, expiration and the secure attribute follow RFC 6265.
+ * <p/>
+ * The store does not lock; concurrent updates of the same cookie are resolved
+ * by the last one winning.
+ */
+public class DefaultCookieStore implements CookieStore {
+
+    private static final Comparator<StoredCookie> LONGEST_PATH_FIRST = new Comparator<StoredCookie>() {
+        @Override
+        public int compare(final StoredCookie o1, final StoredCookie o2) {
+            return o2.path.length() - o1.path.length();
+        }
+    };
+
+    private final ConcurrentMap<String, ConcurrentMap<String, StoredCookie>> domains =
+            new ConcurrentHashMap<String, ConcurrentMap<String, StoredCookie>>();
+
+    @Override
+    public void add(final URI uri, final Cookie cookie) {
+        final String host = getHost(uri);
+        if (host == null || cookie.getName() == null) {
+            return;
+        }
+
+        String domain = cookie.getDomain();
+        final boolean hostOnly = domain == null || domain.length() == 0;
+        if (hostOnly) {
+            domain = host;
+        } else {
+            domain = domain.toLowerCase(Locale.ENGLISH);
+            if (domain.startsWith(".")) {
+                domain = domain.substring(1);
+            }
+            if (!domainMatches(host, domain)) {
+                // A server may not set cookies for another domain.
+                return;
+            }
+        }
+
+        final String path = cookie.getPath() != null && cookie.getPath().startsWith("/")
+                ? cookie.getPath() : getDefaultPath(uri);
+        final String key = cookie.getName() + ';' + path;
+        final long expiry = getExpiry(cookie);
+
+        ConcurrentMap<String, StoredCookie> cookies = domains.get(domain);
+        if (expiry <= System.currentTimeMillis()) {
+            if (cookies != null) {
+                cookies.remove(key);
+            }
+            return;
+        }
+        if (cookies == null) {
+            final ConcurrentMap<String, StoredCookie> c = new ConcurrentHashMap<String, StoredCookie>();
+            cookies = domains.putIfAbsent(domain, c);
+            if (cookies == null) {
+                cookies = c;
+            }
+        }
+        cookies.put(key, new StoredCookie(cookie, path, hostOnly, expiry));
+    }
+
+    @Override
+    public List<Cookie> get(final URI uri) {
+        final String host = getHost(uri);
+        if (host == null || domains.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final String path = uri.getRawPath() == null || uri.getRawPath().length() == 0 ? "/" : uri.getRawPath();
+        final boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        final long now = System.currentTimeMillis();
+
+        List<StoredCookie> matches = null;
+        String domain = host;
+        boolean exactHost = true;
+        while (domain != null) {
+            final ConcurrentMap<String, StoredCookie> cookies = domains.get(domain);
+            if (cookies != null) {
+                for (final Map.Entry<String, StoredCookie> e : cookies.entrySet()) {
+                    final StoredCookie c = e.getValue();
+                    if (c.expiry <= now) {
+                        cookies.remove(e.getKey(), c);
+                    } else if ((exactHost || !c.hostOnly) && (secure || !c.cookie.isSecure())
+                            && pathMatches(path, c.path)) {
+                        if (matches == null) {
+                            matches = new ArrayList<StoredCookie>(4);
+                        }
+                        matches.add(c);
+                    }
+                }
+            }
+            domain = isIpAddress(host) ? null : getParentDomain(domain);
+            exactHost = false;
+        }
+
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+        if (matches.size() > 1) {
+            Collections.sort(matches, LONGEST_PATH_FIRST);
+        }
+        final List<Cookie> result = new ArrayList<Cookie>(matches.size());
+        for (final StoredCookie c : matches) {
+            result.add(c.cookie);
+        }
+        return result;
+    }
+
+    @Override
+    public void clear() {
+        domains.clear();
+    }
+
+    private static String getHost(final URI uri) {
+        final String host = uri.getHost();
+        return host == null ? null : host.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static long getExpiry(final Cookie cookie) {
+        if (cookie.getMaxAge() >= 0) {
+            return System.currentTimeMillis() + cookie.getMaxAge() * 1000L;
+        }
+        if (cookie.getExpires() > 0) {
+            return cookie.getExpires();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static String getParentDomain(final String domain) {
+        final int dot = domain.indexOf('.');
+        return dot < 0 ? null : domain.substring(dot + 1);
+    }
+
+    private static boolean isIpAddress(final String host) {
+        return host.indexOf(':') >= 0 || Character.isDigit(host.charAt(host.length() - 1));
+    }
+
+    private static boolean domainMatches(final String host, final String domain) {
+        if (host.equals(domain)) {
+            return true;
+        }
+        return !isIpAddress(host) && domain.indexOf('.') > 0
+                && host.endsWith(domain) && host.charAt(host.length() - domain.length() - 1) == '.';
+    }
+
+    private static String getDefaultPath(final URI uri) {
+        final String path = uri.getRawPath();
+        if (path == null || !path.startsWith("/")) {
+            return "/";
+        }
+        final int slash = path.lastIndexOf('/');
+        return slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    private static boolean pathMatches(final String requestPath, final String cookiePath) {
+        if (!requestPath.startsWith(cookiePath)) {
+            return false;
+        }
+        return requestPath.length() == cookiePath.length() || cookiePath.endsWith("/")
+                || requestPath.charAt(cookiePath.length()) == '/';
+    }
+
+    private static final class StoredCookie {
+
+        private final Cookie cookie;
+
+        private final String path;
+
+        private final boolean hostOnly;
+
+        private final long expiry;
+
+        StoredCookie(final Cookie cookie, final String path, final boolean hostOnly, final long expiry) {
+            this.cookie = cookie;
+            this.path = path;
+            this.hostOnly = hostOnly;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.cookie;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import com.ning.http.client.cookie.Cookie;
+
+/**
+ * A {@link CookieStore} that ignores cookies, for stateless clients.
+ */
+public final class NoOpCookieStore implements CookieStore {
+
+    @Override
+    public void add(final URI uri, final Cookie cookie) {
+    }
+
+    @Override
+    public List<Cookie> get(final URI uri) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void clear() {
+    }
+}
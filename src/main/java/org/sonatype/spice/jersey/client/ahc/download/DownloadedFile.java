@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.download;
+
+import java.io.File;
+
+/**
+ * A response entity written to a file, see {@link FileDownload}.
+ */
+public final class DownloadedFile {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File file;
+
+    private final long length;
+
+    private final byte[] checksum;
+
+    public DownloadedFile(final File file, final long length, final byte[] checksum) {
+        this.file = file;
+        this.length = length;
+        this.checksum = checksum;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of bytes written to the file.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the checksum of the entity, or null if no checksum algorithm was set.
+     */
+    public byte[] getChecksum() {
+        return checksum == null ? null : checksum.clone();
+    }
+
+    /**
+     * @return the checksum of the entity in lower case hexadecimal, or null if no
+     *         checksum algorithm was set.
+     */
+    public String getChecksumHex() {
+        if (checksum == null) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder(checksum.length * 2);
+        for (final byte b : checksum) {
+            sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadedFile[file=" + file + ", length=" + length + ", checksum=" + getChecksumHex() + "]";
+    }
+}
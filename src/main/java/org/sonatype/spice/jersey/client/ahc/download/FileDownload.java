@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.download;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The file a response entity is written to as it arrives, see
+ * {@link org.sonatype.spice.jersey.client.ahc.config.AhcConfig#PROPERTY_DOWNLOAD}.
+ * Once the response has been received, the file is obtained with
+ * {@link com.sun.jersey.api.client.ClientResponse#getEntity(Class)} for the class
+ * {@link File}, or {@link DownloadedFile} to also get the length and the checksum.
+ * <p/>
+ * Only the entity of a successful response is written to the file. The file is
+ * deleted if the download fails.
+ */
+public final class FileDownload {
+
+    /**
+     * When the content of the file is forced to the storage device.
+     */
+    public enum Sync {
+
+        /**
+         * The file is left to the operating system.
+         */
+        NONE,
+
+        /**
+         * The content is forced once the response is complete.
+         */
+        DATA,
+
+        /**
+         * The content and the metadata are forced once the response is complete.
+         */
+        ALL
+    }
+
+    private final File file;
+
+    private final String checksumAlgorithm;
+
+    private final Sync sync;
+
+    /**
+     * Download to a file, which is replaced, without checksum nor sync.
+     *
+     * @param file the file.
+     */
+    public FileDownload(final File file) {
+        this(file, null, Sync.NONE);
+    }
+
+    /**
+     * Download to a file, which is replaced.
+     *
+     * @param file the file.
+     * @param checksumAlgorithm the {@link MessageDigest} algorithm computing the
+     *        checksum of the entity, for instance "SHA-1", or null.
+     * @param sync when the content of the file is forced to the storage device.
+     */
+    public FileDownload(final File file, final String checksumAlgorithm, final Sync sync) {
+        if (checksumAlgorithm != null) {
+            try {
+                MessageDigest.getInstance(checksumAlgorithm);
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unsupported checksum algorithm: " + checksumAlgorithm, e);
+            }
+        }
+        this.file = file;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.sync = sync;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    public Sync getSync() {
+        return sync;
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.download;
+
+import java.io.File;
+
+/**
+ * A download of a resource into a file over several connections, each fetching a
+ * range of its bytes and writing them at their offset in the file, see
+ * {@link org.sonatype.spice.jersey.client.ahc.AhcClientHandler#download(java.net.URI, SegmentedDownload)}.
+ * <p/>
+ * A segment that fails is resumed from its last written byte, up to the number of
+ * attempts. If the download still fails, the progress of the segments is kept next
+ * to the file, in a file with the {@link #STATE_SUFFIX} suffix, so that a later
+ * download of the same resource to the same file resumes it. The download is only
+ * resumed if the resource has a strong entity tag or a last modification date, and
+ * neither it nor the length of the resource has changed.
+ */
+public final class SegmentedDownload {
+
+    /**
+     * The suffix of the file recording the progress of an incomplete download.
+     */
+    public static final String STATE_SUFFIX = ".segments";
+
+    private final File file;
+
+    private final int segments;
+
+    private final long minSegmentSize;
+
+    private final int attempts;
+
+    /**
+     * Download to a file over at most 4 connections, with segments of at least 1 MiB
+     * and 3 attempts per segment.
+     *
+     * @param file the file.
+     */
+    public SegmentedDownload(final File file) {
+        this(file, 4, 1024 * 1024, 3);
+    }
+
+    /**
+     * Download to a file.
+     *
+     * @param file the file.
+     * @param segments the maximum number of segments downloaded concurrently.
+     * @param minSegmentSize the minimum number of bytes of a segment, so that small
+     *        resources are downloaded over fewer connections.
+     * @param attempts the number of attempts to download a segment.
+     */
+    public SegmentedDownload(final File file, final int segments, final long minSegmentSize, final int attempts) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("segments must be positive: " + segments);
+        }
+        if (minSegmentSize < 1) {
+            throw new IllegalArgumentException("minSegmentSize must be positive: " + minSegmentSize);
+        }
+        if (attempts < 1) {
+            throw new IllegalArgumentException("attempts must be positive: " + attempts);
+        }
+        this.file = file;
+        this.segments = segments;
+        this.minSegmentSize = minSegmentSize;
+        this.attempts = attempts;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public long getMinSegmentSize() {
+        return minSegmentSize;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return the file recording the progress of an incomplete download.
+     */
+    public File getStateFile() {
+        return new File(file.getPath() + STATE_SUFFIX);
+    }
+}
@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.limit;
+
+import java.net.URI;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.sonatype.spice.jersey.client.ahc.metrics.ClientMetrics;
+
+/**
+ * Limits the number of requests in flight per host, adapting the limit of each
+ * host to the latency of its responses.
+ * <p/>
+ * The limit follows a gradient: every response compares a long term average of
+ * the latency with the latency of the response. While the response is not slower
+ * than {@value #TOLERANCE} times the average the limit grows, by about its square
+ * root, provided that at least half of it is used. A slower response shrinks the
+ * limit in proportion, as does a failure or a 429 or 503 status, which is taken
+ * as a sign of overload.
+ * <p/>
+ * A request beyond the limit may wait for another request to the host to
+ * complete, up to a maximum number of waiting requests, and is rejected with a
+ * {@link ConcurrencyLimitExceededException} otherwise.
+ * <p/>
+ * The permission acquired by {@link #acquire(URI, boolean)} is released when the
+ * limiter is notified, as {@link ClientMetrics}, of the outcome of the request.
+ */
+public class AdaptiveConcurrencyLimiter implements ClientMetrics, AdaptiveConcurrencyLimiterMBean {
+
+    /**
+     * The ratio between the latency of a response and the average latency above
+     * which the limit shrinks.
+     */
+    static final double TOLERANCE = 1.5;
+
+    private static final int INITIAL_LIMIT = 20;
+
+    private static final int MIN_LIMIT = 1;
+
+    private static final double LONG_WINDOW = 100;
+
+    private static final double SMOOTHING = 0.2;
+
+    private static final double BACKOFF = 0.9;
+
+    private final int maxLimit;
+
+    private final int maxQueued;
+
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Create a limiter.
+     *
+     * @param maxLimit the maximum concurrency limit of a host.
+     * @param maxQueued the maximum number of requests waiting for the limit of a host.
+     */
+    public AdaptiveConcurrencyLimiter(final int maxLimit, final int maxQueued) {
+        if (maxLimit < MIN_LIMIT) {
+            throw new IllegalArgumentException("The maximum limit must be positive: " + maxLimit);
+        }
+        this.maxLimit = maxLimit;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Acquire the permission to send a request.
+     *
+     * @param uri the URI of the request.
+     * @param mayWait true if the caller may wait for the permission.
+     * @throws ConcurrencyLimitExceededException if the limit of the host is reached
+     *         and the request may not wait.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public void acquire(final URI uri, final boolean mayWait) throws InterruptedException {
+        final Host h = getHost(getHostName(uri));
+        h.lock.lock();
+        try {
+            if (h.inFlight >= (int) h.limit) {
+                if (!mayWait || h.queued >= maxQueued) {
+                    rejected.incrementAndGet();
+                    throw new ConcurrencyLimitExceededException(h.name, (int) h.limit);
+                }
+                h.queued++;
+                try {
+                    while (h.inFlight >= (int) h.limit) {
+                        h.available.await();
+                    }
+                } finally {
+                    h.queued--;
+                }
+            }
+            h.inFlight++;
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    /**
+     * Release the permission acquired for a request, and adapt the limit of its host.
+     *
+     * @param uri the URI of the request.
+     * @param latencyNanos the latency of the request.
+     * @param dropped true if the request failed or the server declared itself overloaded.
+     */
+    public void release(final URI uri, final long latencyNanos, final boolean dropped) {
+        final Host h = getHost(getHostName(uri));
+        h.lock.lock();
+        try {
+            h.inFlight--;
+            final int before = (int) h.limit;
+            h.update(latencyNanos, dropped);
+            if ((int) h.limit > before) {
+                h.available.signalAll();
+            } else {
+                h.available.signal();
+            }
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    @Override
+    public void onRequestStarted(final String method, final URI uri) {
+        // The permission is acquired before the request is started.
+    }
+
+    @Override
+    public void onRequestCompleted(final String method, final URI uri, final int status, final long durationNanos,
+            final long requestBytes, final long responseBytes) {
+        release(uri, durationNanos, status == 429 || status == 503);
+    }
+
+    @Override
+    public void onRequestFailed(final String method, final URI uri, final Throwable t, final long durationNanos) {
+        // A cancelled request, such as the slower of hedged requests, is no sign of overload.
+        release(uri, durationNanos, !(t instanceof CancellationException));
+    }
+
+    @Override
+    public String[] getHosts() {
+        return hosts.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public int limit(final String host) {
+        final Host h = hosts.get(host);
+        if (h == null) {
+            return INITIAL_LIMIT;
+        }
+        h.lock.lock();
+        try {
+            return (int) h.limit;
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    @Override
+    public int inFlight(final String host) {
+        final Host h = hosts.get(host);
+        if (h == null) {
+            return 0;
+        }
+        h.lock.lock();
+        try {
+            return h.inFlight;
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    @Override
+    public int queued(final String host) {
+        final Host h = hosts.get(host);
+        if (h == null) {
+            return 0;
+        }
+        h.lock.lock();
+        try {
+            return h.queued;
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the name of the host of a request.
+     *
+     * @param uri the URI of the request.
+     * @return the host, formatted as "scheme://host:port".
+     */
+    public static String getHostName(final URI uri) {
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        }
+        return uri.getScheme() + "://" + uri.getHost() + ':' + port;
+    }
+
+    private Host getHost(final String name) {
+        Host h = hosts.get(name);
+        if (h == null) {
+            final Host n = new Host(name, Math.min(INITIAL_LIMIT, maxLimit));
+            h = hosts.putIfAbsent(name, n);
+            if (h == null) {
+                h = n;
+            }
+        }
+        return h;
+    }
+
+    private final class Host {
+
+        private final String name;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition available = lock.newCondition();
+
+        private double limit;
+
+        private double averageLatency;
+
+        private int inFlight;
+
+        private int queued;
+
+        Host(final String name, final int limit) {
+            this.name = name;
+            this.limit = limit;
+        }
+
+        void update(final long latencyNanos, final boolean dropped) {
+            if (dropped) {
+                limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+                return;
+            }
+
+            final double latency = Math.max(1, latencyNanos);
+            averageLatency = averageLatency == 0 ? latency
+                    : averageLatency + (latency - averageLatency) / LONG_WINDOW;
+
+            final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * averageLatency / latency));
+            if (gradient == 1.0 && inFlight + 1 < limit / 2) {
+                // Not enough load to tell whether the host could take more.
+                return;
+            }
+            final double target = limit * gradient + Math.sqrt(limit);
+            limit = Math.max(MIN_LIMIT, Math.min(maxLimit, limit + (target - limit) * SMOOTHING));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.limit;
+
+/**
+ * The management interface of {@link AdaptiveConcurrencyLimiter}.
+ */
+public interface AdaptiveConcurrencyLimiterMBean {
+
+    /**
+     * @return the hosts requests were sent to, formatted as "scheme://host:port".
+     */
+    String[] getHosts();
+
+    /**
+     * @return the number of requests rejected since the limiter was created.
+     */
+    long getRejected();
+
+    /**
+     * @param host one of the {@link #getHosts() hosts}.
+     * @return the current concurrency limit of the host.
+     */
+    int limit(String host);
+
+    /**
+     * @param host one of the {@link #getHosts() hosts}.
+     * @return the number of requests in flight to the host.
+     */
+    int inFlight(String host);
+
+    /**
+     * @param host one of the {@link #getHosts() hosts}.
+     * @return the number of requests waiting for the limit of the host.
+     */
+    int queued(String host);
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.limit;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when a request is not sent because the concurrency limit of its host is
+ * reached and no more requests may wait for it.
+ */
+public class ConcurrencyLimitExceededException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+
+    private final int limit;
+
+    /**
+     * @param host the host, formatted as "scheme://host:port".
+     * @param limit the concurrency limit of the host when the request was rejected.
+     */
+    public ConcurrencyLimitExceededException(final String host, final int limit) {
+        super("The limit of " + limit + " concurrent requests to " + host + " is reached");
+        this.host = host;
+        this.limit = limit;
+    }
+
+    /**
+     * @return the host, formatted as "scheme://host:port".
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the concurrency limit of the host when the request was rejected.
+     */
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.metrics;
+
+import java.net.URI;
+
+/**
+ * Receives the measurements of the requests executed by an
+ * {@link org.sonatype.spice.jersey.client.ahc.AhcClientHandler}.
+ * <p/>
+ * Implementations are invoked by the threads executing the requests and by the
+ * AHC I/O threads, so they must be thread safe and must not block.
+ *
+ * @see org.sonatype.spice.jersey.client.ahc.config.AhcConfig#PROPERTY_CLIENT_METRICS
+ */
+public interface ClientMetrics {
+
+    /**
+     * A request is about to be sent.
+     *
+     * @param method the HTTP method.
+     * @param uri the URI of the request.
+     */
+    void onRequestStarted(String method, URI uri);
+
+    /**
+     * The response to a request has been fully received.
+     *
+     * @param method the HTTP method.
+     * @param uri the URI of the request.
+     * @param status the status code of the response.
+     * @param durationNanos the time elapsed since the request was started.
+     * @param requestBytes the length of the request entity, or -1 if unknown.
+     * @param responseBytes the length of the response entity.
+     */
+    void onRequestCompleted(String method, URI uri, int status, long durationNanos, long requestBytes,
+            long responseBytes);
+
+    /**
+     * A request failed without a complete response.
+     *
+     * @param method the HTTP method.
+     * @param uri the URI of the request.
+     * @param t the cause of the failure.
+     * @param durationNanos the time elapsed since the request was started.
+     */
+    void onRequestFailed(String method, URI uri, Throwable t, long durationNanos);
+}
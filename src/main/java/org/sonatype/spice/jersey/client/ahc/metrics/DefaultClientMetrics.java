@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.metrics;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default {@link ClientMetrics}, keeping latency and entity size
+ * {@link Histogram histograms} per endpoint, that is per HTTP method and
+ * scheme, host and port, together with global counters.
+ * <p/>
+ * An {@link org.sonatype.spice.jersey.client.ahc.AhcHttpClient} registers its
+ * instance as a platform MBean, under the
+ * "org.sonatype.spice.jersey.client.ahc:type=ClientMetrics" domain and type.
+ */
+public class DefaultClientMetrics implements ClientMetrics, DefaultClientMetricsMBean {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    /**
+     * The measurements of the requests sent to one endpoint.
+     */
+    public static final class Endpoint {
+
+        private final Histogram latency = new Histogram();
+
+        private final Histogram requestSize = new Histogram();
+
+        private final Histogram responseSize = new Histogram();
+
+        /**
+         * @return the latencies of the requests, in nanoseconds.
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return the sizes of the request entities of known length.
+         */
+        public Histogram getRequestSize() {
+            return requestSize;
+        }
+
+        /**
+         * @return the sizes of the response entities.
+         */
+        public Histogram getResponseSize() {
+            return responseSize;
+        }
+
+        private void reset() {
+            latency.reset();
+            requestSize.reset();
+            responseSize.reset();
+        }
+    }
+
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+    private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLong inFlight = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    @Override
+    public void onRequestStarted(final String method, final URI uri) {
+        inFlight.incrementAndGet();
+    }
+
+    @Override
+    public void onRequestCompleted(final String method, final URI uri, final int status, final long durationNanos,
+            final long requestBytes, final long responseBytes) {
+        inFlight.decrementAndGet();
+        completed.incrementAndGet();
+
+        final Endpoint e = getOrCreateEndpoint(getEndpointName(method, uri));
+        e.latency.record(durationNanos);
+        if (requestBytes >= 0) {
+            e.requestSize.record(requestBytes);
+        }
+        e.responseSize.record(responseBytes);
+    }
+
+    @Override
+    public void onRequestFailed(final String method, final URI uri, final Throwable t, final long durationNanos) {
+        inFlight.decrementAndGet();
+        failed.incrementAndGet();
+
+        final String type = t.getClass().getName();
+        AtomicLong c = failures.get(type);
+        if (c == null) {
+            final AtomicLong n = new AtomicLong();
+            c = failures.putIfAbsent(type, n);
+            if (c == null) {
+                c = n;
+            }
+        }
+        c.incrementAndGet();
+    }
+
+    /**
+     * Get the measurements of an endpoint.
+     *
+     * @param endpoint the endpoint, formatted as "METHOD scheme://host:port".
+     * @return the measurements, or null if no request completed for the endpoint.
+     */
+    public Endpoint getEndpoint(final String endpoint) {
+        return endpoints.get(endpoint);
+    }
+
+    /**
+     * @return the number of failures by exception class name.
+     */
+    public Map<String, Long> getFailuresByType() {
+        final Map<String, Long> result = new HashMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> e : failures.entrySet()) {
+            result.put(e.getKey(), e.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String[] getFailures() {
+        final Map<String, Long> f = getFailuresByType();
+        final String[] result = new String[f.size()];
+        int i = 0;
+        for (final Map.Entry<String, Long> e : f.entrySet()) {
+            result[i++] = e.getKey() + '=' + e.getValue();
+        }
+        return result;
+    }
+
+    @Override
+    public String[] getEndpoints() {
+        return endpoints.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public double latencyAtPercentile(final String endpoint, final double percentile) {
+        final Endpoint e = endpoints.get(endpoint);
+        return e == null ? 0 : e.latency.getValueAtPercentile(percentile) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double meanLatency(final String endpoint) {
+        final Endpoint e = endpoints.get(endpoint);
+        return e == null ? 0 : e.latency.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double meanRequestSize(final String endpoint) {
+        final Endpoint e = endpoints.get(endpoint);
+        return e == null ? 0 : e.requestSize.getMean();
+    }
+
+    @Override
+    public double meanResponseSize(final String endpoint) {
+        final Endpoint e = endpoints.get(endpoint);
+        return e == null ? 0 : e.responseSize.getMean();
+    }
+
+    @Override
+    public void reset() {
+        for (final Endpoint e : endpoints.values()) {
+            e.reset();
+        }
+        failures.clear();
+        completed.set(0);
+        failed.set(0);
+    }
+
+    /**
+     * Get the name of the endpoint of a request.
+     *
+     * @param method the HTTP method.
+     * @param uri the URI of the request.
+     * @return the endpoint, formatted as "METHOD scheme://host:port".
+     */
+    public static String getEndpointName(final String method, final URI uri) {
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        }
+        return method + ' ' + uri.getScheme() + "://" + uri.getHost() + ':' + port;
+    }
+
+    private Endpoint getOrCreateEndpoint(final String name) {
+        Endpoint e = endpoints.get(name);
+        if (e == null) {
+            final Endpoint n = new Endpoint();
+            e = endpoints.putIfAbsent(name, n);
+            if (e == null) {
+                e = n;
+            }
+        }
+        return e;
+    }
+}
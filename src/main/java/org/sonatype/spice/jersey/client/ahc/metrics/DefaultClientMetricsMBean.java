@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.metrics;
+
+/**
+ * The management interface of {@link DefaultClientMetrics}. Latencies are
+ * reported in milliseconds and sizes in bytes.
+ */
+public interface DefaultClientMetricsMBean {
+
+    /**
+     * @return the number of requests started and not completed yet.
+     */
+    long getInFlight();
+
+    /**
+     * @return the number of requests that received a response.
+     */
+    long getCompleted();
+
+    /**
+     * @return the number of requests that failed without a response.
+     */
+    long getFailed();
+
+    /**
+     * @return the failures by exception type, formatted as "type=count".
+     */
+    String[] getFailures();
+
+    /**
+     * @return the endpoints requests were sent to, formatted as "METHOD scheme://host:port".
+     */
+    String[] getEndpoints();
+
+    /**
+     * @param endpoint one of the {@link #getEndpoints() endpoints}.
+     * @param percentile the percentage of requests, between 0 and 100.
+     * @return the latency below which the percentage of requests to the endpoint completed.
+     */
+    double latencyAtPercentile(String endpoint, double percentile);
+
+    /**
+     * @param endpoint one of the {@link #getEndpoints() endpoints}.
+     * @return the mean latency of the requests to the endpoint.
+     */
+    double meanLatency(String endpoint);
+
+    /**
+     * @param endpoint one of the {@link #getEndpoints() endpoints}.
+     * @return the mean size of the request entities of known length sent to the endpoint.
+     */
+    double meanRequestSize(String endpoint);
+
+    /**
+     * @param endpoint one of the {@link #getEndpoints() endpoints}.
+     * @return the mean size of the response entities received from the endpoint.
+     */
+    double meanResponseSize(String endpoint);
+
+    /**
+     * Forget the measurements made so far, except the number of requests in flight.
+     */
+    void reset();
+}
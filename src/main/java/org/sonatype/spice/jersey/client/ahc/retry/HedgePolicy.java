@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.retry;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.sonatype.spice.jersey.client.ahc.metrics.Histogram;
+
+/**
+ * Decides when a hedged request is sent, that is a second attempt of a GET, HEAD or
+ * OPTIONS request that is slower than usual. The first response wins and the other
+ * attempt is cancelled.
+ * <p/>
+ * The delay before hedging a request is a percentile, by default the 95th, of the
+ * latency of the recent responses of its host. Requests to a host are not hedged
+ * until enough responses have been measured. Hedged requests are bounded by a
+ * {@link RetryBudget}.
+ *
+ * @see org.sonatype.spice.jersey.client.ahc.config.AhcConfig#PROPERTY_HEDGE_POLICY
+ */
+public class HedgePolicy {
+
+    /**
+     * The number of responses of a host measured before its requests are hedged.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * The number of responses after which the latencies of a host are renewed.
+     */
+    private static final int WINDOW = 1000;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final double percentile;
+
+    private final long minDelayMillis;
+
+    private final RetryBudget budget;
+
+    private final ConcurrentMap<String, Latencies> hosts = new ConcurrentHashMap<String, Latencies>();
+
+    /**
+     * Create a policy hedging at the 95th percentile, with a budget of one hedged
+     * request every ten requests and a reserve of 10 hedged requests.
+     */
+    public HedgePolicy() {
+        this(95, 1, new RetryBudget(0.1, 10));
+    }
+
+    /**
+     * Create a policy.
+     *
+     * @param percentile the percentile of the latency after which a request is hedged.
+     * @param minDelayMillis the minimum delay before a request is hedged.
+     * @param budget the budget of the hedged requests.
+     */
+    public HedgePolicy(final double percentile, final long minDelayMillis, final RetryBudget budget) {
+        this.percentile = percentile;
+        this.minDelayMillis = minDelayMillis;
+        this.budget = budget;
+    }
+
+    /**
+     * @return the budget of the hedged requests.
+     */
+    public RetryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param method an HTTP method.
+     * @return true if requests with that method may be hedged.
+     */
+    public boolean isHedgeable(final String method) {
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method);
+    }
+
+    /**
+     * Get the delay after which a request is hedged.
+     *
+     * @param uri the URI of the request.
+     * @return the delay, in milliseconds, or -1 if the request must not be hedged.
+     */
+    public long getDelayMillis(final URI uri) {
+        final Latencies l = hosts.get(getHostName(uri));
+        if (l == null) {
+            return -1;
+        }
+        final Histogram h = l.get();
+        if (h == null) {
+            return -1;
+        }
+        return Math.max(minDelayMillis, h.getValueAtPercentile(percentile) / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Record the latency of a response.
+     *
+     * @param uri the URI of the request.
+     * @param latencyNanos the latency of the response.
+     */
+    public void record(final URI uri, final long latencyNanos) {
+        final String name = getHostName(uri);
+        Latencies l = hosts.get(name);
+        if (l == null) {
+            final Latencies n = new Latencies();
+            l = hosts.putIfAbsent(name, n);
+            if (l == null) {
+                l = n;
+            }
+        }
+        l.record(latencyNanos);
+    }
+
+    private static String getHostName(final URI uri) {
+        return uri.getScheme() + "://" + uri.getHost() + ':' + uri.getPort();
+    }
+
+    /**
+     * The latencies of a host, over the current window and the previous one.
+     */
+    private static final class Latencies {
+
+        private volatile Histogram current = new Histogram();
+
+        private volatile Histogram previous;
+
+        void record(final long latencyNanos) {
+            final Histogram h = current;
+            h.record(latencyNanos);
+            if (h.getCount() >= WINDOW) {
+                synchronized (this) {
+                    if (current == h) {
+                        previous = h;
+                        current = new Histogram();
+                    }
+                }
+            }
+        }
+
+        Histogram get() {
+            final Histogram h = current;
+            if (h.getCount() >= MIN_SAMPLES) {
+                return h;
+            }
+            return previous;
+        }
+    }
+}
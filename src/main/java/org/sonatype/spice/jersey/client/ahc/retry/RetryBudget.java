@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.retry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of additional attempts, retries or hedged requests, to a
+ * fraction of the number of requests, so that retrying does not multiply the load
+ * of a server that is failing.
+ * <p/>
+ * Every request deposits a fraction of a token and every additional attempt
+ * withdraws a whole token. The balance starts at, and never exceeds, a reserve
+ * that lets a client with little traffic retry occasional failures.
+ */
+public class RetryBudget {
+
+    /**
+     * The balances are in thousandths of a token.
+     */
+    private static final long UNITS_PER_TOKEN = 1000;
+
+    private final long deposit;
+
+    private final long reserve;
+
+    private final AtomicLong balance;
+
+    /**
+     * Create a budget.
+     *
+     * @param ratio the number of additional attempts allowed per request, for
+     *        instance 0.1 for one retry every ten requests.
+     * @param reserve the maximum number of tokens.
+     */
+    public RetryBudget(final double ratio, final int reserve) {
+        if (ratio < 0 || reserve < 0) {
+            throw new IllegalArgumentException("The ratio and the reserve must not be negative");
+        }
+        this.deposit = Math.round(ratio * UNITS_PER_TOKEN);
+        this.reserve = reserve * UNITS_PER_TOKEN;
+        this.balance = new AtomicLong(this.reserve);
+    }
+
+    /**
+     * A request is about to be sent for the first time.
+     */
+    public void deposit() {
+        for (;;) {
+            final long b = balance.get();
+            final long n = Math.min(reserve, b + deposit);
+            if (n == b || balance.compareAndSet(b, n)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Withdraw a token for an additional attempt.
+     *
+     * @return true if the attempt may be made.
+     */
+    public boolean tryWithdraw() {
+        for (;;) {
+            final long b = balance.get();
+            if (b < UNITS_PER_TOKEN) {
+                return false;
+            }
+            if (balance.compareAndSet(b, b - UNITS_PER_TOKEN)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of whole tokens available.
+     */
+    public int getBalance() {
+        return (int) (balance.get() / UNITS_PER_TOKEN);
+    }
+}
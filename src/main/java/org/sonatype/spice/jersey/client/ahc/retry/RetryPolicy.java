@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+package org.sonatype.spice.jersey.client.ahc.retry;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Decides which requests are retried, and when.
+ * <p/>
+ * Requests with an idempotent method, GET, HEAD, OPTIONS, TRACE, PUT or DELETE,
+ * are retried when they fail with an {@link IOException} or a {@link TimeoutException},
+ * or get a 502, 503 or 504 response, provided that their entity, if any, is
+ * buffered. The n-th retry waits for a random delay between 0 and
+ * {@code min(maxDelay, baseDelay * 2^(n-1))} ("full jitter"), so that clients
+ * which failed together do not retry together.
+ * Retries are bounded by a {@link RetryBudget}.
+ *
+ * @see org.sonatype.spice.jersey.client.ahc.config.AhcConfig#PROPERTY_RETRY_POLICY
+ */
+public class RetryPolicy {
+
+    private static final Random RANDOM = new Random();
+
+    private final int maxRetries;
+
+    private final long baseDelayMillis;
+
+    private final long maxDelayMillis;
+
+    private final RetryBudget budget;
+
+    /**
+     * Create a policy with a budget of one retry every ten requests and a reserve
+     * of 10 retries.
+     *
+     * @param maxRetries the maximum number of retries of a request.
+     * @param baseDelayMillis the maximum delay before the first retry.
+     * @param maxDelayMillis the maximum delay before any retry.
+     */
+    public RetryPolicy(final int maxRetries, final long baseDelayMillis, final long maxDelayMillis) {
+        this(maxRetries, baseDelayMillis, maxDelayMillis, new RetryBudget(0.1, 10));
+    }
+
+    /**
+     * Create a policy.
+     *
+     * @param maxRetries the maximum number of retries of a request.
+     * @param baseDelayMillis the maximum delay before the first retry.
+     * @param maxDelayMillis the maximum delay before any retry.
+     * @param budget the budget of the retries.
+     */
+    public RetryPolicy(final int maxRetries, final long baseDelayMillis, final long maxDelayMillis,
+            final RetryBudget budget) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budget = budget;
+    }
+
+    /**
+     * @return the maximum number of retries of a request.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @return the budget of the retries.
+     */
+    public RetryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param method an HTTP method.
+     * @return true if requests with that method may be retried.
+     */
+    public boolean isRetryable(final String method) {
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method)
+                || "TRACE".equals(method) || "PUT".equals(method) || "DELETE".equals(method);
+    }
+
+    /**
+     * @param status the status code of a response.
+     * @return true if a request getting that response may be retried.
+     */
+    public boolean isRetryable(final int status) {
+        return status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * @param t the cause of the failure of a request.
+     * @return true if a request failing with that cause may be retried.
+     */
+    public boolean isRetryable(final Throwable t) {
+        return t instanceof IOException || t instanceof TimeoutException;
+    }
+
+    /**
+     * Get the delay before a retry.
+     *
+     * @param retry the number of the retry, starting with 1.
+     * @return the delay, in milliseconds.
+     */
+    public long getDelayMillis(final int retry) {
+        final long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(retry - 1, 30));
+        if (ceiling <= 0) {
+            return 0;
+        }
+        return (long) (RANDOM.nextDouble() * ceiling);
+    }
+}
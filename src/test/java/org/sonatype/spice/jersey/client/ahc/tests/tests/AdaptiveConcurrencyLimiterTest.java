@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import junit.framework.TestCase;
+import org.sonatype.spice.jersey.client.ahc.limit.AdaptiveConcurrencyLimiter;
+import org.sonatype.spice.jersey.client.ahc.limit.ConcurrencyLimitExceededException;
+
+import java.net.URI;
+
+public class AdaptiveConcurrencyLimiterTest extends TestCase {
+
+    public AdaptiveConcurrencyLimiterTest(String testName) {
+        super(testName);
+    }
+
+    public void testAdaptation() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(100, 0);
+        URI u = URI.create("http://localhost/test");
+        String host = AdaptiveConcurrencyLimiter.getHostName(u);
+        assertEquals("http://localhost:80", host);
+        assertEquals(20, limiter.limit(host));
+
+        // Fully used with a steady latency, the limit grows.
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(u, false);
+        }
+        for (int i = 0; i < 10; i++) {
+            limiter.release(u, 1000000, false);
+            limiter.acquire(u, false);
+        }
+        int grown = limiter.limit(host);
+        assertTrue(grown > 20);
+
+        // Overloaded, the limit shrinks.
+        for (int i = 0; i < 10; i++) {
+            limiter.release(u, 1000000, true);
+        }
+        int shrunk = limiter.limit(host);
+        assertTrue(shrunk < grown);
+
+        // Much slower responses shrink the limit too.
+        for (int i = 0; i < 10; i++) {
+            limiter.release(u, 100000000, false);
+        }
+        assertTrue(limiter.limit(host) < shrunk);
+        assertEquals(0, limiter.inFlight(host));
+    }
+
+    public void testRejected() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 0);
+        URI u = URI.create("https://localhost/test");
+        limiter.acquire(u, true);
+        try {
+            limiter.acquire(u, true);
+            fail();
+        } catch (ConcurrencyLimitExceededException e) {
+            assertEquals("https://localhost:443", e.getHost());
+            assertEquals(1, e.getLimit());
+        }
+        limiter.release(u, 1000000, false);
+        limiter.acquire(u, false);
+        assertEquals(1, limiter.getRejected());
+    }
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.AsyncWebResource;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.api.client.async.TypeListener;
+import com.sun.jersey.api.client.filter.LoggingFilter;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AsyncTest extends AbstractGrizzlyServerTester {
+
+    @Path("/test")
+    public static class Resource {
+        @GET
+        public String get(@QueryParam("q") String q) {
+            return q == null ? "GET" : q;
+        }
+
+        @POST
+        public String post(String entity) {
+            return entity;
+        }
+
+        @GET
+        @Path("missing")
+        public String missing() {
+            throw new javax.ws.rs.WebApplicationException(404);
+        }
+    }
+
+    /**
+     * An executor service that refuses every task, to prove that the
+     * non-blocking path never uses the client executor service.
+     */
+    private static class RejectingExecutorService extends AbstractExecutorService {
+        public void shutdown() {
+        }
+
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<Runnable>();
+        }
+
+        public boolean isShutdown() {
+            return false;
+        }
+
+        public boolean isTerminated() {
+            return false;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+
+        public void execute(Runnable command) {
+            throw new IllegalStateException("The client executor service must not be used");
+        }
+    }
+
+    public AsyncTest(String testName) {
+        super(testName);
+    }
+
+    private AhcHttpClient createClient() {
+        AhcHttpClient c = AhcHttpClient.create();
+        c.setExecutorService(new RejectingExecutorService());
+        return c;
+    }
+
+    public void testGet() throws Exception {
+        startServer(Resource.class);
+        AsyncWebResource r = createClient().asyncResource(getUri().path("test").build());
+
+        assertEquals("GET", r.get(String.class).get());
+        assertEquals("q", r.queryParam("q", "q").get(String.class).get());
+
+        ClientResponse cr = r.get(ClientResponse.class).get();
+        assertEquals(200, cr.getStatus());
+        assertEquals("GET", cr.getEntity(String.class));
+    }
+
+    public void testPost() throws Exception {
+        startServer(Resource.class);
+        AsyncWebResource r = createClient().asyncResource(getUri().build()).path("test");
+
+        assertEquals("POST", r.post(String.class, "POST").get());
+    }
+
+    public void testListener() throws Exception {
+        startServer(Resource.class);
+        AsyncWebResource r = createClient().asyncResource(getUri().path("test").build());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> result = new AtomicReference<String>();
+        r.get(new TypeListener<String>(String.class) {
+            public void onComplete(Future<String> f) throws InterruptedException {
+                try {
+                    result.set(f.get());
+                } catch (ExecutionException e) {
+                    result.set(e.toString());
+                }
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals("GET", result.get());
+    }
+
+    public void testManyInFlight() throws Exception {
+        startServer(Resource.class);
+        AsyncWebResource r = createClient().asyncResource(getUri().path("test").build());
+
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(r.queryParam("q", Integer.toString(i)).get(String.class));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.toString(i), futures.get(i).get());
+        }
+    }
+
+    public void testNotFound() throws Exception {
+        startServer(Resource.class);
+        AsyncWebResource r = createClient().asyncResource(getUri().path("test").build());
+
+        try {
+            r.path("missing").get(String.class).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UniformInterfaceException);
+            assertEquals(404, ((UniformInterfaceException) e.getCause()).getResponse().getStatus());
+        }
+    }
+
+    public void testConnectionRefused() throws Exception {
+        startServer(Resource.class);
+        AsyncWebResource r = createClient().asyncResource("http://localhost:1/test");
+
+        try {
+            r.get(String.class).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClientHandlerException);
+        }
+    }
+
+    public void testWithFilter() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        c.addFilter(new LoggingFilter());
+        AsyncWebResource r = c.asyncResource(getUri().path("test").build());
+
+        assertEquals("GET", r.get(String.class).get());
+    }
+}
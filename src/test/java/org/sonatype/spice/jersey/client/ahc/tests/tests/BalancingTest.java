@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.filter.ClientFilter;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.balancer.LoadBalancer;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+import org.sonatype.spice.jersey.client.ahc.retry.RetryPolicy;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.UriInfo;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class BalancingTest extends AbstractGrizzlyServerTester {
+
+    @Path("/base/test")
+    public static class Resource {
+        @GET
+        public String get(@HeaderParam("Host") String host) {
+            return host;
+        }
+    }
+
+    @Path("/base/query")
+    public static class QueryResource {
+        @GET
+        public String get(@Context UriInfo info) {
+            return info.getRequestUri().getRawQuery();
+        }
+    }
+
+    public BalancingTest(String testName) {
+        super(testName);
+    }
+
+    private AhcHttpClient createClient(LoadBalancer balancer) {
+        return createClient(balancer, null);
+    }
+
+    private AhcHttpClient createClient(LoadBalancer balancer, RetryPolicy retryPolicy) {
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_LOAD_BALANCER, balancer);
+        if (retryPolicy != null) {
+            config.getProperties().put(AhcConfig.PROPERTY_RETRY_POLICY, retryPolicy);
+        }
+        return AhcHttpClient.create(config);
+    }
+
+    private URI getEndpoint(String host) {
+        return getUri().host(host).path("base/").build();
+    }
+
+    public void testWeightedRoundRobin() {
+        startServer(Resource.class);
+        LoadBalancer balancer = new LoadBalancer(URI.create("http://service"),
+                LoadBalancer.Strategy.WEIGHTED_ROUND_ROBIN);
+        Map<URI, Integer> weights = new LinkedHashMap<URI, Integer>();
+        weights.put(getEndpoint("localhost"), 2);
+        weights.put(getEndpoint("127.0.0.1"), 1);
+        balancer.setEndpoints(weights);
+        WebResource r = createClient(balancer).resource("http://service/test");
+
+        int local = 0;
+        for (int i = 0; i < 6; i++) {
+            if (r.get(String.class).startsWith("localhost")) {
+                local++;
+            }
+        }
+        assertEquals(4, local);
+        for (LoadBalancer.Endpoint e : balancer.getEndpoints()) {
+            assertEquals(0, e.getInFlight());
+            assertTrue(e.getLatency() > 0);
+        }
+    }
+
+    public void testRefresh() {
+        startServer(Resource.class);
+        LoadBalancer balancer = new LoadBalancer(URI.create("http://service/"),
+                LoadBalancer.Strategy.POWER_OF_TWO_CHOICES);
+        WebResource r = createClient(balancer).resource("http://service/test");
+        try {
+            r.get(String.class);
+            fail();
+        } catch (ClientHandlerException e) {
+            // expected, no endpoint
+        }
+
+        balancer.setEndpoints(Arrays.asList(getEndpoint("localhost")));
+        assertTrue(r.get(String.class).startsWith("localhost"));
+
+        balancer.setEndpoints(Arrays.asList(getEndpoint("127.0.0.1")));
+        assertTrue(r.get(String.class).startsWith("127.0.0.1"));
+
+        // Other URIs are not balanced.
+        assertTrue(createClient(balancer).resource(getUri().path("base/test").build()).get(String.class)
+                .startsWith("localhost"));
+    }
+
+    public void testEjection() {
+        startServer(Resource.class);
+        LoadBalancer balancer = new LoadBalancer(URI.create("http://service/"),
+                LoadBalancer.Strategy.WEIGHTED_ROUND_ROBIN);
+        balancer.setEndpoints(Arrays.asList(URI.create("http://localhost:1/base/"), getEndpoint("localhost")));
+        WebResource r = createClient(balancer).resource("http://service/test");
+
+        int failures = 0;
+        for (int i = 0; i < 20; i++) {
+            try {
+                r.get(String.class);
+            } catch (ClientHandlerException e) {
+                failures++;
+            }
+        }
+        assertEquals(5, failures);
+        assertTrue(balancer.getEndpoints().get(0).isEjected());
+        assertFalse(balancer.getEndpoints().get(1).isEjected());
+    }
+
+    public void testRetryRoutedToAnotherEndpoint() {
+        startServer(Resource.class, QueryResource.class);
+        LoadBalancer balancer = new LoadBalancer(URI.create("http://service/"),
+                LoadBalancer.Strategy.WEIGHTED_ROUND_ROBIN);
+        balancer.setEndpoints(Arrays.asList(URI.create("http://localhost:1/base/"), getEndpoint("localhost")));
+        AhcHttpClient c = createClient(balancer, new RetryPolicy(1, 1, 1));
+        final URI service = URI.create("http://service/query?a=b");
+        c.addFilter(new ClientFilter() {
+            @Override
+            public ClientResponse handle(ClientRequest cr) {
+                ClientResponse response = getNext().handle(cr);
+                assertEquals(service, cr.getURI());
+                return response;
+            }
+        });
+        WebResource r = c.resource(service);
+
+        // Every request that fails on the refused endpoint is retried on the other one.
+        for (int i = 0; i < 4; i++) {
+            assertEquals("a=b", r.get(String.class));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.async.FutureListener;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.breaker.CircuitBreaker;
+import org.sonatype.spice.jersey.client.ahc.breaker.CircuitOpenException;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BatchTest extends AbstractGrizzlyServerTester {
+
+    static final AtomicInteger inFlight = new AtomicInteger();
+
+    static final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @Path("/test")
+    public static class Resource {
+        @GET
+        public String get(@QueryParam("q") String q) throws InterruptedException {
+            int n = inFlight.incrementAndGet();
+            int max = maxInFlight.get();
+            while (n > max && !maxInFlight.compareAndSet(max, n)) {
+                max = maxInFlight.get();
+            }
+            Thread.sleep(20);
+            inFlight.decrementAndGet();
+            return q;
+        }
+    }
+
+    public BatchTest(String testName) {
+        super(testName);
+    }
+
+    private List<ClientRequest> createRequests(int count) {
+        List<ClientRequest> requests = new ArrayList<ClientRequest>();
+        for (int i = 0; i < count; i++) {
+            requests.add(ClientRequest.create().build(getUri().path("test").queryParam("q", i).build(), "GET"));
+        }
+        return requests;
+    }
+
+    public void testConcurrencyPerHost() throws Exception {
+        startServer(Resource.class);
+        maxInFlight.set(0);
+        AhcHttpClient c = AhcHttpClient.create();
+
+        List<Future<ClientResponse>> responses = c.handleAll(createRequests(20), 3);
+
+        assertEquals(20, responses.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Integer.toString(i), responses.get(i).get().getEntity(String.class));
+        }
+        assertTrue(maxInFlight.get() <= 3);
+        assertTrue(maxInFlight.get() > 1);
+    }
+
+    public void testListener() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+
+        final CountDownLatch latch = new CountDownLatch(10);
+        c.handleAll(createRequests(10), 4, new FutureListener<ClientResponse>() {
+            public void onComplete(Future<ClientResponse> f) throws InterruptedException {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testFailure() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+
+        List<ClientRequest> requests = createRequests(2);
+        requests.add(1, ClientRequest.create().build(URI.create("http://localhost:1/test"), "GET"));
+        List<Future<ClientResponse>> responses = c.handleAll(requests, 1);
+
+        assertEquals("0", responses.get(0).get().getEntity(String.class));
+        try {
+            responses.get(1).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClientHandlerException);
+        }
+        assertEquals("1", responses.get(2).get().getEntity(String.class));
+    }
+
+    public void testOpenCircuit() throws Exception {
+        startServer(Resource.class);
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_CIRCUIT_BREAKER, new CircuitBreaker(50, 100, 10000, 60000));
+        AhcHttpClient c = AhcHttpClient.create(config);
+        URI refused = URI.create("http://localhost:1/test");
+        for (int i = 0; i < 20; i++) {
+            try {
+                c.resource(refused).get(String.class);
+                fail();
+            } catch (ClientHandlerException e) {
+            }
+        }
+
+        // Every request fails while it is started, none waits for another to complete.
+        List<ClientRequest> requests = new ArrayList<ClientRequest>();
+        for (int i = 0; i < 5000; i++) {
+            requests.add(ClientRequest.create().build(refused, "GET"));
+        }
+        List<Future<ClientResponse>> responses = c.handleAll(requests, 1);
+
+        assertEquals(5000, responses.size());
+        for (Future<ClientResponse> f : responses) {
+            try {
+                f.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof CircuitOpenException);
+            }
+        }
+        c.destroy();
+    }
+}
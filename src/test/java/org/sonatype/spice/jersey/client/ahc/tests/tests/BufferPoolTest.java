@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import junit.framework.TestCase;
+import org.sonatype.spice.jersey.client.ahc.buffer.BufferPool;
+import org.sonatype.spice.jersey.client.ahc.buffer.PooledOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class BufferPoolTest extends TestCase {
+
+    private static byte[] content(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) i;
+        }
+        return b;
+    }
+
+    private static byte[] toByteArray(PooledOutputStream out) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        out.writeTo(baos);
+        return baos.toByteArray();
+    }
+
+    public void testWriteTo() throws IOException {
+        BufferPool pool = new BufferPool();
+        byte[] content = content(200 * 1024 + 3);
+
+        PooledOutputStream out = pool.newOutputStream(-1);
+        out.write(content[0]);
+        out.write(content, 1, 1000);
+        out.write(content, 1001, content.length - 1001);
+
+        assertEquals(content.length, out.size());
+        assertTrue(Arrays.equals(content, toByteArray(out)));
+        // The content may be read again.
+        assertTrue(Arrays.equals(content, toByteArray(out)));
+    }
+
+    public void testRead() throws IOException {
+        BufferPool pool = new BufferPool();
+        byte[] content = content(200 * 1024 + 3);
+
+        PooledOutputStream out = pool.newOutputStream(-1);
+        out.write(content);
+
+        ByteBuffer buffer = ByteBuffer.allocate(8191);
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        int n;
+        while ((n = out.read(read.size(), buffer)) != -1) {
+            assertEquals(Math.min(buffer.capacity(), content.length - read.size()), n);
+            read.write(buffer.array(), 0, n);
+            buffer.clear();
+        }
+        assertTrue(Arrays.equals(content, read.toByteArray()));
+    }
+
+    public void testReadAtPositions() throws IOException {
+        byte[] content = content(300 * 1024 + 3);
+        long[] positions = { 0, 1023, 1024, 1025, 9215, 9216, 73727, 73728, 73729, 139264, 200000,
+                content.length - 1 };
+
+        for (long hint : new long[] { -1, 8 * 1024, 64 * 1024 }) {
+            PooledOutputStream out = new BufferPool().newOutputStream(hint);
+            out.write(content);
+            for (long position : positions) {
+                ByteBuffer buffer = ByteBuffer.allocate(100);
+                int n = out.read(position, buffer);
+                assertEquals(Math.min(100, content.length - position), n);
+                assertTrue(Arrays.equals(Arrays.copyOfRange(content, (int) position, (int) position + n),
+                        Arrays.copyOf(buffer.array(), n)));
+            }
+            assertEquals(-1, out.read(content.length, ByteBuffer.allocate(100)));
+        }
+    }
+
+    public void testEmpty() throws IOException {
+        PooledOutputStream out = new BufferPool().newOutputStream(0);
+
+        assertEquals(0, out.size());
+        assertEquals(0, toByteArray(out).length);
+    }
+
+    public void testReuse() throws IOException {
+        BufferPool pool = new BufferPool();
+        byte[] content = content(100 * 1024);
+
+        PooledOutputStream out = pool.newOutputStream(-1);
+        out.write(content);
+        long allocated = pool.getAllocatedBytes();
+        assertTrue(allocated >= content.length);
+        assertEquals(0, pool.getPooledBytes());
+
+        out.release();
+        assertEquals(allocated, pool.getPooledBytes());
+        // Releasing twice has no effect.
+        out.release();
+        assertEquals(allocated, pool.getPooledBytes());
+
+        out = pool.newOutputStream(-1);
+        out.write(content);
+        assertEquals(allocated, pool.getAllocatedBytes());
+        assertEquals(0, pool.getPooledBytes());
+        assertTrue(Arrays.equals(content, toByteArray(out)));
+    }
+
+    public void testMaxPooledBytes() throws IOException {
+        BufferPool pool = new BufferPool(8 * 1024, false);
+
+        PooledOutputStream out = pool.newOutputStream(-1);
+        out.write(new byte[100 * 1024]);
+        out.release();
+
+        assertTrue(pool.getPooledBytes() <= 8 * 1024);
+    }
+
+    public void testReleased() throws IOException {
+        PooledOutputStream out = new BufferPool().newOutputStream(-1);
+        out.release();
+
+        try {
+            out.write(0);
+            fail();
+        } catch (IOException e) {
+        }
+        try {
+            toByteArray(out);
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    public void testLeakDetection() throws InterruptedException {
+        BufferPool pool = new BufferPool(1024 * 1024, true);
+        pool.newOutputStream(-1);
+        pool.newOutputStream(-1).release();
+
+        for (int i = 0; i < 50 && pool.getLeaks() == 0; i++) {
+            System.gc();
+            System.runFinalization();
+            Thread.sleep(100);
+        }
+        assertEquals(1, pool.getLeaks());
+    }
+}
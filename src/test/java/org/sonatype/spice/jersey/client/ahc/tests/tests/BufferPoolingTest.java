@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.WebResource;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.buffer.BufferPool;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+import org.sonatype.spice.jersey.client.ahc.retry.RetryPolicy;
+
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BufferPoolingTest extends AbstractGrizzlyServerTester {
+
+    static final AtomicInteger count = new AtomicInteger();
+
+    static volatile int failures;
+
+    @Path("/test")
+    public static class Resource {
+        @POST
+        public byte[] post(byte[] entity) {
+            return entity;
+        }
+
+        @PUT
+        public byte[] put(byte[] entity) {
+            if (count.incrementAndGet() <= failures) {
+                throw new WebApplicationException(503);
+            }
+            return entity;
+        }
+    }
+
+    public BufferPoolingTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        count.set(0);
+        failures = 0;
+    }
+
+    private static byte[] content(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) (i * 7);
+        }
+        return b;
+    }
+
+    private AhcHttpClient createClient(BufferPool pool, RetryPolicy retryPolicy) {
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_BUFFER_POOL, pool);
+        if (retryPolicy != null) {
+            config.getProperties().put(AhcConfig.PROPERTY_RETRY_POLICY, retryPolicy);
+        }
+        return AhcHttpClient.create(config);
+    }
+
+    /**
+     * The buffers are released by the thread completing the request, which may be
+     * after the response is returned.
+     */
+    private static void assertReleased(BufferPool pool) throws InterruptedException {
+        for (int i = 0; i < 100 && pool.getPooledBytes() != pool.getAllocatedBytes(); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(pool.getAllocatedBytes(), pool.getPooledBytes());
+    }
+
+    public void testReuse() throws Exception {
+        startServer(Resource.class);
+        BufferPool pool = new BufferPool();
+        WebResource r = createClient(pool, null).resource(getUri().path("test").build());
+        byte[] content = content(100 * 1024);
+
+        assertTrue(Arrays.equals(content, r.post(byte[].class, content)));
+        assertReleased(pool);
+        long allocated = pool.getAllocatedBytes();
+        assertTrue(allocated >= content.length);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(Arrays.equals(content, r.post(byte[].class, content)));
+            assertReleased(pool);
+        }
+        assertEquals(allocated, pool.getAllocatedBytes());
+    }
+
+    public void testAsync() throws Exception {
+        startServer(Resource.class);
+        BufferPool pool = new BufferPool();
+        AhcHttpClient c = createClient(pool, null);
+        byte[] content = content(20 * 1024);
+
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(c.asyncResource(getUri().path("test").build()).post(byte[].class, content));
+        }
+        for (Future<byte[]> f : futures) {
+            assertTrue(Arrays.equals(content, f.get()));
+        }
+        assertReleased(pool);
+    }
+
+    public void testRetry() throws Exception {
+        startServer(Resource.class);
+        failures = 2;
+        BufferPool pool = new BufferPool();
+        WebResource r = createClient(pool, new RetryPolicy(3, 10, 100)).resource(getUri().path("test").build());
+        byte[] content = content(30 * 1024);
+
+        // Every attempt sends the same buffers.
+        assertTrue(Arrays.equals(content, r.put(byte[].class, content)));
+        assertEquals(3, count.get());
+        assertReleased(pool);
+    }
+
+    public void testCompression() throws Exception {
+        startServer(Resource.class);
+        BufferPool pool = new BufferPool();
+        AhcHttpClient c = createClient(pool, null);
+        c.getProperties().put(AhcConfig.PROPERTY_REQUEST_COMPRESSION, "gzip");
+        WebResource r = c.resource(getUri().path("test").build());
+        byte[] content = content(100 * 1024);
+
+        // The uncompressed and the compressed entities are both released.
+        assertTrue(r.post(byte[].class, content).length < content.length);
+        assertReleased(pool);
+    }
+}
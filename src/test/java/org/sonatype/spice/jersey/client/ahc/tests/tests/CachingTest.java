@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.filter.ClientFilter;
+import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.cache.CachingFilter;
+import org.sonatype.spice.jersey.client.ahc.cache.ResponseCache;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingTest extends AbstractGrizzlyServerTester {
+
+    static final AtomicInteger requests = new AtomicInteger();
+
+    static final AtomicInteger notModified = new AtomicInteger();
+
+    @Path("/")
+    public static class Resource {
+        @GET
+        @Path("fresh")
+        public Response fresh() {
+            CacheControl cc = new CacheControl();
+            cc.setMaxAge(60);
+            return Response.ok("fresh" + requests.incrementAndGet()).cacheControl(cc).build();
+        }
+
+        @POST
+        @Path("fresh")
+        public String post() {
+            return "posted";
+        }
+
+        @GET
+        @Path("etag")
+        public Response etag(@Context Request request) {
+            requests.incrementAndGet();
+            EntityTag tag = new EntityTag("v1");
+            Response.ResponseBuilder rb = request.evaluatePreconditions(tag);
+            if (rb != null) {
+                notModified.incrementAndGet();
+                return rb.build();
+            }
+            CacheControl cc = new CacheControl();
+            cc.setNoCache(true);
+            return Response.ok("etag").tag(tag).cacheControl(cc).build();
+        }
+
+        @GET
+        @Path("user")
+        public Response user(@HeaderParam("Authorization") String authorization) {
+            requests.incrementAndGet();
+            CacheControl cc = new CacheControl();
+            cc.setMaxAge(60);
+            return Response.ok(authorization).cacheControl(cc).build();
+        }
+
+        @GET
+        @Path("public")
+        public Response shared() {
+            return Response.ok("public" + requests.incrementAndGet())
+                    .header("Cache-Control", "public, max-age=60").build();
+        }
+
+        @GET
+        @Path("nostore")
+        public Response noStore() {
+            CacheControl cc = new CacheControl();
+            cc.setNoStore(true);
+            return Response.ok("nostore" + requests.incrementAndGet()).cacheControl(cc).build();
+        }
+    }
+
+    public CachingTest(String testName) {
+        super(testName);
+    }
+
+    private WebResource createResource(String path) {
+        return createClient(new CachingFilter(1024 * 1024)).resource(getUri().path(path).build());
+    }
+
+    private AhcHttpClient createClient(CachingFilter filter) {
+        requests.set(0);
+        notModified.set(0);
+        AhcHttpClient c = AhcHttpClient.create();
+        c.addFilter(filter);
+        return c;
+    }
+
+    public void testFresh() {
+        startServer(Resource.class);
+        WebResource r = createResource("fresh");
+
+        assertEquals("fresh1", r.get(String.class));
+        assertEquals("fresh1", r.get(String.class));
+        assertEquals(1, requests.get());
+
+        CacheControl cc = new CacheControl();
+        cc.setNoCache(true);
+        assertEquals("fresh2", r.header("Cache-Control", cc).get(String.class));
+        assertEquals("fresh2", r.get(String.class));
+    }
+
+    public void testInvalidate() {
+        startServer(Resource.class);
+        WebResource r = createResource("fresh");
+
+        assertEquals("fresh1", r.get(String.class));
+        assertEquals("posted", r.post(String.class));
+        assertEquals("fresh2", r.get(String.class));
+    }
+
+    public void testRevalidate() {
+        startServer(Resource.class);
+        WebResource r = createResource("etag");
+
+        assertEquals("etag", r.get(String.class));
+        ClientResponse cr = r.get(ClientResponse.class);
+        assertEquals(200, cr.getStatus());
+        assertEquals(new EntityTag("v1"), cr.getEntityTag());
+        assertEquals("etag", cr.getEntity(String.class));
+
+        assertEquals(2, requests.get());
+        assertEquals(1, notModified.get());
+    }
+
+    public void testNoStore() {
+        startServer(Resource.class);
+        WebResource r = createResource("nostore");
+
+        assertEquals("nostore1", r.get(String.class));
+        assertEquals("nostore2", r.get(String.class));
+    }
+
+    public void testRevalidateLeavesRequestUnchanged() {
+        startServer(Resource.class);
+        AhcHttpClient c = createClient(new CachingFilter(1024 * 1024));
+        final List<String> conditions = new ArrayList<String>();
+        c.addFilter(new ClientFilter() {
+            @Override
+            public ClientResponse handle(ClientRequest cr) {
+                ClientResponse response = getNext().handle(cr);
+                conditions.add(String.valueOf(cr.getHeaders().getFirst("If-None-Match")));
+                return response;
+            }
+        });
+        WebResource r = c.resource(getUri().path("etag").build());
+
+        assertEquals("etag", r.get(String.class));
+        assertEquals("etag", r.get(String.class));
+        assertEquals(1, notModified.get());
+        assertEquals("[null, null]", conditions.toString());
+    }
+
+    public void testMaxEntrySize() {
+        startServer(Resource.class);
+        ResponseCache cache = new ResponseCache(1024 * 1024, 16);
+        WebResource r = createClient(new CachingFilter(cache)).resource(getUri().path("fresh").build());
+
+        // The response, headers included, is larger than an entry.
+        assertEquals("fresh1", r.get(String.class));
+        assertEquals("fresh2", r.get(String.class));
+        assertEquals(0, cache.getEntryCount());
+
+        assertEquals(1024 * 1024 / 8, new ResponseCache(1024 * 1024).getMaxEntrySize());
+    }
+
+    private WebResource createAuthenticatedResource(ResponseCache cache, String user, String path) {
+        AhcHttpClient c = AhcHttpClient.create();
+        // Added first, the authentication filter is below the caching filter.
+        c.addFilter(new HTTPBasicAuthFilter(user, "secret"));
+        c.addFilter(new CachingFilter(cache));
+        return c.resource(getUri().path(path).build());
+    }
+
+    public void testAuthenticatedCallers() {
+        startServer(Resource.class);
+        requests.set(0);
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        WebResource alice = createAuthenticatedResource(cache, "alice", "user");
+        WebResource bob = createAuthenticatedResource(cache, "bob", "user");
+
+        String a = alice.get(String.class);
+        String b = bob.get(String.class);
+        assertFalse(a.equals(b));
+        assertEquals(a, alice.get(String.class));
+        assertEquals(3, requests.get());
+        assertEquals(0, cache.getEntryCount());
+
+        // A public response is shared.
+        String p = createAuthenticatedResource(cache, "alice", "public").get(String.class);
+        assertEquals(p, createAuthenticatedResource(cache, "bob", "public").get(String.class));
+        assertEquals(4, requests.get());
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.api.client.WebResource;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CallbackCompletionTest extends AbstractGrizzlyServerTester {
+
+    static final CountDownLatch released = new CountDownLatch(1);
+
+    @Path("/")
+    public static class Resource {
+        @GET
+        @Path("test")
+        public String get() {
+            return "GET";
+        }
+
+        @GET
+        @Path("missing")
+        public String missing() {
+            throw new WebApplicationException(404);
+        }
+
+        @GET
+        @Path("slow")
+        public String slow() throws InterruptedException {
+            released.await(10, TimeUnit.SECONDS);
+            return "slow";
+        }
+    }
+
+    public CallbackCompletionTest(String testName) {
+        super(testName);
+    }
+
+    private AhcHttpClient createClient() {
+        AhcHttpClient c = AhcHttpClient.create();
+        c.getProperties().put(AhcConfig.PROPERTY_CALLBACK_COMPLETION, true);
+        return c;
+    }
+
+    public void testGet() {
+        startServer(Resource.class);
+        WebResource r = createClient().resource(getUri().build());
+
+        assertEquals("GET", r.path("test").get(String.class));
+        try {
+            r.path("missing").get(String.class);
+            fail();
+        } catch (UniformInterfaceException e) {
+            assertEquals(404, e.getResponse().getStatus());
+        }
+    }
+
+    public void testConnectionRefused() {
+        startServer(Resource.class);
+        try {
+            createClient().resource("http://localhost:1/test").get(String.class);
+            fail();
+        } catch (ClientHandlerException e) {
+            // expected
+        }
+    }
+
+    public void testInterrupted() {
+        startServer(Resource.class);
+        WebResource r = createClient().resource(getUri().path("slow").build());
+
+        final Thread caller = Thread.currentThread();
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+                caller.interrupt();
+            }
+        }.start();
+        try {
+            r.get(String.class);
+            fail();
+        } catch (ClientHandlerException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        } finally {
+            Thread.interrupted();
+            released.countDown();
+        }
+    }
+}
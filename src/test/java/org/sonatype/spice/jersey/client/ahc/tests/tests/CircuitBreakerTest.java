@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import junit.framework.TestCase;
+import org.sonatype.spice.jersey.client.ahc.breaker.CircuitBreaker;
+import org.sonatype.spice.jersey.client.ahc.breaker.CircuitOpenException;
+
+import java.io.IOException;
+import java.net.URI;
+
+public class CircuitBreakerTest extends TestCase {
+
+    private static final URI U = URI.create("http://localhost/test");
+
+    public CircuitBreakerTest(String testName) {
+        super(testName);
+    }
+
+    public void testRoutes() {
+        CircuitBreaker b = new CircuitBreaker(50, 100, 10000, 60000);
+        for (int i = 0; i < 20; i++) {
+            b.acquire(U, "/users/{id}").onRequestFailed("GET", U, new IOException(), 1000);
+        }
+        try {
+            b.acquire(U, "/users/{id}");
+            fail();
+        } catch (CircuitOpenException e) {
+            assertEquals("http://localhost:80 /users/{id}", e.getCircuit());
+        }
+        b.acquire(U, "/groups/{id}");
+        b.acquire(U, null);
+        assertEquals("OPEN", b.state("http://localhost:80 /users/{id}"));
+        assertEquals(100.0, b.failureRate("http://localhost:80 /users/{id}"));
+    }
+
+    public void testMinimumCalls() {
+        CircuitBreaker b = new CircuitBreaker(50, 100, 10000, 60000);
+        // Too few requests to open.
+        for (int i = 0; i < 9; i++) {
+            b.acquire(U, null).onRequestFailed("GET", U, new IOException(), 1000);
+        }
+        assertEquals("CLOSED", b.state("http://localhost:80"));
+        assertEquals(100.0, b.failureRate("http://localhost:80"));
+        for (int i = 0; i < 20; i++) {
+            b.acquire(U, null).onRequestCompleted("GET", U, 200, 1000, 0, 0);
+        }
+        assertEquals("CLOSED", b.state("http://localhost:80"));
+        assertTrue(b.failureRate("http://localhost:80") < 50);
+    }
+
+    public void testSlowCalls() {
+        CircuitBreaker b = new CircuitBreaker(50, 80, 100, 60000);
+        for (int i = 0; i < 20; i++) {
+            b.acquire(U, null).onRequestCompleted("GET", U, 200, 200 * 1000 * 1000, 0, 0);
+        }
+        assertEquals("OPEN", b.state("http://localhost:80"));
+        assertEquals(100.0, b.slowCallRate("http://localhost:80"));
+    }
+
+    public void testHalfOpen() throws Exception {
+        CircuitBreaker b = new CircuitBreaker(50, 100, 10000, 10);
+        for (int i = 0; i < 20; i++) {
+            b.acquire(U, null).onRequestFailed("GET", U, new IOException(), 1000);
+        }
+        Thread.sleep(20);
+
+        // Only the probes are let through, and a failed probe opens the circuit again.
+        CircuitBreaker.Permit p = b.acquire(U, null);
+        b.acquire(U, null);
+        b.acquire(U, null).release();
+        b.acquire(U, null);
+        try {
+            b.acquire(U, null);
+            fail();
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+        p.onRequestFailed("GET", U, new IOException(), 1000);
+        assertEquals(CircuitBreaker.State.OPEN, p.getCircuit().getState());
+        assertEquals(2, b.getOpened());
+    }
+
+    public void testStaleOutcomes() throws Exception {
+        CircuitBreaker b = new CircuitBreaker(50, 100, 10000, 10);
+        CircuitBreaker.Permit[] stale = new CircuitBreaker.Permit[5];
+        for (int i = 0; i < stale.length; i++) {
+            stale[i] = b.acquire(U, null);
+        }
+        for (int i = 0; i < 20; i++) {
+            b.acquire(U, null).onRequestFailed("GET", U, new IOException(), 1000);
+        }
+        Thread.sleep(20);
+        CircuitBreaker.Permit[] probes = new CircuitBreaker.Permit[3];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = b.acquire(U, null);
+        }
+        assertEquals("HALF_OPEN", b.state("http://localhost:80"));
+
+        // The requests sent while the circuit was closed neither close nor open it,
+        // nor give back a permission.
+        for (int i = 0; i < 3; i++) {
+            stale[i].onRequestCompleted("GET", U, 200, 1000, 0, 0);
+        }
+        stale[3].onRequestFailed("GET", U, new IOException(), 1000);
+        stale[4].release();
+        assertEquals("HALF_OPEN", b.state("http://localhost:80"));
+        try {
+            b.acquire(U, null);
+            fail();
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+
+        for (CircuitBreaker.Permit p : probes) {
+            p.onRequestCompleted("GET", U, 200, 1000, 0, 0);
+        }
+        assertEquals("CLOSED", b.state("http://localhost:80"));
+    }
+}
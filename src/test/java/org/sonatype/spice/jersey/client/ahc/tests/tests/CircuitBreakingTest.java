@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.breaker.CircuitBreaker;
+import org.sonatype.spice.jersey.client.ahc.breaker.CircuitBreakerListener;
+import org.sonatype.spice.jersey.client.ahc.breaker.CircuitOpenException;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+
+import javax.management.MBeanServer;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+public class CircuitBreakingTest extends AbstractGrizzlyServerTester {
+
+    static volatile boolean failing;
+
+    @Path("/test")
+    public static class Resource {
+        @GET
+        public String get() {
+            if (failing) {
+                throw new WebApplicationException(500);
+            }
+            return "GET";
+        }
+    }
+
+    public CircuitBreakingTest(String testName) {
+        super(testName);
+    }
+
+    private AhcHttpClient createClient(CircuitBreaker breaker) {
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_CIRCUIT_BREAKER, breaker);
+        return AhcHttpClient.create(config);
+    }
+
+    public void testOpenAndClose() throws Exception {
+        startServer(Resource.class);
+        CircuitBreaker breaker = new CircuitBreaker(50, 100, 10000, 500);
+        final List<String> transitions = new CopyOnWriteArrayList<String>();
+        breaker.addListener(new CircuitBreakerListener() {
+            public void onStateChange(String circuit, CircuitBreaker.State from, CircuitBreaker.State to) {
+                transitions.add(from + "->" + to);
+            }
+        });
+        AhcHttpClient c = createClient(breaker);
+        WebResource r = c.resource(getUri().path("test").build());
+
+        failing = true;
+        for (int i = 0; i < 20; i++) {
+            assertEquals(500, r.get(ClientResponse.class).getStatus());
+        }
+        try {
+            r.get(ClientResponse.class);
+            fail();
+        } catch (CircuitOpenException e) {
+            assertEquals(CircuitBreaker.getCircuitName(r.getURI(), null), e.getCircuit());
+        }
+        try {
+            c.asyncResource(r.getURI()).get(ClientResponse.class).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CircuitOpenException);
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(2L, server.getAttribute(c.getCircuitBreakerName(), "Rejected"));
+        assertEquals(1L, server.getAttribute(c.getCircuitBreakerName(), "Opened"));
+
+        // Half-open after a while, the probes close the circuit.
+        failing = false;
+        Thread.sleep(600);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("GET", r.get(String.class));
+        }
+        assertEquals(CircuitBreaker.State.CLOSED,
+                breaker.getCircuit(CircuitBreaker.getCircuitName(r.getURI(), null)).getState());
+        assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->CLOSED]", transitions.toString());
+        c.destroy();
+    }
+
+    public void testConnectionRefused() {
+        startServer(Resource.class);
+        CircuitBreaker breaker = new CircuitBreaker(50, 100, 10000, 60000);
+        WebResource r = createClient(breaker).resource("http://localhost:1/test");
+
+        int refused = 0;
+        for (int i = 0; i < 30; i++) {
+            try {
+                r.get(String.class);
+            } catch (CircuitOpenException e) {
+                break;
+            } catch (ClientHandlerException e) {
+                refused++;
+            }
+        }
+        assertEquals(20, refused);
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.ning.http.client.cookie.Cookie;
+import junit.framework.TestCase;
+import org.sonatype.spice.jersey.client.ahc.cookie.CookieStore;
+import org.sonatype.spice.jersey.client.ahc.cookie.DefaultCookieStore;
+
+import java.net.URI;
+import java.util.List;
+
+public class CookieStoreTest extends TestCase {
+
+    private final CookieStore store = new DefaultCookieStore();
+
+    public CookieStoreTest(String testName) {
+        super(testName);
+    }
+
+    private static Cookie cookie(String name, String domain, String path, int maxAge, boolean secure) {
+        return new Cookie(name, "value", "value", domain, path, -1, maxAge, secure, false);
+    }
+
+    private List<Cookie> get(String uri) {
+        return store.get(URI.create(uri));
+    }
+
+    public void testHostOnly() {
+        store.add(URI.create("http://www.example.com/"), cookie("a", null, "/", -1, false));
+
+        assertEquals(1, get("http://www.example.com/x").size());
+        assertEquals(0, get("http://sub.www.example.com/").size());
+        assertEquals(0, get("http://example.com/").size());
+    }
+
+    public void testDomain() {
+        store.add(URI.create("http://www.example.com/"), cookie("a", ".example.com", "/", -1, false));
+
+        assertEquals(1, get("http://example.com/").size());
+        assertEquals(1, get("http://other.example.com/").size());
+        assertEquals(0, get("http://example.org/").size());
+        assertEquals(0, get("http://badexample.com/").size());
+    }
+
+    public void testForeignDomainRejected() {
+        store.add(URI.create("http://www.example.com/"), cookie("a", "example.org", "/", -1, false));
+        store.add(URI.create("http://www.example.com/"), cookie("b", "com", "/", -1, false));
+
+        assertEquals(0, get("http://example.org/").size());
+        assertEquals(0, get("http://www.example.com/").size());
+    }
+
+    public void testPath() {
+        store.add(URI.create("http://example.com/"), cookie("a", null, "/app", -1, false));
+        store.add(URI.create("http://example.com/"), cookie("b", null, "/", -1, false));
+
+        List<Cookie> root = get("http://example.com/application");
+        assertEquals(1, root.size());
+        assertEquals("b", root.get(0).getName());
+        List<Cookie> cookies = get("http://example.com/app/x");
+        assertEquals(2, cookies.size());
+        assertEquals("a", cookies.get(0).getName());
+        assertEquals("b", cookies.get(1).getName());
+    }
+
+    public void testDefaultPath() {
+        store.add(URI.create("http://example.com/app/login"), cookie("a", null, null, -1, false));
+
+        assertEquals(1, get("http://example.com/app/index").size());
+        assertEquals(0, get("http://example.com/other").size());
+    }
+
+    public void testReplaceAndExpire() {
+        URI uri = URI.create("http://example.com/");
+        store.add(uri, cookie("a", null, "/", -1, false));
+        store.add(uri, new Cookie("a", "other", "other", null, "/", -1, -1, false, false));
+
+        List<Cookie> cookies = get("http://example.com/");
+        assertEquals(1, cookies.size());
+        assertEquals("other", cookies.get(0).getValue());
+
+        store.add(uri, cookie("a", null, "/", 0, false));
+        assertEquals(0, get("http://example.com/").size());
+    }
+
+    public void testSecure() {
+        store.add(URI.create("https://example.com/"), cookie("a", null, "/", -1, true));
+
+        assertEquals(0, get("http://example.com/").size());
+        assertEquals(1, get("https://example.com/").size());
+    }
+
+    public void testClear() {
+        store.add(URI.create("http://example.com/"), cookie("a", null, "/", -1, false));
+        store.clear();
+
+        assertEquals(0, get("http://example.com/").size());
+    }
+}
@@ -45,7 +45,9 @@ import com.sun.jersey.api.container.filter.LoggingFilter;
 import com.sun.jersey.api.core.DefaultResourceConfig;
 import com.sun.jersey.api.core.ResourceConfig;
 import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
 import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+import org.sonatype.spice.jersey.client.ahc.cookie.NoOpCookieStore;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -123,4 +125,17 @@ public class CookieTest extends AbstractGrizzlyServerTester {
         assertEquals("wo-cookie", r.post(String.class));
         assertEquals("value", r.get(String.class));
     }
-}
\ No newline at end of file
+
+    public void testNoOpCookieStore() {
+        startServer(CookieResource.class);
+
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_COOKIE_STORE, new NoOpCookieStore());
+        AhcHttpClient c = AhcHttpClient.create(config);
+
+        WebResource r = c.resource(getUri().build());
+
+        assertEquals("NO-COOKIE", r.get(String.class));
+        assertEquals("NO-COOKIE", r.get(String.class));
+    }
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.api.client.WebResource;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.download.DownloadedFile;
+import org.sonatype.spice.jersey.client.ahc.download.FileDownload;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+public class DownloadTest extends AbstractGrizzlyServerTester {
+
+    static final byte[] CONTENT = new byte[4 * 1024 * 1024 + 11];
+
+    static {
+        for (int i = 0; i < CONTENT.length; i++) {
+            CONTENT[i] = (byte) (i * 31);
+        }
+    }
+
+    @Path("/")
+    public static class Resource {
+        @GET
+        @Path("large")
+        public byte[] large() {
+            return CONTENT;
+        }
+
+        @GET
+        @Path("missing")
+        public String missing() {
+            throw new WebApplicationException(Response.status(404).entity("not here").build());
+        }
+    }
+
+    private File file;
+
+    public DownloadTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("download", ".bin");
+    }
+
+    @Override
+    public void tearDown() {
+        super.tearDown();
+        file.delete();
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] b = new byte[(int) f.length()];
+        InputStream in = new FileInputStream(f);
+        try {
+            int n = 0;
+            while (n < b.length) {
+                n += in.read(b, n, b.length - n);
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    private static String sha1(byte[] b) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : MessageDigest.getInstance("SHA-1").digest(b)) {
+            sb.append(String.format("%02x", x & 0xff));
+        }
+        return sb.toString();
+    }
+
+    public void testDownload() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        c.getProperties().put(AhcConfig.PROPERTY_DOWNLOAD, new FileDownload(file));
+        WebResource r = c.resource(getUri().path("large").build());
+
+        assertEquals(file, r.get(File.class));
+        assertTrue(Arrays.equals(CONTENT, read(file)));
+    }
+
+    public void testChecksumAndSync() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        c.getProperties().put(AhcConfig.PROPERTY_DOWNLOAD,
+                new FileDownload(file, "SHA-1", FileDownload.Sync.ALL));
+        WebResource r = c.resource(getUri().path("large").build());
+
+        DownloadedFile d = r.get(DownloadedFile.class);
+        assertEquals(file, d.getFile());
+        assertEquals(CONTENT.length, d.getLength());
+        assertEquals(sha1(CONTENT), d.getChecksumHex());
+        assertTrue(Arrays.equals(CONTENT, read(file)));
+    }
+
+    public void testReplacesFile() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        c.getProperties().put(AhcConfig.PROPERTY_DOWNLOAD, new FileDownload(file));
+        WebResource r = c.resource(getUri().path("large").build());
+
+        r.get(File.class);
+        r.get(File.class);
+        assertEquals(CONTENT.length, file.length());
+    }
+
+    public void testErrorEntity() throws Exception {
+        startServer(Resource.class);
+        file.delete();
+        AhcHttpClient c = AhcHttpClient.create();
+        c.getProperties().put(AhcConfig.PROPERTY_DOWNLOAD, new FileDownload(file));
+        WebResource r = c.resource(getUri().path("missing").build());
+
+        ClientResponse cr = r.get(ClientResponse.class);
+        assertEquals(404, cr.getStatus());
+        assertEquals("not here", cr.getEntity(String.class));
+        assertFalse(file.exists());
+
+        try {
+            r.get(File.class);
+            fail();
+        } catch (UniformInterfaceException e) {
+            assertEquals(404, e.getResponse().getStatus());
+        }
+    }
+
+    public void testAsync() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        c.getProperties().put(AhcConfig.PROPERTY_DOWNLOAD, new FileDownload(file, "SHA-1", FileDownload.Sync.DATA));
+
+        DownloadedFile d = c.asyncResource(getUri().path("large").build()).get(DownloadedFile.class).get();
+        assertEquals(sha1(CONTENT), d.getChecksumHex());
+        assertTrue(Arrays.equals(CONTENT, read(file)));
+    }
+
+    public void testUnsupportedChecksum() {
+        startServer(Resource.class);
+        try {
+            new FileDownload(file, "NO-SUCH-DIGEST", FileDownload.Sync.NONE);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.container.filter.GZIPContentEncodingFilter;
+import com.sun.jersey.api.core.DefaultResourceConfig;
+import com.sun.jersey.api.core.ResourceConfig;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class EntityStreamingTest extends AbstractGrizzlyServerTester {
+
+    @Path("/")
+    public static class Resource {
+        @POST
+        public byte[] post(byte[] content) { return content; }
+
+        @POST
+        @Path("encoding")
+        public String encoding(@HeaderParam("Transfer-Encoding") String te,
+                               @HeaderParam("Content-Length") String cl) {
+            return te + "/" + cl;
+        }
+    }
+
+    public EntityStreamingTest(String testName) {
+        super(testName);
+    }
+
+    private AhcHttpClient createStreamingClient(Integer chunkSize) {
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_STREAM_REQUEST_ENTITY, true);
+        if (chunkSize != null) {
+            config.getProperties().put(AhcConfig.PROPERTY_CHUNKED_ENCODING_SIZE, chunkSize);
+        }
+        return AhcHttpClient.create(config);
+    }
+
+    private byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    public void testPostKnownLength() {
+        startServer(Resource.class);
+
+        AhcHttpClient c = createStreamingClient(1024);
+        WebResource r = c.resource(getUri().path("/").build());
+
+        byte[] content = randomContent(1024 * 1024 + 17);
+        assertTrue(Arrays.equals(content, r.post(byte[].class, content)));
+        assertEquals("null/5", r.path("encoding").post(String.class, "12345".getBytes()));
+    }
+
+    public void testPostUnknownLength() {
+        startServer(Resource.class);
+
+        AhcHttpClient c = createStreamingClient(null);
+        WebResource r = c.resource(getUri().path("/").build());
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append(i).append(',');
+        }
+        String content = sb.toString();
+        assertEquals(content, new String(r.post(byte[].class, content)));
+        assertEquals("chunked/null", r.path("encoding").post(String.class, content));
+    }
+
+    public void testPostGZIP() {
+        ResourceConfig rc = new DefaultResourceConfig(Resource.class);
+        rc.getProperties().put(ResourceConfig.PROPERTY_CONTAINER_REQUEST_FILTERS,
+                GZIPContentEncodingFilter.class.getName());
+        rc.getProperties().put(ResourceConfig.PROPERTY_CONTAINER_RESPONSE_FILTERS,
+                GZIPContentEncodingFilter.class.getName());
+        startServer(rc);
+
+        AhcHttpClient c = createStreamingClient(4096);
+        c.addFilter(new com.sun.jersey.api.client.filter.GZIPContentEncodingFilter());
+
+        WebResource r = c.resource(getUri().path("/").build());
+        byte[] content = new byte[1024 * 1024];
+        assertTrue(Arrays.equals(content, r.post(byte[].class, content)));
+    }
+
+    public void testPostMultipleTimes() {
+        startServer(Resource.class);
+
+        AhcHttpClient c = createStreamingClient(128);
+        WebResource r = c.resource(getUri().path("/").build());
+
+        for (int i = 0; i < 20; i++) {
+            byte[] content = randomContent(10 * 1024 + i);
+            assertTrue(Arrays.equals(content, r.post(byte[].class, content)));
+        }
+    }
+
+    public void testStalledWriter() throws InterruptedException {
+        startServer(Resource.class);
+
+        AhcHttpClient c = createStreamingClient(null);
+        c.getProperties().put(ClientConfig.PROPERTY_READ_TIMEOUT, 500);
+        WebResource r = c.resource(getUri().path("/").build());
+
+        // The entity stalls after its first bytes.
+        final CountDownLatch stalled = new CountDownLatch(1);
+        InputStream in = new InputStream() {
+            private boolean first = true;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (first) {
+                    first = false;
+                    b[off] = 'a';
+                    return 1;
+                }
+                try {
+                    stalled.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                return -1;
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        try {
+            r.post(String.class, in);
+            fail();
+        } catch (ClientHandlerException e) {
+            // expected, the request is aborted
+        } finally {
+            stalled.countDown();
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        // The I/O threads are free to send other requests.
+        byte[] content = randomContent(1024);
+        assertTrue(Arrays.equals(content, r.post(byte[].class, content)));
+    }
+}
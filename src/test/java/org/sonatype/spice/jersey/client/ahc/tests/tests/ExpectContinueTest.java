@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import junit.framework.TestCase;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.RequestOptions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ExpectContinueTest extends TestCase {
+
+    static final byte[] CONTENT = new byte[256 * 1024];
+
+    private ContinueServer server;
+
+    public ExpectContinueTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private WebResource resource(AhcHttpClient c, boolean honour, String path) throws IOException {
+        server = new ContinueServer(honour);
+        return c.resource(URI.create("http://localhost:" + server.socket.getLocalPort() + "/" + path));
+    }
+
+    private AhcHttpClient createClient() {
+        AhcHttpClient c = AhcHttpClient.create();
+        c.getProperties().put(AhcConfig.PROPERTY_EXPECT_CONTINUE_THRESHOLD, 64 * 1024);
+        return c;
+    }
+
+    private File createFile() throws IOException {
+        File f = File.createTempFile("expect", ".bin");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(CONTENT);
+        out.close();
+        return f;
+    }
+
+    public void testBufferedEntity() throws IOException {
+        WebResource r = resource(createClient(), true, "read");
+
+        assertEquals("100-continue:" + CONTENT.length, r.put(String.class, CONTENT));
+        assertEquals("100-continue:" + CONTENT.length, r.put(String.class, CONTENT));
+    }
+
+    public void testBelowThreshold() throws IOException {
+        WebResource r = resource(createClient(), true, "read");
+
+        assertEquals("none:1024", r.put(String.class, new byte[1024]));
+    }
+
+    public void testDisabled() throws IOException {
+        WebResource r = resource(AhcHttpClient.create(), true, "read");
+
+        assertEquals("none:" + CONTENT.length, r.put(String.class, CONTENT));
+    }
+
+    public void testRequestOptions() throws IOException {
+        WebResource r = resource(AhcHttpClient.create(), true, "read");
+        r.setProperty(AhcConfig.PROPERTY_REQUEST_OPTIONS, RequestOptions.DEFAULT.withExpectContinueThreshold(0));
+
+        assertEquals("100-continue:1", r.put(String.class, new byte[1]));
+    }
+
+    public void testFileEntity() throws IOException {
+        File f = createFile();
+        try {
+            WebResource r = resource(createClient(), true, "read");
+
+            assertEquals("100-continue:" + CONTENT.length, r.put(String.class, f));
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testRejectedEntityIsNotSent() throws IOException {
+        File f = createFile();
+        try {
+            AhcHttpClient c = createClient();
+            WebResource r = resource(c, true, "reject");
+
+            CountingChannel rejected = new CountingChannel(new RandomAccessFile(f, "r").getChannel());
+            ClientResponse cr = r.put(ClientResponse.class, rejected);
+            assertEquals(413, cr.getStatus());
+            assertEquals("too large", cr.getEntity(String.class));
+            assertEquals(0, rejected.read.get());
+            assertEquals(0, server.received.get());
+
+            CountingChannel accepted = new CountingChannel(new RandomAccessFile(f, "r").getChannel());
+            assertEquals("100-continue:" + CONTENT.length,
+                    c.resource(URI.create("http://localhost:" + server.socket.getLocalPort() + "/read"))
+                            .put(String.class, accepted));
+            assertEquals(CONTENT.length, accepted.read.get());
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testAsync() throws Exception {
+        AhcHttpClient c = createClient();
+        server = new ContinueServer(true);
+
+        assertEquals("100-continue:" + CONTENT.length, c.asyncResource(
+                URI.create("http://localhost:" + server.socket.getLocalPort() + "/read")).put(String.class, CONTENT).get());
+    }
+
+    public void testServerIgnoringExpectation() throws Exception {
+        AhcHttpClient c = createClient();
+        c.getProperties().put(AhcConfig.PROPERTY_EXPECT_CONTINUE_TIMEOUT, 300);
+        WebResource r = resource(c, false, "read");
+
+        long start = System.currentTimeMillis();
+        assertEquals("none:" + CONTENT.length, r.put(String.class, CONTENT));
+        assertTrue(System.currentTimeMillis() - start >= 300);
+        // Sent again without the expectation.
+        assertEquals(1, server.expectations.size());
+        assertEquals("none", server.expectations.get(0));
+    }
+
+    /**
+     * A server answering "100 Continue" to a request to /read with the expectation,
+     * and 413 without reading the entity to a request to /reject, unless it ignores
+     * expectations. A completed request is answered with its expectation and the
+     * length of its entity.
+     */
+    static final class ContinueServer implements Runnable {
+
+        final ServerSocket socket;
+
+        final boolean honour;
+
+        final List<String> expectations = new CopyOnWriteArrayList<String>();
+
+        final AtomicLong received = new AtomicLong();
+
+        ContinueServer(boolean honour) throws IOException {
+            this.honour = honour;
+            socket = new ServerSocket(0);
+            Thread t = new Thread(this, "continue-server");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    final Socket s = socket.accept();
+                    Thread t = new Thread(new Runnable() {
+                        public void run() {
+                            handle(s);
+                        }
+                    });
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        void handle(Socket s) {
+            try {
+                InputStream in = s.getInputStream();
+                OutputStream out = s.getOutputStream();
+                String path = readLine(in).split(" ")[1];
+                String expect = "none";
+                int length = 0;
+                for (String line = readLine(in); line.length() > 0; line = readLine(in)) {
+                    String lower = line.toLowerCase();
+                    if (lower.startsWith("expect:")) {
+                        expect = line.substring(7).trim();
+                    } else if (lower.startsWith("content-length:")) {
+                        length = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                if (path.equals("/reject")) {
+                    respond(out, "413 Request Entity Too Large", "too large");
+                    return;
+                }
+                if (honour && !expect.equals("none")) {
+                    out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("ISO-8859-1"));
+                    out.flush();
+                }
+                for (int i = 0; i < length; i++) {
+                    if (in.read() == -1) {
+                        throw new IOException("Premature end of entity");
+                    }
+                    received.incrementAndGet();
+                }
+                expectations.add(expect);
+                respond(out, "200 OK", expect + ":" + length);
+            } catch (IOException e) {
+                // Abandoned by the client.
+            } finally {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    // Closed.
+                }
+            }
+        }
+
+        static void respond(OutputStream out, String status, String entity) throws IOException {
+            out.write(("HTTP/1.1 " + status + "\r\nContent-Type: text/plain\r\nContent-Length: " + entity.length()
+                    + "\r\nConnection: close\r\n\r\n" + entity).getBytes("ISO-8859-1"));
+            out.flush();
+        }
+
+        static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (int b = in.read(); b != '\n'; b = in.read()) {
+                if (b == -1) {
+                    throw new IOException("Premature end of headers");
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString("ISO-8859-1");
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * A file channel counting the bytes read from it.
+     */
+    static final class CountingChannel extends FileChannel {
+
+        final FileChannel channel;
+
+        final AtomicLong read = new AtomicLong();
+
+        CountingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return count(channel.read(dst));
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            long n = channel.read(dsts, offset, length);
+            read.addAndGet(Math.max(0, n));
+            return n;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return count(channel.read(dst, position));
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            long n = channel.transferTo(position, count, target);
+            read.addAndGet(n);
+            return n;
+        }
+
+        private int count(int n) {
+            read.addAndGet(Math.max(0, n));
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.WebResource;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.buffer.BufferPool;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+import org.sonatype.spice.jersey.client.ahc.retry.RetryPolicy;
+
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+public class FileUploadTest extends AbstractGrizzlyServerTester {
+
+    static final AtomicInteger count = new AtomicInteger();
+
+    static volatile int failures;
+
+    @Path("/test")
+    public static class Resource {
+        @PUT
+        public String put(byte[] entity, @HeaderParam("Content-Type") String contentType,
+                @HeaderParam("Content-Length") String contentLength,
+                @HeaderParam("Content-Encoding") String contentEncoding) {
+            if (count.incrementAndGet() <= failures) {
+                throw new WebApplicationException(503);
+            }
+            return describe(entity, 0, entity.length) + " " + contentType + " " + contentLength + " "
+                    + contentEncoding;
+        }
+    }
+
+    private File file;
+
+    private byte[] content;
+
+    public FileUploadTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        count.set(0);
+        failures = 0;
+        content = new byte[3 * 1024 * 1024 + 5];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        file = File.createTempFile("upload", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+    }
+
+    @Override
+    public void tearDown() {
+        super.tearDown();
+        file.delete();
+    }
+
+    static String describe(byte[] b, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(b, off, len);
+        return len + ":" + Long.toHexString(crc.getValue());
+    }
+
+    private WebResource resource(DefaultAhcConfig config) {
+        return AhcHttpClient.create(config).resource(getUri().path("test").build());
+    }
+
+    public void testFile() {
+        startServer(Resource.class);
+
+        assertEquals(describe(content, 0, content.length) + " application/octet-stream " + content.length + " null",
+                resource(new DefaultAhcConfig()).put(String.class, file));
+    }
+
+    public void testNotBuffered() throws IOException {
+        startServer(Resource.class);
+        BufferPool pool = new BufferPool();
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_BUFFER_POOL, pool);
+        WebResource r = resource(config);
+
+        // The entities are sent from the file, not serialized into buffers.
+        String expected = describe(content, 0, content.length) + " application/octet-stream " + content.length
+                + " null";
+        assertEquals(expected, r.put(String.class, file));
+        assertEquals(expected, r.put(String.class, new FileInputStream(file)));
+        assertEquals(expected, r.put(String.class, new RandomAccessFile(file, "r").getChannel()));
+        assertEquals(0, pool.getAllocatedBytes());
+
+        // Unlike an entity of another type.
+        r.put(String.class, content);
+        assertTrue(pool.getAllocatedBytes() > 0);
+    }
+
+    public void testFileInputStream() throws IOException {
+        startServer(Resource.class);
+        FileInputStream in = new FileInputStream(file);
+        assertEquals(10, in.skip(10));
+
+        // The remainder of the stream is sent, with the given media type.
+        assertEquals(describe(content, 10, content.length - 10) + " application/x-test " + (content.length - 10)
+                + " null", resource(new DefaultAhcConfig()).type("application/x-test").put(String.class, in));
+
+        // The stream is closed once the request completes, which may be shortly after
+        // the response is returned.
+        try {
+            for (int i = 0; i < 100; i++) {
+                in.read();
+                Thread.sleep(10);
+            }
+            fail();
+        } catch (IOException e) {
+        } catch (InterruptedException e) {
+            fail();
+        }
+    }
+
+    public void testFileChannel() throws IOException {
+        startServer(Resource.class);
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+
+        assertEquals(describe(content, 0, content.length) + " application/octet-stream " + content.length + " null",
+                resource(new DefaultAhcConfig()).put(String.class, channel));
+    }
+
+    public void testRetry() throws IOException {
+        startServer(Resource.class);
+        failures = 1;
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_RETRY_POLICY, new RetryPolicy(3, 10, 100));
+
+        // The channel is read again from the start of the region.
+        assertEquals(describe(content, 0, content.length) + " application/octet-stream " + content.length + " null",
+                resource(config).put(String.class, new FileInputStream(file)));
+        assertEquals(2, count.get());
+    }
+
+    public void testCompressed() throws IOException {
+        startServer(Resource.class);
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_REQUEST_COMPRESSION, "gzip");
+
+        // A compressed entity is written by a MessageBodyWriter.
+        String response = resource(config).put(String.class, new RandomAccessFile(file, "r").getChannel());
+        assertTrue(response, response.endsWith(" gzip"));
+    }
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import junit.framework.TestCase;
+import org.sonatype.spice.jersey.client.ahc.metrics.Histogram;
+
+public class HistogramTest extends TestCase {
+
+    public HistogramTest(String testName) {
+        super(testName);
+    }
+
+    public void testPercentiles() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+
+        assertEquals(1000, h.getCount());
+        assertEquals(1000, h.getMax());
+        assertEquals(500.5, h.getMean(), 0.001);
+        long median = h.getValueAtPercentile(50);
+        assertTrue(median >= 500 && median <= 500 * 1.125);
+        assertEquals(1000, h.getValueAtPercentile(100));
+    }
+
+    public void testLargeValues() {
+        Histogram h = new Histogram();
+        h.record(Long.MAX_VALUE);
+        h.record(-1);
+
+        assertEquals(0, h.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, h.getValueAtPercentile(100));
+    }
+
+    public void testReset() {
+        Histogram h = new Histogram();
+        h.record(42);
+        h.reset();
+
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getValueAtPercentile(99));
+    }
+}
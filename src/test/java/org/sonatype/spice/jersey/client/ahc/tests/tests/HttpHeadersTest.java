@@ -21,13 +21,16 @@ import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
 import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
 import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
 
+import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 import java.io.IOException;
@@ -53,6 +56,12 @@ public class HttpHeadersTest extends AbstractGrizzlyServerTester {
                 assertEquals("writer", xWriter);
             return entity;
         }
+
+        @GET
+        @Produces("text/plain")
+        public Response get(@HeaderParam("If-None-Match") String etag) {
+            return Response.ok("GET").header("X-ETAG", etag).build();
+        }
     }
 
     @Provider
@@ -111,7 +120,20 @@ public class HttpHeadersTest extends AbstractGrizzlyServerTester {
         cr.close();
     }
 
+    public void testHeaders() {
+        startServer(HttpMethodResource.class);
 
+        AhcHttpClient c = AhcHttpClient.create();
+        WebResource r = c.resource(getUri().path("test").build());
 
+        ClientResponse cr = r.header("If-None-Match", new EntityTag("tag")).get(ClientResponse.class);
+        assertEquals("\"tag\"", cr.getHeaders().getFirst("x-etag"));
+        assertTrue(cr.getHeaders().containsKey("X-Etag"));
+        assertEquals(MediaType.TEXT_PLAIN_TYPE, cr.getType());
 
-}
\ No newline at end of file
+        cr.getHeaders().add("X-ETAG", "other");
+        assertEquals(2, cr.getHeaders().get("X-ETAG").size());
+        assertTrue(cr.getHeaders().keySet().contains("x-etag"));
+        cr.close();
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.WebResource;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+import org.sonatype.spice.jersey.client.ahc.limit.AdaptiveConcurrencyLimiter;
+import org.sonatype.spice.jersey.client.ahc.limit.ConcurrencyLimitExceededException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LimiterTest extends AbstractGrizzlyServerTester {
+
+    static CountDownLatch released;
+
+    @Path("/test")
+    public static class Resource {
+        @GET
+        public String get() throws InterruptedException {
+            released.await(10, TimeUnit.SECONDS);
+            return "GET";
+        }
+    }
+
+    public LimiterTest(String testName) {
+        super(testName);
+    }
+
+    private AhcHttpClient createClient(int maxConcurrency, int maxQueued) {
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_MAX_CONCURRENCY, maxConcurrency);
+        config.getProperties().put(AhcConfig.PROPERTY_MAX_QUEUED_REQUESTS, maxQueued);
+        return AhcHttpClient.create(config);
+    }
+
+    public void testRejected() throws Exception {
+        startServer(Resource.class);
+        released = new CountDownLatch(1);
+        AhcHttpClient c = createClient(1, 0);
+        URI u = getUri().path("test").build();
+
+        Future<String> first = c.asyncResource(u).get(String.class);
+        try {
+            c.asyncResource(u).get(String.class).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClientHandlerException);
+            assertTrue(e.getCause().getCause() instanceof ConcurrencyLimitExceededException);
+        }
+        try {
+            c.resource(u).get(String.class);
+            fail();
+        } catch (ClientHandlerException e) {
+            assertTrue(e.getCause() instanceof ConcurrencyLimitExceededException);
+        }
+        assertEquals(2, c.getClientHandler().getLimiter().getRejected());
+
+        released.countDown();
+        assertEquals("GET", first.get());
+        assertEquals("GET", c.resource(u).get(String.class));
+        c.destroy();
+    }
+
+    public void testQueued() throws Exception {
+        startServer(Resource.class);
+        released = new CountDownLatch(1);
+        AhcHttpClient c = createClient(1, 1);
+        final WebResource r = c.resource(getUri().path("test").build());
+        AdaptiveConcurrencyLimiter limiter = c.getClientHandler().getLimiter();
+        String host = AdaptiveConcurrencyLimiter.getHostName(r.getURI());
+
+        Future<String> first = c.asyncResource(r.getURI()).get(String.class);
+        final AtomicReference<Object> second = new AtomicReference<Object>();
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    second.set(r.get(String.class));
+                } catch (RuntimeException e) {
+                    second.set(e);
+                }
+            }
+        };
+        t.start();
+        for (int i = 0; i < 100 && limiter.queued(host) == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, limiter.queued(host));
+        assertEquals(1, limiter.inFlight(host));
+
+        released.countDown();
+        assertEquals("GET", first.get());
+        t.join(10000);
+        assertEquals("GET", second.get());
+        assertEquals(0, limiter.inFlight(host));
+        assertEquals(0, limiter.getRejected());
+        c.destroy();
+    }
+
+    public void testMBean() throws Exception {
+        startServer(Resource.class);
+        released = new CountDownLatch(0);
+        AhcHttpClient c = createClient(10, 0);
+        c.resource(getUri().path("test").build()).get(String.class);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = c.getLimiterName();
+        assertEquals(1, ((String[]) server.getAttribute(name, "Hosts")).length);
+        assertEquals(0L, server.getAttribute(name, "Rejected"));
+
+        c.destroy();
+        assertFalse(server.isRegistered(name));
+    }
+}
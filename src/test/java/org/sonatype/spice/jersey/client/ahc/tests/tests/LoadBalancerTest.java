@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import junit.framework.TestCase;
+import org.sonatype.spice.jersey.client.ahc.balancer.LoadBalancer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+
+public class LoadBalancerTest extends TestCase {
+
+    public LoadBalancerTest(String testName) {
+        super(testName);
+    }
+
+    public void testRoute() {
+        LoadBalancer b = new LoadBalancer(URI.create("http://service/api"), LoadBalancer.Strategy.POWER_OF_TWO_CHOICES);
+        b.setEndpoints(Arrays.asList(URI.create("https://replica:8443/v1/")));
+
+        assertEquals(URI.create("https://replica:8443/v1/items?q=a%20b"),
+                b.route(URI.create("http://service/api/items?q=a%20b")));
+        assertEquals(URI.create("https://replica:8443/v1"), b.route(URI.create("http://service/api")));
+        assertEquals(URI.create("http://service/apis"), b.route(URI.create("http://service/apis")));
+        assertEquals(URI.create("http://other/api"), b.route(URI.create("http://other/api")));
+    }
+
+    public void testLeastLoaded() {
+        LoadBalancer b = new LoadBalancer(URI.create("http://service"), LoadBalancer.Strategy.POWER_OF_TWO_CHOICES);
+        URI busy = URI.create("http://busy");
+        URI idle = URI.create("http://idle");
+        b.setEndpoints(Arrays.asList(busy, idle));
+        for (int i = 0; i < 5; i++) {
+            b.onRequestStarted("GET", busy);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("idle", b.route(URI.create("http://service/")).getHost());
+        }
+        assertEquals(5, b.getEndpoints().get(0).getInFlight());
+    }
+
+    public void testEjection() {
+        LoadBalancer b = new LoadBalancer(URI.create("http://service"), LoadBalancer.Strategy.POWER_OF_TWO_CHOICES);
+        URI bad = URI.create("http://bad");
+        URI good = URI.create("http://good");
+        b.setEndpoints(Arrays.asList(bad, good));
+
+        for (int i = 0; i < 5; i++) {
+            b.onRequestStarted("GET", bad);
+            b.onRequestCompleted("GET", bad, 503, 1000, 0, 0);
+        }
+        assertTrue(b.getEndpoints().get(0).isEjected());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("good", b.route(URI.create("http://service/")).getHost());
+        }
+
+        // At least half of the endpoints remain.
+        for (int i = 0; i < 5; i++) {
+            b.onRequestStarted("GET", good);
+            b.onRequestFailed("GET", good, new IOException(), 1000);
+        }
+        assertFalse(b.getEndpoints().get(1).isEjected());
+
+        // The state of the endpoints is kept when they are refreshed.
+        b.setEndpoints(Arrays.asList(good, bad, URI.create("http://new")));
+        assertTrue(b.getEndpoints().get(1).isEjected());
+    }
+
+    public void testEndpointsOnOneHost() {
+        LoadBalancer b = new LoadBalancer(URI.create("http://service"), LoadBalancer.Strategy.POWER_OF_TWO_CHOICES);
+        b.setEndpoints(Arrays.asList(URI.create("http://host:8080/a"), URI.create("http://host:8080/ab/"),
+                URI.create("http://host:8080/a/b")));
+
+        b.onRequestStarted("GET", URI.create("http://host:8080/ab/x"));
+        b.onRequestStarted("GET", URI.create("http://host:8080/a?q=1"));
+        b.onRequestStarted("GET", URI.create("http://host:8080/a/x"));
+        b.onRequestStarted("GET", URI.create("http://host:8080/a/b/x"));
+        b.onRequestStarted("GET", URI.create("http://host:8080/b/x"));
+        assertEquals(2, b.getEndpoints().get(0).getInFlight());
+        assertEquals(1, b.getEndpoints().get(1).getInFlight());
+        assertEquals(1, b.getEndpoints().get(2).getInFlight());
+
+        for (int i = 0; i < 5; i++) {
+            b.onRequestCompleted("GET", URI.create("http://host:8080/ab/x"), 503, 1000, 0, 0);
+        }
+        assertFalse(b.getEndpoints().get(0).isEjected());
+        assertTrue(b.getEndpoints().get(1).isEjected());
+    }
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.ning.http.client.RequestBuilder;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+import com.sun.jersey.spi.MessageBodyWorkers;
+import junit.framework.TestCase;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.AhcRequestWriter;
+
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MessageBodyWorkersCacheTest extends TestCase {
+
+    static final Annotation[] NONE = new Annotation[0];
+
+    private AhcHttpClient client;
+
+    public MessageBodyWorkersCacheTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() {
+        client = AhcHttpClient.create();
+    }
+
+    @Override
+    protected void tearDown() {
+        client.destroy();
+    }
+
+    private AhcRequestWriter writer(CountingWorkers workers) {
+        AhcRequestWriter writer = new AhcRequestWriter();
+        writer.setMessageBodyWorkers(workers);
+        return writer;
+    }
+
+    public void testWriterResolvedOnce() {
+        CountingWorkers counting = new CountingWorkers(client.getMessageBodyWorkers());
+        MessageBodyWorkers workers = writer(counting).getMessageBodyWorkers();
+
+        MessageBodyWriter<String> w = workers.getMessageBodyWriter(String.class, String.class, NONE,
+                MediaType.TEXT_PLAIN_TYPE);
+        assertNotNull(w);
+        assertSame(w, workers.getMessageBodyWriter(String.class, String.class, NONE, MediaType.TEXT_PLAIN_TYPE));
+        assertEquals(1, counting.writers.get());
+
+        workers.getMessageBodyWriter(String.class, String.class, NONE, MediaType.APPLICATION_XML_TYPE);
+        workers.getMessageBodyWriter(byte[].class, byte[].class, NONE, MediaType.TEXT_PLAIN_TYPE);
+        assertEquals(3, counting.writers.get());
+    }
+
+    public void testReaderResolvedOnce() {
+        CountingWorkers counting = new CountingWorkers(client.getMessageBodyWorkers());
+        MessageBodyWorkers workers = writer(counting).getMessageBodyWorkers();
+
+        MessageBodyReader<String> r = workers.getMessageBodyReader(String.class, String.class, NONE,
+                MediaType.TEXT_PLAIN_TYPE);
+        assertNotNull(r);
+        assertSame(r, workers.getMessageBodyReader(String.class, String.class, NONE, MediaType.TEXT_PLAIN_TYPE));
+        assertEquals(1, counting.readers.get());
+    }
+
+    public void testGenericType() {
+        CountingWorkers counting = new CountingWorkers(client.getMessageBodyWorkers());
+        MessageBodyWorkers workers = writer(counting).getMessageBodyWorkers();
+        Type type = new GenericEntity<MultivaluedMap<String, String>>(new MultivaluedMapImpl()) {
+        }.getType();
+
+        assertNotNull(workers.getMessageBodyWriter(MultivaluedMap.class, type, NONE,
+                MediaType.APPLICATION_FORM_URLENCODED_TYPE));
+        workers.getMessageBodyWriter(MultivaluedMap.class, type, NONE, MediaType.APPLICATION_FORM_URLENCODED_TYPE);
+        workers.getMessageBodyWriter(MultivaluedMap.class, MultivaluedMap.class, NONE,
+                MediaType.APPLICATION_FORM_URLENCODED_TYPE);
+        assertEquals(2, counting.writers.get());
+    }
+
+    public void testMediaTypesResolvedOnce() {
+        CountingWorkers counting = new CountingWorkers(client.getMessageBodyWorkers());
+        MessageBodyWorkers workers = writer(counting).getMessageBodyWorkers();
+
+        List<MediaType> types = workers.getMessageBodyWriterMediaTypes(String.class, String.class, NONE);
+        assertEquals(types, workers.getMessageBodyWriterMediaTypes(String.class, String.class, NONE));
+        assertEquals(1, counting.mediaTypes.get());
+    }
+
+    public void testAnnotationsAreNotCached() {
+        CountingWorkers counting = new CountingWorkers(client.getMessageBodyWorkers());
+        MessageBodyWorkers workers = writer(counting).getMessageBodyWorkers();
+        Annotation[] annotations = Deprecated.class.getAnnotations();
+
+        workers.getMessageBodyWriter(String.class, String.class, annotations, MediaType.TEXT_PLAIN_TYPE);
+        workers.getMessageBodyWriter(String.class, String.class, annotations, MediaType.TEXT_PLAIN_TYPE);
+        assertEquals(2, counting.writers.get());
+    }
+
+    public void testMissingWriterIsNotCached() {
+        CountingWorkers counting = new CountingWorkers(client.getMessageBodyWorkers());
+        MessageBodyWorkers workers = writer(counting).getMessageBodyWorkers();
+
+        assertNull(workers.getMessageBodyWriter(Thread.class, Thread.class, NONE, MediaType.TEXT_PLAIN_TYPE));
+        assertNull(workers.getMessageBodyWriter(Thread.class, Thread.class, NONE, MediaType.TEXT_PLAIN_TYPE));
+        assertEquals(2, counting.writers.get());
+    }
+
+    public void testNewWorkersInvalidate() {
+        CountingWorkers first = new CountingWorkers(client.getMessageBodyWorkers());
+        AhcRequestWriter writer = writer(first);
+        MessageBodyWorkers workers = writer.getMessageBodyWorkers();
+        assertSame(workers, writer.getMessageBodyWorkers());
+        workers.getMessageBodyWriter(String.class, String.class, NONE, MediaType.TEXT_PLAIN_TYPE);
+
+        CountingWorkers second = new CountingWorkers(client.getMessageBodyWorkers());
+        writer.setMessageBodyWorkers(second);
+        assertNotSame(workers, writer.getMessageBodyWorkers());
+        writer.getMessageBodyWorkers().getMessageBodyWriter(String.class, String.class, NONE,
+                MediaType.TEXT_PLAIN_TYPE);
+        assertEquals(1, first.writers.get());
+        assertEquals(1, second.writers.get());
+    }
+
+    public void testRequestWriter() {
+        CountingWorkers counting = new CountingWorkers(client.getMessageBodyWorkers());
+        AhcRequestWriter writer = writer(counting);
+
+        for (int i = 0; i < 3; i++) {
+            ClientRequest cr = ClientRequest.create().entity("hello").build(URI.create("http://localhost/"), "PUT");
+            writer.configureRequest(new RequestBuilder("PUT"), cr, true).release();
+        }
+        assertEquals(1, counting.writers.get());
+        assertEquals(1, counting.mediaTypes.get());
+    }
+
+    public void testClientWorkersAreCached() {
+        MessageBodyWorkers workers = client.getClientHandler().getAhcRequestWriter().getMessageBodyWorkers();
+
+        assertNotSame(client.getMessageBodyWorkers(), workers);
+        assertSame(workers, client.getClientHandler().getAhcRequestWriter().getMessageBodyWorkers());
+    }
+
+    /**
+     * Workers counting the resolutions of their delegate.
+     */
+    static final class CountingWorkers implements MessageBodyWorkers {
+
+        final MessageBodyWorkers workers;
+
+        final AtomicInteger readers = new AtomicInteger();
+
+        final AtomicInteger writers = new AtomicInteger();
+
+        final AtomicInteger mediaTypes = new AtomicInteger();
+
+        CountingWorkers(MessageBodyWorkers workers) {
+            this.workers = workers;
+        }
+
+        public Map<MediaType, List<MessageBodyReader>> getReaders(MediaType mediaType) {
+            return workers.getReaders(mediaType);
+        }
+
+        public Map<MediaType, List<MessageBodyWriter>> getWriters(MediaType mediaType) {
+            return workers.getWriters(mediaType);
+        }
+
+        public String readersToString(Map<MediaType, List<MessageBodyReader>> readers) {
+            return workers.readersToString(readers);
+        }
+
+        public String writersToString(Map<MediaType, List<MessageBodyWriter>> writers) {
+            return workers.writersToString(writers);
+        }
+
+        public <T> MessageBodyReader<T> getMessageBodyReader(Class<T> type, Type genericType,
+                Annotation[] annotations, MediaType mediaType) {
+            readers.incrementAndGet();
+            return workers.getMessageBodyReader(type, genericType, annotations, mediaType);
+        }
+
+        public <T> MessageBodyWriter<T> getMessageBodyWriter(Class<T> type, Type genericType,
+                Annotation[] annotations, MediaType mediaType) {
+            writers.incrementAndGet();
+            return workers.getMessageBodyWriter(type, genericType, annotations, mediaType);
+        }
+
+        public <T> List<MediaType> getMessageBodyWriterMediaTypes(Class<T> type, Type genericType,
+                Annotation[] annotations) {
+            mediaTypes.incrementAndGet();
+            return workers.getMessageBodyWriterMediaTypes(type, genericType, annotations);
+        }
+
+        public <T> MediaType getMessageBodyWriterMediaType(Class<T> type, Type genericType,
+                Annotation[] annotations, List<MediaType> acceptableMediaTypes) {
+            return workers.getMessageBodyWriterMediaType(type, genericType, annotations, acceptableMediaTypes);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.WebResource;
+import org.sonatype.spice.jersey.client.ahc.AhcClientHandler;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+import org.sonatype.spice.jersey.client.ahc.metrics.DefaultClientMetrics;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+
+public class MetricsTest extends AbstractGrizzlyServerTester {
+
+    @Path("/test")
+    public static class Resource {
+        @GET
+        public String get() {
+            return "GET";
+        }
+
+        @POST
+        public String post(String entity) {
+            return entity;
+        }
+    }
+
+    public MetricsTest(String testName) {
+        super(testName);
+    }
+
+    private AhcHttpClient createClient(DefaultClientMetrics metrics) {
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_CLIENT_METRICS, metrics);
+        return AhcHttpClient.create(config);
+    }
+
+    public void testRequests() {
+        startServer(Resource.class);
+        DefaultClientMetrics metrics = new DefaultClientMetrics();
+        AhcHttpClient c = createClient(metrics);
+        WebResource r = c.resource(getUri().path("test").build());
+
+        assertEquals("GET", r.get(String.class));
+        assertEquals("POST", r.post(String.class, "POST"));
+
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(2, metrics.getCompleted());
+        assertEquals(2, metrics.getEndpoints().length);
+
+        String endpoint = DefaultClientMetrics.getEndpointName("POST", r.getURI());
+        DefaultClientMetrics.Endpoint e = metrics.getEndpoint(endpoint);
+        assertEquals(1, e.getLatency().getCount());
+        assertTrue(e.getLatency().getMax() > 0);
+        assertEquals(4, e.getRequestSize().getMax());
+        assertEquals(4, e.getResponseSize().getMax());
+        c.destroy();
+    }
+
+    public void testFailure() {
+        startServer(Resource.class);
+        DefaultClientMetrics metrics = new DefaultClientMetrics();
+        AhcHttpClient c = createClient(metrics);
+
+        try {
+            c.resource("http://localhost:1/test").get(String.class);
+            fail();
+        } catch (ClientHandlerException e) {
+            // expected
+        }
+
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(1, metrics.getFailed());
+        assertEquals(Long.valueOf(1), metrics.getFailuresByType().get(ConnectException.class.getName()));
+        c.destroy();
+    }
+
+    public void testMBean() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = createClient(new DefaultClientMetrics());
+        c.resource(getUri().path("test").build()).get(String.class);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = c.getMetricsName();
+        assertEquals(1L, server.getAttribute(name, "Completed"));
+
+        c.destroy();
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void testMBeanUnregisteredWhenCloseFails() throws Exception {
+        startServer(Resource.class);
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_CLIENT_METRICS, new DefaultClientMetrics());
+        AsyncHttpClient failing = new AsyncHttpClient() {
+            @Override
+            public void close() {
+                super.close();
+                throw new IllegalStateException("close failed");
+            }
+        };
+        AhcHttpClient c = new AhcHttpClient(new AhcClientHandler(failing, config));
+        ObjectName name = c.getMetricsName();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+
+        try {
+            c.destroy();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void testMBeanRegistrationFailure() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = createClient(new DefaultClientMetrics());
+        ObjectName name = c.getMetricsName();
+        c.destroy();
+
+        // The MBean of the next client is given the next id.
+        int id = Integer.parseInt(name.getKeyProperty("id")) + 1;
+        ObjectName taken = new ObjectName("org.sonatype.spice.jersey.client.ahc:type=ClientMetrics,id=" + id);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new DefaultClientMetrics(), taken);
+        try {
+            c = createClient(new DefaultClientMetrics());
+            assertNull(c.getMetricsName());
+            assertEquals("GET", c.resource(getUri().path("test").build()).get(String.class));
+            c.destroy();
+            assertTrue(server.isRegistered(taken));
+        } finally {
+            server.unregisterMBean(taken);
+        }
+    }
+}
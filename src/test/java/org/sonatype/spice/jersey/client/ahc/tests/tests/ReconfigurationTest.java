@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.providers.jdk.JDKAsyncHttpProvider;
+import com.sun.jersey.api.client.WebResource;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ReconfigurationTest extends AbstractGrizzlyServerTester {
+
+    static CountDownLatch released;
+
+    @Path("/test")
+    public static class Resource {
+        @GET
+        public String get() {
+            return "GET";
+        }
+
+        @GET
+        @Path("slow")
+        public String slow() throws InterruptedException {
+            released.await(10, TimeUnit.SECONDS);
+            return "slow";
+        }
+    }
+
+    public ReconfigurationTest(String testName) {
+        super(testName);
+    }
+
+    private static void assertClosed(AsyncHttpClient client) throws InterruptedException {
+        for (int i = 0; i < 100 && !client.isClosed(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(client.isClosed());
+    }
+
+    public void testReconfigure() throws Exception {
+        startServer(Resource.class);
+        released = new CountDownLatch(1);
+        AhcHttpClient c = AhcHttpClient.create();
+        WebResource r = c.resource(getUri().path("test").build());
+        assertEquals("GET", r.get(String.class));
+
+        AsyncHttpClient previous = c.getClientHandler().getHttpClient();
+        Future<String> inFlight = c.asyncResource(getUri().path("test/slow").build()).get(String.class);
+
+        c.reconfigure(c.newAsyncHttpClientConfigBuilder().setMaximumConnectionsPerHost(5).build());
+        AsyncHttpClient current = c.getClientHandler().getHttpClient();
+        assertNotSame(previous, current);
+        assertEquals(5, current.getConfig().getMaxConnectionPerHost());
+
+        // New requests go to the new client while the previous one drains.
+        assertEquals("GET", r.get(String.class));
+        assertFalse(previous.isClosed());
+
+        released.countDown();
+        assertEquals("slow", inFlight.get(10, TimeUnit.SECONDS));
+        assertClosed(previous);
+        assertFalse(current.isClosed());
+        assertEquals("GET", r.get(String.class));
+    }
+
+    public void testConcurrentReplacements() throws Exception {
+        startServer(Resource.class);
+        final AhcHttpClient c = AhcHttpClient.create();
+        final List<AsyncHttpClient> clients = Collections.synchronizedList(new ArrayList<AsyncHttpClient>());
+        clients.add(c.getClientHandler().getHttpClient());
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 5; j++) {
+                        AsyncHttpClient client = new AsyncHttpClient();
+                        clients.add(client);
+                        c.getClientHandler().setHttpClient(client, 0);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        // Every client but the current one is closed.
+        AsyncHttpClient current = c.getClientHandler().getHttpClient();
+        for (AsyncHttpClient client : clients) {
+            if (client != current) {
+                assertClosed(client);
+            }
+        }
+        assertFalse(current.isClosed());
+        c.destroy();
+    }
+
+    public void testSetConnectTimeout() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        WebResource r = c.resource(getUri().path("test").build());
+        AsyncHttpClient previous = c.getClientHandler().getHttpClient();
+
+        c.setConnectTimeout(1234);
+        assertEquals(1234, c.getClientHandler().getHttpClient().getConfig().getConnectionTimeoutInMs());
+        assertEquals("GET", r.get(String.class));
+        assertClosed(previous);
+    }
+
+    public void testOtherProvider() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        AsyncHttpClientConfig config = new AsyncHttpClientConfig.Builder().build();
+        AsyncHttpClient other = new AsyncHttpClient(new JDKAsyncHttpProvider(config), config);
+        try {
+            c.getClientHandler().setHttpClient(other, 1000);
+            fail();
+        } catch (IllegalArgumentException e) {
+        } finally {
+            other.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.filter.GZIPContentEncodingFilter;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class RequestCompressionTest extends AbstractGrizzlyServerTester {
+
+    static final byte[] CONTENT = new byte[256 * 1024];
+
+    static {
+        for (int i = 0; i < CONTENT.length; i++) {
+            CONTENT[i] = (byte) (i % 7);
+        }
+    }
+
+    static volatile String encoding;
+
+    static volatile int received;
+
+    @Path("/")
+    public static class Resource {
+        @POST
+        public byte[] post(@HeaderParam("Content-Encoding") String ce, byte[] content) throws IOException {
+            encoding = ce;
+            received = content.length;
+            InputStream in = new ByteArrayInputStream(content);
+            if ("gzip".equals(ce)) {
+                in = new GZIPInputStream(in);
+            } else if ("deflate".equals(ce)) {
+                in = new InflaterInputStream(in);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = in.read(b)) != -1) {
+                out.write(b, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    public RequestCompressionTest(String testName) {
+        super(testName);
+    }
+
+    private WebResource createResource(String compression, boolean stream) {
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_REQUEST_COMPRESSION, compression);
+        config.getProperties().put(AhcConfig.PROPERTY_STREAM_REQUEST_ENTITY, stream);
+        return AhcHttpClient.create(config).resource(getUri().path("/").build());
+    }
+
+    public void testGzip() {
+        startServer(Resource.class);
+        WebResource r = createResource("gzip", false);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(Arrays.equals(CONTENT, r.post(byte[].class, CONTENT)));
+            assertEquals("gzip", encoding);
+            assertTrue(received < CONTENT.length / 10);
+        }
+    }
+
+    public void testDeflate() {
+        startServer(Resource.class);
+        WebResource r = createResource("deflate", false);
+
+        assertTrue(Arrays.equals(CONTENT, r.post(byte[].class, CONTENT)));
+        assertEquals("deflate", encoding);
+        assertTrue(received < CONTENT.length / 10);
+    }
+
+    public void testStreamed() {
+        startServer(Resource.class);
+        WebResource r = createResource("gzip", true);
+
+        assertTrue(Arrays.equals(CONTENT, r.post(byte[].class, CONTENT)));
+        assertEquals("gzip", encoding);
+        assertTrue(received < CONTENT.length / 10);
+    }
+
+    public void testThreshold() {
+        startServer(Resource.class);
+        WebResource r = createResource("gzip", false);
+
+        byte[] small = new byte[100];
+        assertTrue(Arrays.equals(small, r.post(byte[].class, small)));
+        assertNull(encoding);
+        assertEquals(100, received);
+    }
+
+    public void testPerRequest() {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        WebResource r = c.resource(getUri().path("/").build());
+
+        assertTrue(Arrays.equals(CONTENT, r.post(byte[].class, CONTENT)));
+        assertNull(encoding);
+
+        c.getProperties().put(AhcConfig.PROPERTY_REQUEST_COMPRESSION, "deflate");
+        assertTrue(Arrays.equals(CONTENT, r.post(byte[].class, CONTENT)));
+        assertEquals("deflate", encoding);
+    }
+
+    public void testAlreadyEncoded() {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        c.getProperties().put(AhcConfig.PROPERTY_REQUEST_COMPRESSION, "deflate");
+        c.addFilter(new GZIPContentEncodingFilter());
+        WebResource r = c.resource(getUri().path("/").build());
+
+        assertTrue(Arrays.equals(CONTENT, r.post(byte[].class, CONTENT)));
+        assertEquals("gzip", encoding);
+    }
+}
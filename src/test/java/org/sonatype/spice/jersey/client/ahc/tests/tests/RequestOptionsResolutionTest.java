@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.config.ClientConfig;
+import junit.framework.TestCase;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.RequestOptions;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class RequestOptionsResolutionTest extends TestCase {
+
+    public void testResolve() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        assertSame(RequestOptions.DEFAULT, RequestOptions.resolve(properties, null));
+
+        properties.put(ClientConfig.PROPERTY_READ_TIMEOUT, 1000);
+        properties.put(AhcConfig.PROPERTY_REQUEST_COMPRESSION, "gzip");
+        RequestOptions o = RequestOptions.resolve(properties, null);
+        assertEquals(Integer.valueOf(1000), o.getReadTimeout());
+        assertNull(o.getFollowRedirects());
+        assertEquals("gzip", o.getRequestCompression());
+        assertEquals(1024, o.getCompressionThreshold());
+
+        // Unchanged properties resolve to the same options.
+        assertSame(o, RequestOptions.resolve(new HashMap<String, Object>(properties), o));
+
+        properties.put(ClientConfig.PROPERTY_FOLLOW_REDIRECTS, true);
+        RequestOptions p = RequestOptions.resolve(properties, o);
+        assertNotSame(o, p);
+        assertEquals(Boolean.TRUE, p.getFollowRedirects());
+    }
+
+    public void testResolveExpectContinue() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        assertEquals(-1, RequestOptions.resolve(properties, null).getExpectContinueThreshold());
+        assertEquals(1000, RequestOptions.resolve(properties, null).getExpectContinueTimeout());
+
+        properties.put(AhcConfig.PROPERTY_EXPECT_CONTINUE_THRESHOLD, 4096);
+        properties.put(AhcConfig.PROPERTY_EXPECT_CONTINUE_TIMEOUT, 250);
+        RequestOptions o = RequestOptions.resolve(properties, null);
+        assertEquals(4096, o.getExpectContinueThreshold());
+        assertEquals(250, o.getExpectContinueTimeout());
+        assertSame(o, RequestOptions.resolve(new HashMap<String, Object>(properties), o));
+    }
+
+    public void testRequestOptionsProperty() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        RequestOptions o = RequestOptions.DEFAULT.withReadTimeout(1000);
+        properties.put(AhcConfig.PROPERTY_REQUEST_OPTIONS, o);
+        properties.put(ClientConfig.PROPERTY_READ_TIMEOUT, 2000);
+
+        assertSame(o, RequestOptions.resolve(properties, null));
+    }
+
+    public void testWith() {
+        RequestOptions o = RequestOptions.DEFAULT.withReadTimeout(1000).withRequestCompression("deflate")
+                .withCompressionThreshold(10).withExpectContinueThreshold(0).withExpectContinueTimeout(100);
+
+        assertNull(RequestOptions.DEFAULT.getReadTimeout());
+        assertEquals(Integer.valueOf(1000), o.getReadTimeout());
+        assertEquals("deflate", o.getRequestCompression());
+        assertEquals(10, o.getCompressionThreshold());
+        assertEquals(0, o.getExpectContinueThreshold());
+        assertEquals(100, o.getExpectContinueTimeout());
+        assertEquals(Integer.valueOf(1000), o.withFollowRedirects(false).getReadTimeout());
+    }
+}
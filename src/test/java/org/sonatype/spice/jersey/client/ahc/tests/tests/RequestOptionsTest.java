@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.RequestOptions;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+public class RequestOptionsTest extends AbstractGrizzlyServerTester {
+
+    @Path("/test")
+    public static class Resource {
+        @GET
+        public String get() {
+            return "GET";
+        }
+
+        @GET
+        @Path("redirect")
+        public Response redirect(@Context UriInfo uriInfo) {
+            return Response.seeOther(uriInfo.getBaseUriBuilder().path("test").build()).build();
+        }
+
+        @GET
+        @Path("slow")
+        public String slow() throws InterruptedException {
+            Thread.sleep(2000);
+            return "slow";
+        }
+    }
+
+    public RequestOptionsTest(String testName) {
+        super(testName);
+    }
+
+    public void testFollowRedirects() {
+        startServer(Resource.class);
+        WebResource r = AhcHttpClient.create().resource(getUri().path("test/redirect").build());
+
+        assertEquals(303, r.get(ClientResponse.class).getStatus());
+
+        r.setProperty(AhcConfig.PROPERTY_REQUEST_OPTIONS, RequestOptions.DEFAULT.withFollowRedirects(true));
+        assertEquals("GET", r.get(String.class));
+    }
+
+    public void testReadTimeout() {
+        startServer(Resource.class);
+        WebResource r = AhcHttpClient.create().resource(getUri().path("test").build());
+        r.setProperty(AhcConfig.PROPERTY_REQUEST_OPTIONS, RequestOptions.DEFAULT.withReadTimeout(500));
+
+        assertEquals("GET", r.get(String.class));
+        try {
+            r.path("slow").get(String.class);
+            fail();
+        } catch (ClientHandlerException e) {
+        }
+    }
+
+    public void testSetReadTimeout() {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        WebResource r = c.resource(getUri().path("test/slow").build());
+
+        // The client is already built.
+        c.setReadTimeout(500);
+        try {
+            r.get(String.class);
+            fail();
+        } catch (ClientHandlerException e) {
+        }
+    }
+
+    public void testSetFollowRedirects() {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        c.setFollowRedirects(true);
+
+        assertEquals("GET", c.resource(getUri().path("test/redirect").build()).get(String.class));
+
+        // The options of the client are updated too.
+        c.getProperties().put(AhcConfig.PROPERTY_REQUEST_OPTIONS, RequestOptions.DEFAULT);
+        c.setFollowRedirects(false);
+        assertEquals(303, c.resource(getUri().path("test/redirect").build()).get(ClientResponse.class).getStatus());
+    }
+}
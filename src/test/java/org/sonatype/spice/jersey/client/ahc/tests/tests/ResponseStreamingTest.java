@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ResponseStreamingTest extends AbstractGrizzlyServerTester {
+
+    static final byte[] CONTENT = new byte[4 * 1024 * 1024 + 11];
+
+    static {
+        for (int i = 0; i < CONTENT.length; i++) {
+            CONTENT[i] = (byte) i;
+        }
+    }
+
+    static CountDownLatch released;
+
+    @Path("/")
+    public static class Resource {
+        @GET
+        @Path("large")
+        public byte[] large() {
+            return CONTENT;
+        }
+
+        @GET
+        @Path("empty")
+        public void empty() {
+        }
+
+        @GET
+        @Path("slow")
+        public StreamingOutput slow() {
+            return new StreamingOutput() {
+                public void write(OutputStream out) throws IOException, WebApplicationException {
+                    out.write("first".getBytes());
+                    out.flush();
+                    try {
+                        released.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e.toString());
+                    }
+                    out.write("last".getBytes());
+                }
+            };
+        }
+    }
+
+    public ResponseStreamingTest(String testName) {
+        super(testName);
+    }
+
+    private AhcHttpClient createClient() {
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getProperties().put(AhcConfig.PROPERTY_STREAM_RESPONSE_ENTITY, true);
+        config.getProperties().put(AhcConfig.PROPERTY_RESPONSE_BUFFER_SIZE, 4096);
+        return AhcHttpClient.create(config);
+    }
+
+    public void testLarge() {
+        startServer(Resource.class);
+        WebResource r = createClient().resource(getUri().path("large").build());
+
+        assertTrue(Arrays.equals(CONTENT, r.get(byte[].class)));
+    }
+
+    public void testEmpty() {
+        startServer(Resource.class);
+        WebResource r = createClient().resource(getUri().path("empty").build());
+
+        ClientResponse cr = r.get(ClientResponse.class);
+        assertEquals(204, cr.getStatus());
+        assertFalse(cr.hasEntity());
+    }
+
+    public void testFirstByteBeforeLastByte() throws Exception {
+        startServer(Resource.class);
+        released = new CountDownLatch(1);
+        WebResource r = createClient().resource(getUri().path("slow").build());
+
+        ClientResponse cr = r.get(ClientResponse.class);
+        InputStream in = cr.getEntityInputStream();
+        byte[] first = new byte[5];
+        int n = 0;
+        while (n < first.length) {
+            n += in.read(first, n, first.length - n);
+        }
+        assertEquals("first", new String(first));
+
+        released.countDown();
+        assertEquals("last", cr.getEntity(String.class));
+    }
+
+    public void testCloseBeforeEnd() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = createClient();
+        WebResource r = c.resource(getUri().path("large").build());
+
+        ClientResponse cr = r.get(ClientResponse.class);
+        assertEquals(200, cr.getStatus());
+        assertEquals(0, cr.getEntityInputStream().read());
+        cr.close();
+
+        assertTrue(Arrays.equals(CONTENT, r.get(byte[].class)));
+    }
+
+    public void testAsync() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = createClient();
+
+        assertTrue(Arrays.equals(CONTENT, c.asyncResource(getUri().path("large").build()).get(byte[].class).get()));
+    }
+}
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import junit.framework.TestCase;
+import org.sonatype.spice.jersey.client.ahc.retry.RetryBudget;
+import org.sonatype.spice.jersey.client.ahc.retry.RetryPolicy;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+public class RetryPolicyTest extends TestCase {
+
+    public RetryPolicyTest(String testName) {
+        super(testName);
+    }
+
+    public void testDelay() {
+        RetryPolicy p = new RetryPolicy(10, 100, 1000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(p.getDelayMillis(1) < 100);
+            assertTrue(p.getDelayMillis(3) < 400);
+            assertTrue(p.getDelayMillis(50) < 1000);
+        }
+    }
+
+    public void testRetryable() {
+        RetryPolicy p = new RetryPolicy(1, 100, 1000);
+        assertTrue(p.isRetryable("GET"));
+        assertTrue(p.isRetryable("PUT"));
+        assertFalse(p.isRetryable("POST"));
+        assertTrue(p.isRetryable(503));
+        assertFalse(p.isRetryable(500));
+        assertTrue(p.isRetryable(new IOException()));
+        assertFalse(p.isRetryable(new CancellationException()));
+    }
+
+    public void testBudget() {
+        RetryBudget b = new RetryBudget(0.5, 2);
+        assertTrue(b.tryWithdraw());
+        assertTrue(b.tryWithdraw());
+        assertFalse(b.tryWithdraw());
+
+        b.deposit();
+        assertFalse(b.tryWithdraw());
+        b.deposit();
+        assertTrue(b.tryWithdraw());
+
+        for (int i = 0; i < 100; i++) {
+            b.deposit();
+        }
+        assertEquals(2, b.getBalance());
+    }
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.api.client.WebResource;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+import org.sonatype.spice.jersey.client.ahc.retry.HedgePolicy;
+import org.sonatype.spice.jersey.client.ahc.retry.RetryBudget;
+import org.sonatype.spice.jersey.client.ahc.retry.RetryPolicy;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RetryTest extends AbstractGrizzlyServerTester {
+
+    static final AtomicInteger count = new AtomicInteger();
+
+    static volatile int failures;
+
+    static CountDownLatch released;
+
+    @Path("/test")
+    public static class Resource {
+        @GET
+        public String get() {
+            if (count.incrementAndGet() <= failures) {
+                throw new WebApplicationException(503);
+            }
+            return "GET";
+        }
+
+        @PUT
+        public String put(String entity) {
+            return post(entity);
+        }
+
+        @POST
+        public String post(String entity) {
+            if (count.incrementAndGet() <= failures) {
+                throw new WebApplicationException(503);
+            }
+            return entity;
+        }
+
+        @GET
+        @Path("slow")
+        public String slow() throws InterruptedException {
+            int n = count.incrementAndGet();
+            if (n == 1) {
+                released.await(10, TimeUnit.SECONDS);
+            }
+            return Integer.toString(n);
+        }
+    }
+
+    public RetryTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        count.set(0);
+        failures = 0;
+    }
+
+    private AhcHttpClient createClient(RetryPolicy retryPolicy, HedgePolicy hedgePolicy) {
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        if (retryPolicy != null) {
+            config.getProperties().put(AhcConfig.PROPERTY_RETRY_POLICY, retryPolicy);
+        }
+        if (hedgePolicy != null) {
+            config.getProperties().put(AhcConfig.PROPERTY_HEDGE_POLICY, hedgePolicy);
+        }
+        return AhcHttpClient.create(config);
+    }
+
+    public void testRetry() {
+        startServer(Resource.class);
+        failures = 2;
+        WebResource r = createClient(new RetryPolicy(3, 10, 100), null).resource(getUri().path("test").build());
+
+        assertEquals("GET", r.get(String.class));
+        assertEquals(3, count.get());
+    }
+
+    public void testRetryPut() {
+        startServer(Resource.class);
+        failures = 1;
+        AhcHttpClient c = createClient(new RetryPolicy(3, 10, 100), null);
+        WebResource r = c.resource(getUri().path("test").build());
+
+        // The buffered entity is sent again.
+        assertEquals("PUT", r.put(String.class, "PUT"));
+        assertEquals(2, count.get());
+
+        // POST is not idempotent.
+        count.set(0);
+        try {
+            r.post(String.class, "POST");
+            fail();
+        } catch (UniformInterfaceException e) {
+            assertEquals(503, e.getResponse().getStatus());
+        }
+        assertEquals(1, count.get());
+    }
+
+    public void testMaxRetries() {
+        startServer(Resource.class);
+        failures = 10;
+        WebResource r = createClient(new RetryPolicy(2, 10, 100), null).resource(getUri().path("test").build());
+
+        try {
+            r.get(String.class);
+            fail();
+        } catch (UniformInterfaceException e) {
+            assertEquals(503, e.getResponse().getStatus());
+        }
+        assertEquals(3, count.get());
+    }
+
+    public void testBudget() {
+        startServer(Resource.class);
+        failures = 10;
+        RetryBudget budget = new RetryBudget(0, 1);
+        WebResource r = createClient(new RetryPolicy(2, 10, 100, budget), null)
+                .resource(getUri().path("test").build());
+
+        assertEquals(503, r.get(ClientResponse.class).getStatus());
+        assertEquals(2, count.get());
+        assertEquals(0, budget.getBalance());
+
+        assertEquals(503, r.get(ClientResponse.class).getStatus());
+        assertEquals(3, count.get());
+    }
+
+    public void testConnectionRefused() {
+        startServer(Resource.class);
+        RetryBudget budget = new RetryBudget(0, 10);
+        AhcHttpClient c = createClient(new RetryPolicy(2, 1, 1, budget), null);
+
+        try {
+            c.resource("http://localhost:1/test").get(String.class);
+            fail();
+        } catch (ClientHandlerException e) {
+            // expected
+        }
+        assertEquals(8, budget.getBalance());
+    }
+
+    public void testAsync() throws Exception {
+        startServer(Resource.class);
+        failures = 2;
+        AhcHttpClient c = createClient(new RetryPolicy(3, 10, 100), null);
+
+        assertEquals("GET", c.asyncResource(getUri().path("test").build()).get(String.class).get());
+        assertEquals(3, count.get());
+    }
+
+    public void testHedge() throws Exception {
+        startServer(Resource.class);
+        released = new CountDownLatch(1);
+        AhcHttpClient c = createClient(null, new HedgePolicy());
+        WebResource r = c.resource(getUri().path("test").build());
+
+        // Measure the latency of the host.
+        for (int i = 0; i < 20; i++) {
+            r.get(String.class);
+        }
+        count.set(0);
+
+        long start = System.currentTimeMillis();
+        assertEquals("2", c.resource(getUri().path("test/slow").build()).get(String.class));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        released.countDown();
+    }
+}
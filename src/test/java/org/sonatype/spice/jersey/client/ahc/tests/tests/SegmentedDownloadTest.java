@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
+import com.sun.jersey.core.header.OutBoundHeaders;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.download.DownloadedFile;
+import org.sonatype.spice.jersey.client.ahc.download.SegmentedDownload;
+
+import javax.ws.rs.CookieParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SegmentedDownloadTest extends AbstractGrizzlyServerTester {
+
+    static final byte[] CONTENT = new byte[3 * 1024 * 1024 + 7];
+
+    static {
+        for (int i = 0; i < CONTENT.length; i++) {
+            CONTENT[i] = (byte) (i * 13);
+        }
+    }
+
+    static final AtomicInteger ranges = new AtomicInteger();
+
+    static final AtomicInteger failures = new AtomicInteger();
+
+    static final AtomicLong served = new AtomicLong();
+
+    static volatile String etag;
+
+    static final String AUTHORIZATION = "Basic dXNlcjpzZWNyZXQ=";
+
+    @Path("/")
+    public static class Resource {
+        @HEAD
+        @Path("ranged")
+        public Response headRanged() {
+            return Response.ok().header("Accept-Ranges", "bytes").header("ETag", etag)
+                    .header("Content-Length", CONTENT.length).build();
+        }
+
+        @GET
+        @Path("ranged")
+        public Response getRanged(@HeaderParam("Range") String range, @HeaderParam("If-Range") String ifRange) {
+            if (range == null || (ifRange != null && !ifRange.equals(etag))) {
+                return Response.ok(write(0, CONTENT.length, false)).build();
+            }
+            ranges.incrementAndGet();
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int first = Integer.parseInt(bounds[0]);
+            int last = Integer.parseInt(bounds[1]);
+            boolean fail = failures.getAndDecrement() > 0;
+            return Response.status(206)
+                    .header("Content-Range", "bytes " + first + "-" + last + "/" + CONTENT.length)
+                    .entity(write(first, last + 1, fail)).build();
+        }
+
+        @HEAD
+        @Path("plain")
+        public Response headPlain() {
+            return Response.ok().header("Content-Length", CONTENT.length).build();
+        }
+
+        @GET
+        @Path("plain")
+        public Response getPlain(@HeaderParam("Range") String range) {
+            if (range != null) {
+                ranges.incrementAndGet();
+            }
+            return Response.ok(write(0, CONTENT.length, false)).build();
+        }
+
+        @GET
+        @Path("login")
+        public Response login() {
+            return Response.ok("ok").header("Set-Cookie", "session=s1; Path=/").build();
+        }
+
+        @HEAD
+        @Path("secured")
+        public Response headSecured(@HeaderParam("Authorization") String authorization,
+                @HeaderParam("X-Token") String token, @CookieParam("session") String session) {
+            if (!isAuthorized(authorization, token, session)) {
+                return Response.status(401).build();
+            }
+            return headRanged();
+        }
+
+        @GET
+        @Path("secured")
+        public Response getSecured(@HeaderParam("Authorization") String authorization,
+                @HeaderParam("X-Token") String token, @CookieParam("session") String session,
+                @HeaderParam("Range") String range, @HeaderParam("If-Range") String ifRange) {
+            if (!isAuthorized(authorization, token, session)) {
+                return Response.status(401).build();
+            }
+            return getRanged(range, ifRange);
+        }
+
+        private static boolean isAuthorized(String authorization, String token, String session) {
+            return AUTHORIZATION.equals(authorization) && "t1".equals(token) && "s1".equals(session);
+        }
+
+        @HEAD
+        @Path("missing")
+        public Response headMissing() {
+            return Response.status(404).build();
+        }
+
+        private static StreamingOutput write(final int from, final int to, final boolean fail) {
+            return new StreamingOutput() {
+                public void write(OutputStream out) throws IOException, WebApplicationException {
+                    int end = fail ? from + (to - from) / 2 : to;
+                    out.write(CONTENT, from, end - from);
+                    served.addAndGet(end - from);
+                    if (fail) {
+                        throw new IOException("failed");
+                    }
+                }
+            };
+        }
+    }
+
+    private File file;
+
+    public SegmentedDownloadTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("segmented", ".bin");
+        ranges.set(0);
+        failures.set(0);
+        served.set(0);
+        etag = "\"v1\"";
+    }
+
+    @Override
+    public void tearDown() {
+        super.tearDown();
+        file.delete();
+        new File(file.getPath() + SegmentedDownload.STATE_SUFFIX).delete();
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] b = new byte[(int) f.length()];
+        InputStream in = new FileInputStream(f);
+        try {
+            int n = 0;
+            while (n < b.length) {
+                n += in.read(b, n, b.length - n);
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    private URI uri(String path) {
+        return getUri().path(path).build();
+    }
+
+    public void testSegments() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+
+        DownloadedFile d = c.download(uri("ranged"), new SegmentedDownload(file, 4, 64 * 1024, 1));
+        assertEquals(file, d.getFile());
+        assertEquals(CONTENT.length, d.getLength());
+        assertEquals(4, ranges.get());
+        assertTrue(Arrays.equals(CONTENT, read(file)));
+        assertFalse(new SegmentedDownload(file).getStateFile().exists());
+    }
+
+    public void testSmallResourceFewerSegments() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+
+        c.download(uri("ranged"), new SegmentedDownload(file, 8, 2 * 1024 * 1024, 1));
+        assertEquals(1, ranges.get());
+        assertTrue(Arrays.equals(CONTENT, read(file)));
+    }
+
+    public void testSingleStreamWithoutRanges() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+
+        DownloadedFile d = c.download(uri("plain"), new SegmentedDownload(file, 4, 64 * 1024, 1));
+        assertEquals(CONTENT.length, d.getLength());
+        assertEquals(0, ranges.get());
+        assertTrue(Arrays.equals(CONTENT, read(file)));
+    }
+
+    public void testRetrySegment() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        failures.set(2);
+
+        c.download(uri("ranged"), new SegmentedDownload(file, 4, 64 * 1024, 3));
+        assertTrue(ranges.get() > 4);
+        assertTrue(Arrays.equals(CONTENT, read(file)));
+    }
+
+    public void testResume() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        SegmentedDownload download = new SegmentedDownload(file, 4, 64 * 1024, 1);
+        failures.set(4);
+
+        try {
+            c.download(uri("ranged"), download);
+            fail();
+        } catch (ClientHandlerException e) {
+            // expected
+        }
+        assertTrue(download.getStateFile().exists());
+
+        served.set(0);
+        c.download(uri("ranged"), download);
+        assertTrue(Arrays.equals(CONTENT, read(file)));
+        assertTrue(served.get() < CONTENT.length);
+        assertFalse(download.getStateFile().exists());
+    }
+
+    public void testRestartWhenChanged() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        SegmentedDownload download = new SegmentedDownload(file, 4, 64 * 1024, 1);
+        failures.set(4);
+
+        try {
+            c.download(uri("ranged"), download);
+            fail();
+        } catch (ClientHandlerException e) {
+            // expected
+        }
+
+        etag = "\"v2\"";
+        served.set(0);
+        c.download(uri("ranged"), download);
+        assertTrue(Arrays.equals(CONTENT, read(file)));
+        assertEquals(CONTENT.length, served.get());
+    }
+
+    public void testHeadersCookiesAndFilters() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+        c.addFilter(new HTTPBasicAuthFilter("user", "secret"));
+        assertEquals("ok", c.resource(uri("login")).get(String.class));
+
+        MultivaluedMap<String, Object> headers = new OutBoundHeaders();
+        headers.putSingle("X-Token", "t1");
+        DownloadedFile d = c.download(uri("secured"), headers, new SegmentedDownload(file, 4, 64 * 1024, 1));
+        assertEquals(CONTENT.length, d.getLength());
+        assertTrue(Arrays.equals(CONTENT, read(file)));
+        assertEquals(4, ranges.get());
+    }
+
+    public void testHeadFailure() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = AhcHttpClient.create();
+
+        try {
+            c.download(uri("missing"), new SegmentedDownload(file));
+            fail();
+        } catch (ClientHandlerException e) {
+            assertTrue(e.getMessage().contains("404"));
+        }
+    }
+}
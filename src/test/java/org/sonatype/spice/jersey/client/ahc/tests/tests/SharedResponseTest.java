@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.sun.jersey.api.client.AsyncWebResource;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SharedResponseTest extends AbstractGrizzlyServerTester {
+
+    static final AtomicInteger requests = new AtomicInteger();
+
+    static CountDownLatch released;
+
+    @Path("/test")
+    public static class Resource {
+        @GET
+        public String get(@QueryParam("q") String q) throws InterruptedException {
+            requests.incrementAndGet();
+            released.await(10, TimeUnit.SECONDS);
+            return q == null ? "GET" : q;
+        }
+    }
+
+    public SharedResponseTest(String testName) {
+        super(testName);
+    }
+
+    private AhcHttpClient createClient() {
+        requests.set(0);
+        released = new CountDownLatch(1);
+        AhcHttpClient c = AhcHttpClient.create();
+        c.getProperties().put(AhcConfig.PROPERTY_SHARE_RESPONSES, true);
+        return c;
+    }
+
+    public void testShared() throws Exception {
+        startServer(Resource.class);
+        AsyncWebResource r = createClient().asyncResource(getUri().path("test").build());
+
+        List<Future<ClientResponse>> futures = new ArrayList<Future<ClientResponse>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(r.get(ClientResponse.class));
+        }
+        futures.add(r.queryParam("q", "other").get(ClientResponse.class));
+        released.countDown();
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("GET", futures.get(i).get().getEntity(String.class));
+        }
+        assertEquals("other", futures.get(10).get().getEntity(String.class));
+        assertEquals(2, requests.get());
+    }
+
+    public void testDifferentOptions() throws Exception {
+        startServer(Resource.class);
+        AhcHttpClient c = createClient();
+        AsyncWebResource r = c.asyncResource(getUri().path("test").build());
+        AsyncWebResource timed = c.asyncResource(getUri().path("test").build());
+        timed.setProperty(ClientConfig.PROPERTY_READ_TIMEOUT, 5000);
+
+        Future<ClientResponse> first = r.get(ClientResponse.class);
+        Future<ClientResponse> second = timed.get(ClientResponse.class);
+        Future<ClientResponse> third = timed.get(ClientResponse.class);
+        released.countDown();
+
+        assertEquals("GET", first.get().getEntity(String.class));
+        assertEquals("GET", second.get().getEntity(String.class));
+        assertEquals("GET", third.get().getEntity(String.class));
+        assertEquals(2, requests.get());
+    }
+
+    public void testSequential() {
+        startServer(Resource.class);
+        WebResource r = createClient().resource(getUri().path("test").build());
+        released.countDown();
+
+        assertEquals("GET", r.get(String.class));
+        assertEquals("GET", r.get(String.class));
+        assertEquals(2, requests.get());
+    }
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *   http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.apache.org/licenses/LICENSE-2.0.html
+ * You may elect to redistribute this code under either of these licenses.
+ *******************************************************************************/
+
+package org.sonatype.spice.jersey.client.ahc.tests.tests;
+
+import com.ning.http.client.ConnectionsPool;
+import org.sonatype.spice.jersey.client.ahc.AhcHttpClient;
+import org.sonatype.spice.jersey.client.ahc.WarmUpReport;
+import org.sonatype.spice.jersey.client.ahc.config.AhcConfig;
+import org.sonatype.spice.jersey.client.ahc.config.DefaultAhcConfig;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WarmUpTest extends AbstractGrizzlyServerTester {
+
+    @Path("/test")
+    public static class Resource {
+        @GET
+        public String get() {
+            return "GET";
+        }
+    }
+
+    /**
+     * A connections pool counting the connections that are reused.
+     */
+    static class CountingConnectionsPool implements ConnectionsPool<String, Object> {
+        final ConcurrentMap<String, Queue<Object>> connections = new ConcurrentHashMap<String, Queue<Object>>();
+
+        final AtomicInteger offered = new AtomicInteger();
+
+        final AtomicInteger reused = new AtomicInteger();
+
+        public boolean offer(String key, Object connection) {
+            connections.putIfAbsent(key, new ConcurrentLinkedQueue<Object>());
+            connections.get(key).offer(connection);
+            offered.incrementAndGet();
+            return true;
+        }
+
+        public Object poll(String key) {
+            Queue<Object> q = connections.get(key);
+            Object connection = q != null ? q.poll() : null;
+            if (connection != null) {
+                reused.incrementAndGet();
+            }
+            return connection;
+        }
+
+        public boolean removeAll(Object connection) {
+            boolean removed = false;
+            for (Queue<Object> q : connections.values()) {
+                removed |= q.remove(connection);
+            }
+            return removed;
+        }
+
+        public boolean canCacheConnection() {
+            return true;
+        }
+
+        public void destroy() {
+            connections.clear();
+        }
+    }
+
+    public WarmUpTest(String testName) {
+        super(testName);
+    }
+
+    private static void awaitOffered(CountingConnectionsPool pool, int n) throws InterruptedException {
+        // Connections are offered to the pool once the response has been delivered.
+        for (int i = 0; i < 100 && pool.offered.get() < n; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(n, pool.offered.get());
+    }
+
+    public void testWarmUpAtCreation() throws Exception {
+        startServer(Resource.class);
+        URI uri = getUri().path("test").build();
+        CountingConnectionsPool pool = new CountingConnectionsPool();
+        DefaultAhcConfig config = new DefaultAhcConfig();
+        config.getAsyncHttpClientConfigBuilder().setConnectionsPool(pool);
+        config.getProperties().put(AhcConfig.PROPERTY_WARM_UP_URIS, Collections.singletonList(uri));
+        config.getProperties().put(AhcConfig.PROPERTY_WARM_UP_CONNECTIONS, 3);
+
+        AhcHttpClient c = AhcHttpClient.create(config);
+        WarmUpReport report = c.getWarmUpReport();
+        assertEquals(Integer.valueOf(3), report.getConnections().get(uri));
+        assertTrue(report.getFailures().isEmpty());
+        assertTrue(report.getElapsedMillis() >= 0);
+        awaitOffered(pool, 3);
+        assertEquals(0, pool.reused.get());
+
+        // The first request reuses a pooled connection.
+        assertEquals("GET", c.resource(uri).get(String.class));
+        assertEquals(1, pool.reused.get());
+    }
+
+    public void testNoWarmUp() {
+        startServer(Resource.class);
+
+        assertNull(AhcHttpClient.create().getWarmUpReport());
+    }
+
+    public void testFailure() {
+        startServer(Resource.class);
+        URI uri = URI.create("http://localhost:1/test");
+
+        WarmUpReport report = AhcHttpClient.create().warmUp(Collections.singletonList(uri), 2);
+        assertEquals(Integer.valueOf(0), report.getConnections().get(uri));
+        assertNotNull(report.getFailures().get(uri));
+    }
+}